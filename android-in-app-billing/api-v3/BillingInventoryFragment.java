@@ -1,6 +1,7 @@
 import twig.nguyen.common.services.billing.IabHelper;
 import twig.nguyen.common.services.billing.IabResult;
 import twig.nguyen.common.services.billing.Inventory;
+import twig.nguyen.common.services.billing.InventoryDelta;
 import twig.nguyen.common.services.billing.Purchase;
 import android.os.Bundle;
 import android.util.Log;
@@ -38,6 +39,27 @@ public class BillingInventoryFragment extends SherlockFragment {
     // Enable debug logging (for a production application, you should set this to false).
     // mHelper.enableDebugLogging(true);
 
+    // Remember the inventory between launches, so premium users don't see the free UI while we wait for the billing service.
+    mHelper.enableInventoryCache(IabHelper.DEFAULT_INVENTORY_CACHE_TTL);
+
+    Inventory cachedInventory = mHelper.getCachedInventory();
+    if (cachedInventory != null) {
+      applyInventory(cachedInventory);
+    }
+
+    // Only re-jig things when what the user owns differs from what we last applied (starting with the cached inventory above).
+    mHelper.setOnEntitlementsChangedListener(new IabHelper.OnEntitlementsChangedListener() {
+      @Override
+      public void onEntitlementsChanged(InventoryDelta delta, Inventory inventory) {
+        // Have we been disposed of in the meantime? If so, quit.
+        if (mHelper == null) {
+          return;
+        }
+
+        applyInventory(inventory);
+      }
+    });
+
     // Start setup. This is asynchronous and the specified listener will be called once setup completes.
     mHelper.startSetup(new IabHelper.OnIabSetupFinishedListener() {
       @Override
@@ -74,22 +96,31 @@ public class BillingInventoryFragment extends SherlockFragment {
 
         // Something went wrong
         if (!result.isSuccess()) {
+          Log.e(getActivity().getApplicationInfo().name, "Problem querying inventory: " + result.getMessage());
           return;
         }
 
-        // Do your checks here...
-
-        // Do we have the premium upgrade?
-        Purchase purchasePro = inventory.getPurchase(G.SKU_PRO); // Where G.SKU_PRO is your product ID (eg. permanent.ad_removal)
-        G.settings.isPro = (purchasePro != null && G.verifyDeveloperPayload(purchasePro));
-
-        // After checking inventory, re-jig stuff which the user can access now
-        // that we've determined what they've purchased
-        G.initialiseStuff();
+        // Any change in what the user owns has been passed on to the entitlements listener.
       }
     };
   }
 
+
+  /**
+   * Updates what the user has access to, from either a cached or a freshly queried inventory.
+   */
+  private void applyInventory(Inventory inventory) {
+    // Do your checks here...
+
+    // Do we have the premium upgrade?
+    Purchase purchasePro = inventory.getPurchase(G.SKU_PRO); // Where G.SKU_PRO is your product ID (eg. permanent.ad_removal)
+    G.settings.isPro = (purchasePro != null && G.verifyDeveloperPayload(purchasePro));
+
+    // After checking inventory, re-jig stuff which the user can access now
+    // that we've determined what they've purchased
+    G.initialiseStuff();
+  }
+
   /**
    * Very important!
    */
@@ -1,5 +1,7 @@
 import twig.nguyen.common.services.billing.IabHelper;
 import twig.nguyen.common.services.billing.IabResult;
+import twig.nguyen.common.services.billing.Inventory;
+import twig.nguyen.common.services.billing.InventoryDelta;
 import twig.nguyen.common.services.billing.Purchase;
 import android.content.Intent;
 import android.os.Bundle;
@@ -7,6 +9,9 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
 
+import java.util.Arrays;
+import java.util.List;
+
 import com.actionbarsherlock.app.SherlockFragmentActivity;
 import com.actionbarsherlock.view.Window;
 
@@ -14,6 +19,8 @@ public class UpgradeActivity extends SherlockFragmentActivity {
   // Billing helper object
   private IabHelper mHelper;
   private boolean mBillingServiceReady;
+  private boolean mBillingSetupPending;
+  private boolean mUpgradeQueued;
 
 
   @Override
@@ -43,9 +50,56 @@ public class UpgradeActivity extends SherlockFragmentActivity {
       return;
     }
 
+    // Normally the Application has already started this in its onCreate(). If not, start now.
+    IabHelper.warmUp(this, G.getApplicationKey());
+
     // Create the helper, passing it our context and the public key to verify signatures with
     mHelper = new IabHelper(this, G.getApplicationKey());
 
+    // Verify purchases in the background so the UI doesn't stutter right after checkout.
+    mHelper.setVerifyPurchasesInBackground(true);
+
+    // Upgrading is what this screen is for, so have the buy intent ready before the tap.
+    mHelper.prefetchBuyIntent(G.SKU_PRO, IabHelper.ITEM_TYPE_INAPP, generatePayloadForSKU(G.SKU_PRO));
+
+    // Bullets bought right before we died get consumed again when billing starts up.
+    mHelper.enableConsumptionJournal(Arrays.asList(G.SKU_CONSUMABLE_BULLETS), new IabHelper.OnConsumeMultiFinishedListener() {
+      @Override
+      public void onConsumeMultiFinished(List<Purchase> purchases, List<IabResult> results) {
+        // Have we been disposed of in the meantime? If so, quit.
+        if (mHelper == null) {
+          return;
+        }
+
+        // Not owned means it was consumed before, and the bullets already handed out.
+        for (IabResult result : results) {
+          if (result.isSuccess()) {
+            playerBullets += 100;
+          }
+        }
+        updateInventoryUI();
+      }
+    });
+
+    // Re-jig stuff only when the upgrade actually changes hands.
+    mHelper.setOnEntitlementsChangedListener(new IabHelper.OnEntitlementsChangedListener() {
+      @Override
+      public void onEntitlementsChanged(InventoryDelta delta, Inventory inventory) {
+        // Have we been disposed of in the meantime? If so, quit.
+        if (mHelper == null || !delta.affectsSku(G.SKU_PRO)) {
+          return;
+        }
+
+        Purchase purchasePro = inventory.getPurchase(G.SKU_PRO);
+        G.settings.isPro = (purchasePro != null && G.verifyDeveloperPayload(purchasePro));
+        G.initialiseStuff();
+
+        // Update the UI to reflect their latest purchase
+        updateInventoryUI();
+      }
+    });
+
+    mBillingSetupPending = true;
     mHelper.startSetup(new IabHelper.OnIabSetupFinishedListener() {
       @Override
       public void onIabSetupFinished(IabResult result) {
@@ -53,9 +107,12 @@ public class UpgradeActivity extends SherlockFragmentActivity {
         if (mHelper == null) {
           return;
         }
+        mBillingSetupPending = false;
 
         if (!result.isSuccess()) {
-          // Oh noes, there was a problem.
+          // Oh noes, there was a problem. It's been said, so drop any upgrade waiting on it.
+          mUpgradeQueued = false;
+          setSupportProgressBarIndeterminateVisibility(false);
           complain("Problem setting up in-app billing: " + result.getMessage());
           return;
         }
@@ -65,14 +122,35 @@ public class UpgradeActivity extends SherlockFragmentActivity {
 
         // Custom function to update UI reflecting their inventory
         updateInventoryUI();
+
+        if (mUpgradeQueued) {
+          retryUpgrade();
+        }
       }
     });
   }
 
 
+  // Billing got ready while an upgrade was waiting on it.
+  private void retryUpgrade() {
+    mUpgradeQueued = false;
+    setSupportProgressBarIndeterminateVisibility(false);
+    onButtonUpgradeClicked();
+  }
+
+
   // User clicked the "Upgrade to Premium" button.
   public void onButtonUpgradeClicked() {
     if (!mBillingServiceReady) {
+      // Setup may still be going on a slow device. Carry on as soon as our helper is set up.
+      if (mBillingSetupPending) {
+        if (!mUpgradeQueued) {
+          mUpgradeQueued = true;
+          setSupportProgressBarIndeterminateVisibility(true);
+        }
+        return;
+      }
+
       Toast.makeText(UpgradeActivity.this, "Purchase requires Google Play Store (billing) on your Android.", Toast.LENGTH_LONG).show();
       return;
     }
@@ -145,13 +223,8 @@ public class UpgradeActivity extends SherlockFragmentActivity {
 
       // Purchase was success! Update accordingly
       if (purchase.getSku().equals(G.SKU_PRO)) {
+        // The entitlements listener takes care of unlocking it
         Toast.makeText(UpgradeActivity.this, "Thank you for upgrading!", Toast.LENGTH_LONG).show();
-
-        G.settings.isPro = true;
-        G.initialiseStuff();
-
-        // Update the UI to reflect their latest purchase
-        updateInventoryUI();
       }
       // Consume product immediately
       else if (purchase.getSku().equals(G.SKU_CONSUMABLE_BULLETS)) {
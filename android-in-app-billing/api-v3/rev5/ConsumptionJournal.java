@@ -0,0 +1,269 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * An append-only file of purchases that still have to be consumed. A consumable purchase is
+ * written here as soon as it is verified and struck off once it is consumed, so one that was
+ * bought right before the process died can be consumed on the next start without waiting for an
+ * inventory query to find it again.
+ *
+ * A purchase whose consume call timed out is marked as such, as the service may still have
+ * consumed it. If the service then says it isn't owned, it was consumed by that call.
+ *
+ * Each record is synced to disk before the call returns. When the file is read back, a record
+ * cut short by a crash is ignored and the file is rewritten with only what is still pending; it
+ * is deleted once nothing is. Helpers sharing a file share the instance returned by {@link #get},
+ * so their records don't overwrite each other.
+ */
+class ConsumptionJournal {
+    static final String TAG = "IabHelper/Journal";
+
+    // Record types
+    static final byte RECORD_PENDING = 1;
+    static final byte RECORD_CONSUMED = 2;
+    static final byte RECORD_TIMED_OUT = 3;
+
+    // The journals of this process, by file path
+    static final Map<String, ConsumptionJournal> sShared = new HashMap<String, ConsumptionJournal>();
+
+    /** Returns the journal kept in the given file, creating it if this process has none yet. */
+    static synchronized ConsumptionJournal get(File file) {
+        String path = file.getAbsolutePath();
+        ConsumptionJournal journal = sShared.get(path);
+        if (journal == null) {
+            journal = new ConsumptionJournal(file);
+            sShared.put(path, journal);
+        }
+        return journal;
+    }
+
+    // Where the journal is kept
+    final File mFile;
+
+    // Has the file been read yet?
+    boolean mLoaded = false;
+
+    // Purchases waiting to be consumed, by token, in the order they were added
+    final Map<String, Purchase> mPending = new LinkedHashMap<String, Purchase>();
+
+    // Tokens of pending purchases whose consume call timed out
+    final Set<String> mTimedOut = new HashSet<String>();
+
+    ConsumptionJournal(File file) {
+        mFile = file;
+    }
+
+    /** Records a purchase that has to be consumed. */
+    synchronized void addPending(Purchase purchase) {
+        load();
+        if (mPending.containsKey(purchase.getToken())) return;
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            writePending(new DataOutputStream(record), purchase);
+            append(record.toByteArray());
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to write consumption journal: " + e);
+        }
+        mPending.put(purchase.getToken(), purchase);
+    }
+
+    /** Strikes a purchase off, as it has been consumed (or turned out not to be owned). */
+    synchronized void markConsumed(String token) {
+        load();
+        if (mPending.remove(token) == null) return;
+        mTimedOut.remove(token);
+        if (mPending.isEmpty()) {
+            // Nothing left, so the whole history can go
+            mFile.delete();
+            return;
+        }
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(RECORD_CONSUMED);
+            out.writeUTF(token);
+            append(record.toByteArray());
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to write consumption journal: " + e);
+        }
+    }
+
+    /** Records that a pending purchase's consume call timed out, so it may have gone through. */
+    synchronized void markTimedOut(String token) {
+        load();
+        if (!mPending.containsKey(token) || !mTimedOut.add(token)) return;
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            writeTimedOut(new DataOutputStream(record), token);
+            append(record.toByteArray());
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to write consumption journal: " + e);
+        }
+    }
+
+    /** Returns whether a consume call for the pending purchase timed out. */
+    synchronized boolean hasTimedOut(String token) {
+        load();
+        return mTimedOut.contains(token);
+    }
+
+    /** Returns the purchases still waiting to be consumed, oldest first. */
+    synchronized List<Purchase> getPending() {
+        load();
+        return new ArrayList<Purchase>(mPending.values());
+    }
+
+    private static void writePending(DataOutputStream out, Purchase purchase) throws IOException {
+        out.writeByte(RECORD_PENDING);
+        out.writeUTF(purchase.mItemType);
+        out.writeUTF(purchase.getOriginalJson());
+        out.writeUTF(purchase.getSignature());
+        out.flush();
+    }
+
+    private static void writeTimedOut(DataOutputStream out, String token) throws IOException {
+        out.writeByte(RECORD_TIMED_OUT);
+        out.writeUTF(token);
+        out.flush();
+    }
+
+    // Appends a whole record and waits for it to reach the disk
+    private void append(byte[] record) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            out.write(record);
+            out.getFD().sync();
+        }
+        finally {
+            InventoryCache.closeQuietly(out);
+        }
+    }
+
+    private void load() {
+        if (mLoaded) return;
+        mLoaded = true;
+
+        // Does the file hold anything besides the pending purchases?
+        boolean compact = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                }
+                catch (EOFException e) {
+                    break;
+                }
+
+                if (type == RECORD_PENDING) {
+                    String itemType = in.readUTF();
+                    String purchaseData = in.readUTF();
+                    String signature = in.readUTF();
+                    try {
+                        Purchase p = new Purchase(itemType, purchaseData, signature);
+                        mPending.put(p.getToken(), p);
+                    }
+                    catch (JSONException e) {
+                        Log.w(TAG, "Dropping unparseable journal entry: " + e);
+                    }
+                }
+                else if (type == RECORD_CONSUMED) {
+                    String token = in.readUTF();
+                    mPending.remove(token);
+                    mTimedOut.remove(token);
+                    compact = true;
+                }
+                else if (type == RECORD_TIMED_OUT) {
+                    String token = in.readUTF();
+                    if (mPending.containsKey(token)) mTimedOut.add(token);
+                }
+                else {
+                    Log.w(TAG, "Unknown journal record, ignoring the rest of the journal.");
+                    compact = true;
+                    break;
+                }
+            }
+        }
+        catch (FileNotFoundException e) {
+            // Nothing journaled
+        }
+        catch (EOFException e) {
+            // The last record was cut short, so it never took effect. Anything appended after it
+            // would be unreadable, so start over.
+            compact = true;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to read consumption journal: " + e);
+        }
+        finally {
+            InventoryCache.closeQuietly(in);
+        }
+
+        if (mPending.isEmpty()) {
+            mFile.delete();
+        }
+        else if (compact) {
+            rewrite();
+        }
+    }
+
+    // Replaces the file with one holding only the pending purchases, and which of them timed out
+    private void rewrite() {
+        // Write to a temporary file first, so a crash halfway through can't lose the journal
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream file = null;
+        try {
+            file = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            for (Purchase p : mPending.values()) {
+                writePending(out, p);
+            }
+            for (String token : mTimedOut) {
+                writeTimedOut(out, token);
+            }
+            file.getFD().sync();
+            out.close();
+            file = null;
+
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "Unable to replace " + mFile);
+                tmp.delete();
+            }
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to compact consumption journal: " + e);
+            tmp.delete();
+        }
+        finally {
+            InventoryCache.closeQuietly(file);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.android.trivialdrivesample.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Schedules the asynchronous operations started through {@link IabHelper}.
+ *
+ * Operations are admitted in the order they were submitted. An operation starts as soon as it
+ * doesn't conflict with anything that is running or was submitted before it. Only mutations
+ * (consumption, purchase flows) carry keys, and two operations conflict when their keys overlap,
+ * so inventory queries run alongside everything else while a consume and a purchase of the same
+ * SKU are serialized. An exclusive operation conflicts with everything, reads included.
+ *
+ * Results are delivered in submission order per caller, where the caller is the Executor the
+ * results are delivered through. A quick operation never overtakes a slower one that was started
+ * earlier by the same caller. Operations submitted as unordered (purchase flows, which may wait on
+ * the user indefinitely) keep their keys but have no place in that order: their results are
+ * handed to the caller as soon as they finish, and nothing waits for them to be delivered.
+ */
+class IabAsyncQueue {
+    /**
+     * The body of a scheduled operation. It is started once the operation is admitted and must
+     * eventually call {@link Ticket#finish}, from any thread.
+     */
+    interface Operation {
+        void start(Ticket ticket);
+    }
+
+    // Keys of an operation that conflicts with every other operation
+    static final Collection<String> EXCLUSIVE = new ArrayList<String>();
+
+    /**
+     * Handle to a submitted operation.
+     */
+    final class Ticket {
+        final String mName;
+        final Set<String> mKeys;
+        final boolean mExclusive;
+        final boolean mOrdered;
+        final Executor mCaller;
+        final Operation mOperation;
+
+        boolean mFinished = false;
+        Runnable mDelivery;
+
+        // When the operation was submitted (System.nanoTime), for the queue wait metric
+        final long mSubmitTime;
+
+        Ticket(String name, Set<String> keys, boolean exclusive, boolean ordered, Executor caller,
+               Operation operation) {
+            mName = name;
+            mKeys = keys;
+            mExclusive = exclusive;
+            mOrdered = ordered;
+            mCaller = caller;
+            mOperation = operation;
+            mSubmitTime = System.nanoTime();
+        }
+
+        /**
+         * Marks the operation as finished, releasing its keys to whatever is waiting on them.
+         *
+         * @param delivery Run on the caller once every earlier operation from the same caller
+         *     has delivered its own result (right away if the operation is unordered). May be
+         *     null if there's nothing to deliver.
+         */
+        void finish(Runnable delivery) {
+            IabAsyncQueue.this.finish(this, delivery);
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    // Helper we schedule for (used for logging and metrics)
+    final IabHelper mHelper;
+
+    // Operations that are admitted and haven't finished yet
+    final List<Ticket> mRunning = new ArrayList<Ticket>();
+
+    // Operations waiting on a conflicting operation, in submission order
+    final List<Ticket> mWaiting = new LinkedList<Ticket>();
+
+    // Delivery state per caller
+    final Map<Executor, CallerLine> mLines = new HashMap<Executor, CallerLine>();
+
+    // Results waiting to reach a single caller
+    static class CallerLine {
+        // Undelivered operations, in submission order
+        final LinkedList<Ticket> mPending = new LinkedList<Ticket>();
+
+        // Results that are next in line, ready to be handed to the caller
+        final LinkedList<Runnable> mReady = new LinkedList<Runnable>();
+
+        // Is some thread currently handing results to the caller?
+        boolean mDraining = false;
+    }
+
+    IabAsyncQueue(IabHelper helper) {
+        mHelper = helper;
+    }
+
+    /**
+     * Submits an operation. If it can be admitted straight away, it is started on the calling
+     * thread before this method returns.
+     *
+     * @param name Name of the operation (for logging/debugging).
+     * @param keys Keys the operation mutates, null if it only reads, or {@link #EXCLUSIVE} if it
+     *     must run on its own.
+     * @param caller Executor the operation's results are delivered through.
+     * @param operation The operation body.
+     */
+    Ticket submit(String name, Collection<String> keys, Executor caller, Operation operation) {
+        return submit(name, keys, true, caller, operation);
+    }
+
+    /**
+     * Submits an operation like {@link #submit(String, Collection, Executor, Operation)}.
+     *
+     * @param ordered Whether the operation's result takes its turn among the caller's results.
+     *     If not, no later result from the same caller waits for it.
+     */
+    Ticket submit(String name, Collection<String> keys, boolean ordered, Executor caller, Operation operation) {
+        boolean exclusive = (keys == EXCLUSIVE);
+        Set<String> keySet = (keys == null || exclusive) ? null : new HashSet<String>(keys);
+        Ticket ticket = new Ticket(name, keySet, exclusive, ordered, caller, operation);
+        List<Ticket> admitted;
+        synchronized (this) {
+            if (ordered) {
+                CallerLine line = mLines.get(caller);
+                if (line == null) {
+                    line = new CallerLine();
+                    mLines.put(caller, line);
+                }
+                line.mPending.add(ticket);
+            }
+            mWaiting.add(ticket);
+            admitted = admit();
+        }
+        start(admitted);
+        return ticket;
+    }
+
+    /** Returns whether any operation is running or waiting to run. */
+    synchronized boolean isBusy() {
+        return !mRunning.isEmpty() || !mWaiting.isEmpty();
+    }
+
+    /**
+     * Drops every operation that hasn't started yet, along with all undelivered results.
+     * Running operations are left to finish on their own.
+     */
+    synchronized void clear() {
+        mWaiting.clear();
+        mLines.clear();
+    }
+
+    void finish(Ticket ticket, Runnable delivery) {
+        List<Ticket> admitted;
+        CallerLine drain = null;
+        synchronized (this) {
+            if (ticket.mFinished) return;
+            ticket.mFinished = true;
+            ticket.mDelivery = delivery;
+            mRunning.remove(ticket);
+
+            // Move every result that is now at the head of this caller's line to the ready list
+            CallerLine line = ticket.mOrdered ? mLines.get(ticket.mCaller) : null;
+            if (line != null) {
+                while (!line.mPending.isEmpty() && line.mPending.getFirst().mFinished) {
+                    Runnable r = line.mPending.removeFirst().mDelivery;
+                    if (r != null) line.mReady.add(r);
+                }
+                if (!line.mDraining && !line.mReady.isEmpty()) {
+                    line.mDraining = true;
+                    drain = line;
+                }
+            }
+
+            admitted = admit();
+        }
+        if (drain != null) drain(ticket.mCaller, drain);
+        if (!ticket.mOrdered && delivery != null) ticket.mCaller.execute(delivery);
+        start(admitted);
+    }
+
+    // Hands ready results to the caller one at a time, outside the lock. Only one thread drains
+    // a given line at once, which keeps results in order even with a direct executor.
+    private void drain(Executor caller, CallerLine line) {
+        while (true) {
+            Runnable r;
+            synchronized (this) {
+                r = line.mReady.poll();
+                if (r == null) {
+                    line.mDraining = false;
+                    if (line.mPending.isEmpty() && mLines.get(caller) == line) mLines.remove(caller);
+                    return;
+                }
+            }
+            caller.execute(r);
+        }
+    }
+
+    // Moves every waiting operation that no longer conflicts into the running set.
+    // Must be called while holding the lock.
+    private List<Ticket> admit() {
+        List<Ticket> admitted = new ArrayList<Ticket>();
+        List<Ticket> blocked = new ArrayList<Ticket>();
+        Iterator<Ticket> it = mWaiting.iterator();
+        while (it.hasNext()) {
+            Ticket t = it.next();
+            if (conflictsWithAny(t, mRunning) || conflictsWithAny(t, blocked)) {
+                blocked.add(t);
+                continue;
+            }
+            it.remove();
+            mRunning.add(t);
+            admitted.add(t);
+        }
+        return admitted;
+    }
+
+    private void start(List<Ticket> admitted) {
+        IabMetrics metrics = mHelper.mMetrics;
+        for (Ticket t : admitted) {
+            if (metrics != null) metrics.recordSince(IabMetrics.QUEUE_WAIT, t.mSubmitTime);
+            mHelper.logDebug("Starting async operation: " + t);
+            t.mOperation.start(t);
+        }
+    }
+
+    private static boolean conflictsWithAny(Ticket t, List<Ticket> others) {
+        for (Ticket o : others) {
+            if (t.mExclusive || o.mExclusive) return true;
+            if (t.mKeys == null || o.mKeys == null) continue;
+            for (String key : t.mKeys) {
+                if (o.mKeys.contains(key)) return true;
+            }
+        }
+        return false;
+    }
+}
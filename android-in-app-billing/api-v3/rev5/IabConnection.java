@@ -0,0 +1,333 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The process-wide connection to the billing service, shared by every {@link IabHelper} created
+ * with a Context. It is reference counted: the first helper to start setup binds to Google Play
+ * and runs the setup probes, and the service is unbound when the last helper is disposed of.
+ * A helper that starts setup while the connection is up gets the outcome of the probes right
+ * away, without binding or probing again, unless they failed; then it probes again itself.
+ *
+ * Helpers are told whenever the service connects (again) or disconnects. Like the
+ * ServiceConnection callbacks, this happens on the main thread.
+ *
+ * When the service goes away (e.g. Google Play is being updated), the connection waits for the
+ * system to bring it back. If that hasn't happened after a while, it binds again, backing off
+ * exponentially between attempts for as long as any helper holds it. Meanwhile, calls on
+ * background threads wait for the service in {@link #awaitService}, and work that has to
+ * happen on the main thread is held with {@link #runWhenConnected}.
+ */
+class IabConnection {
+    static final String TAG = "IabHelper/Connection";
+
+    // Connection states
+    static final int STATE_UNBOUND = 0;
+    static final int STATE_CONNECTING = 1;
+    static final int STATE_CONNECTED = 2;
+
+    // How long to wait for the service to come back before binding again, doubling after each
+    // attempt up to the maximum
+    static final long REBIND_INITIAL_DELAY_MILLIS = 1000;
+    static final long REBIND_MAX_DELAY_MILLIS = 60 * 1000;
+
+    static IabConnection sShared;
+
+    /**
+     * Returns the connection of this process.
+     */
+    static synchronized IabConnection get(Context ctx) {
+        if (sShared == null) sShared = new IabConnection(ctx.getApplicationContext());
+        return sShared;
+    }
+
+    final Context mContext;
+
+    // Helpers holding the connection, in the order they acquired it
+    final List<IabHelper> mClients = new ArrayList<IabHelper>();
+
+    int mState = STATE_UNBOUND;
+
+    // The helper whose setup started the binding, which runs the probes
+    IabHelper mProber;
+
+    // The connected service and the outcome of its probes (null unless STATE_CONNECTED)
+    IInAppBillingService mService;
+    IabResult mSetupResult;
+    boolean mSubscriptionsSupported;
+
+    // Main thread work waiting for the service to reconnect
+    final List<Runnable> mWhenConnected = new ArrayList<Runnable>();
+
+    // Schedules rebinding on the main thread, and the delay before the next attempt
+    final Handler mHandler = new Handler(Looper.getMainLooper());
+    long mRebindDelay = REBIND_INITIAL_DELAY_MILLIS;
+
+    final Runnable mRebind = new Runnable() {
+        @Override
+        public void run() {
+            rebind();
+        }
+    };
+
+    final ServiceConnection mServiceConn = new ServiceConnection() {
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            disconnected();
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            connected(IInAppBillingService.Stub.asInterface(service));
+        }
+    };
+
+    IabConnection(Context ctx) {
+        mContext = ctx;
+    }
+
+    /**
+     * Adds a helper to the connection, binding to the service if nobody else holds it. The
+     * helper's {@link IabHelper#onBillingConnected} is called once the service is connected and
+     * probed, before this method returns if it already is.
+     */
+    void acquire(IabHelper helper) {
+        boolean bind = false;
+        boolean ready = false;
+        IInAppBillingService service;
+        IabResult result;
+        boolean subscriptionsSupported;
+        synchronized (this) {
+            if (mClients.contains(helper)) return;
+            mClients.add(helper);
+            if (mState == STATE_UNBOUND) {
+                mState = STATE_CONNECTING;
+                mProber = helper;
+                bind = true;
+            }
+            else if (mState == STATE_CONNECTED) {
+                ready = true;
+            }
+            service = mService;
+            result = mSetupResult;
+            subscriptionsSupported = mSubscriptionsSupported;
+        }
+
+        if (ready && !result.isSuccess()) {
+            // Don't hand out a failure that may have been passing
+            result = helper.probeBillingSupport(service);
+            subscriptionsSupported = helper.mSubscriptionsSupported;
+            synchronized (this) {
+                if (result.isSuccess() && mService == service) {
+                    mSetupResult = result;
+                    mSubscriptionsSupported = subscriptionsSupported;
+                }
+            }
+        }
+        if (ready) {
+            helper.onBillingConnected(service, result, subscriptionsSupported);
+        }
+        else if (bind) {
+            bind();
+        }
+    }
+
+    /**
+     * Removes a helper from the connection, unbinding from the service if it was the last.
+     */
+    void release(IabHelper helper) {
+        synchronized (this) {
+            if (!mClients.remove(helper)) return;
+            if (mProber == helper) mProber = null;
+            if (!mClients.isEmpty() || mState == STATE_UNBOUND) return;
+            mState = STATE_UNBOUND;
+            mService = null;
+            mSetupResult = null;
+            mWhenConnected.clear();
+            notifyAll();
+        }
+        Log.d(TAG, "Last helper released, unbinding from service.");
+        mHandler.removeCallbacks(mRebind);
+        mContext.unbindService(mServiceConn);
+    }
+
+    static Intent newBindIntent() {
+        Intent serviceIntent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
+        serviceIntent.setPackage("com.android.vending");
+        return serviceIntent;
+    }
+
+    private void bind() {
+        Intent serviceIntent = newBindIntent();
+        List<ResolveInfo> ri = mContext.getPackageManager().queryIntentServices(serviceIntent, 0);
+
+        // service available to handle that Intent?
+        if (ri != null && !ri.isEmpty()
+                && mContext.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE)) {
+            return;
+        }
+
+        // Nothing to bind to, so there's nothing to share either; the next helper tries again
+        List<IabHelper> clients;
+        synchronized (this) {
+            clients = new ArrayList<IabHelper>(mClients);
+            mClients.clear();
+            mProber = null;
+            mState = STATE_UNBOUND;
+        }
+        IabResult result = new IabResult(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
+                "Billing service unavailable on device.");
+        for (IabHelper c : clients) {
+            c.onBillingConnected(null, result, false);
+        }
+    }
+
+    /**
+     * Returns the connected service, waiting up to the given time while it is being reconnected.
+     * Don't call this on the main thread, which the reconnection needs.
+     *
+     * @return The service, or null if it isn't connected in time (or at all).
+     */
+    synchronized IInAppBillingService awaitService(long timeoutMillis) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        while (mState == STATE_CONNECTING) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) break;
+            wait(remaining);
+        }
+        return mService;
+    }
+
+    /**
+     * Runs the given task on the main thread once the service is reconnected, after the helpers
+     * have been told about it. Returns false (and forgets the task) unless the service is
+     * currently being reconnected.
+     */
+    synchronized boolean runWhenConnected(Runnable task) {
+        if (mState != STATE_CONNECTING || mClients.isEmpty()) return false;
+        mWhenConnected.add(task);
+        return true;
+    }
+
+    /**
+     * Reports that a call to the given service failed because its process died, which may be
+     * noticed before onServiceDisconnected() arrives. The calls waiting for the service are held
+     * right away; the helpers are told on the main thread.
+     */
+    void serviceDied(IInAppBillingService service) {
+        synchronized (this) {
+            if (mService != service) return;
+        }
+        disconnected();
+    }
+
+    private void connected(IInAppBillingService service) {
+        IabHelper prober;
+        synchronized (this) {
+            // Released while we were connecting?
+            if (mState == STATE_UNBOUND || mClients.isEmpty()) return;
+            prober = (mProber != null) ? mProber : mClients.get(0);
+        }
+        mHandler.removeCallbacks(mRebind);
+
+        // Probe once for everybody
+        IabResult result = prober.probeBillingSupport(service);
+        boolean subscriptionsSupported = prober.mSubscriptionsSupported;
+
+        List<IabHelper> clients;
+        List<Runnable> held;
+        synchronized (this) {
+            if (mState == STATE_UNBOUND) return;
+            mState = STATE_CONNECTED;
+            mService = service;
+            mSetupResult = result;
+            mSubscriptionsSupported = subscriptionsSupported;
+            mRebindDelay = REBIND_INITIAL_DELAY_MILLIS;
+            clients = new ArrayList<IabHelper>(mClients);
+            held = new ArrayList<Runnable>(mWhenConnected);
+            mWhenConnected.clear();
+            notifyAll();
+        }
+        for (IabHelper c : clients) {
+            c.onBillingConnected(service, result, subscriptionsSupported);
+        }
+        for (Runnable r : held) {
+            r.run();
+        }
+    }
+
+    private void disconnected() {
+        List<IabHelper> clients;
+        long delay;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return;
+
+            // Still bound, so the system should connect us again once it restarts the service
+            mState = STATE_CONNECTING;
+            mService = null;
+            mSetupResult = null;
+            delay = mRebindDelay;
+            clients = new ArrayList<IabHelper>(mClients);
+        }
+        Log.d(TAG, "Billing service disconnected.");
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            notifyDisconnected(clients);
+        }
+        else {
+            // Noticed by a failed call on a background thread
+            final List<IabHelper> clients_f = clients;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyDisconnected(clients_f);
+                }
+            });
+        }
+
+        // ...but don't count on it
+        mHandler.removeCallbacks(mRebind);
+        mHandler.postDelayed(mRebind, delay);
+    }
+
+    // Tells the helpers that were holding the connection when the service went away, unless it
+    // has come back since
+    private void notifyDisconnected(List<IabHelper> clients) {
+        synchronized (this) {
+            if (mState == STATE_CONNECTED) return;
+        }
+        for (IabHelper c : clients) {
+            c.onBillingDisconnected();
+        }
+    }
+
+    // Binds again if the service hasn't come back by itself, and schedules the next attempt
+    private void rebind() {
+        long next;
+        synchronized (this) {
+            if (mState != STATE_CONNECTING) return;
+            next = Math.min(mRebindDelay * 2, REBIND_MAX_DELAY_MILLIS);
+            mRebindDelay = next;
+        }
+        Log.d(TAG, "Billing service still disconnected, binding again.");
+        mContext.unbindService(mServiceConn);
+        if (!mContext.bindService(newBindIntent(), mServiceConn, Context.BIND_AUTO_CREATE)) {
+            Log.w(TAG, "Unable to bind to billing service.");
+        }
+        mHandler.postDelayed(mRebind, next);
+    }
+}
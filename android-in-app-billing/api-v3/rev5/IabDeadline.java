@@ -0,0 +1,118 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import java.util.concurrent.Callable;
+
+
+/**
+ * The deadline of the billing operation running on the current thread, if it has one. Calls to
+ * the billing service and waits for forked work give up once it passes, with an
+ * {@link ExceededException}. Work forked through {@link IabTasks} runs under the deadline of the
+ * thread that forked it.
+ *
+ * Deadlines are in {@link SystemClock#elapsedRealtime} milliseconds.
+ */
+final class IabDeadline {
+    // No deadline
+    static final long NONE = Long.MAX_VALUE;
+
+    /**
+     * Thrown when a billing call or wait runs past the deadline. It is a RemoteException so that
+     * it travels the same way as a failed service call, and tells it apart when reported (see
+     * {@link IabHelper#IABHELPER_TIMEOUT}).
+     */
+    static class ExceededException extends RemoteException {
+        private static final long serialVersionUID = 1L;
+
+        ExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private static final ThreadLocal<Long> sDeadline = new ThreadLocal<Long>();
+
+    private IabDeadline() {
+    }
+
+    /** Returns the deadline the given time from now, or NONE if the timeout isn't positive. */
+    static long fromNow(long timeoutMillis) {
+        if (timeoutMillis <= 0) return NONE;
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        return (deadline < 0) ? NONE : deadline;
+    }
+
+    /** Returns this thread's deadline, or NONE. */
+    static long get() {
+        Long deadline = sDeadline.get();
+        return (deadline == null) ? NONE : deadline.longValue();
+    }
+
+    /** Returns how long until this thread's deadline (0 or less if it has passed), or NONE. */
+    static long remainingMillis() {
+        long deadline = get();
+        return (deadline == NONE) ? NONE : deadline - SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Puts this thread under the given deadline, unless it already has a sooner one.
+     *
+     * @return The previous deadline, to pass to {@link #exit} when done.
+     */
+    static long enter(long deadline) {
+        long previous = get();
+        if (deadline < previous) sDeadline.set(Long.valueOf(deadline));
+        return previous;
+    }
+
+    /** Restores the deadline that {@link #enter} returned. */
+    static void exit(long previous) {
+        if (previous == NONE) {
+            sDeadline.remove();
+        }
+        else {
+            sDeadline.set(Long.valueOf(previous));
+        }
+    }
+
+    /** Throws if this thread's deadline has passed. */
+    static void check(String what) throws ExceededException {
+        if (remainingMillis() <= 0) throw new ExceededException("Timed out " + what + ".");
+    }
+
+    /** Wraps the callable to run under this thread's current deadline, wherever it runs. */
+    static <T> Callable<T> propagate(final Callable<T> callable) {
+        final long deadline = get();
+        if (deadline == NONE) return callable;
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long previous = enter(deadline);
+                try {
+                    return callable.call();
+                }
+                finally {
+                    exit(previous);
+                }
+            }
+        };
+    }
+
+    /** Wraps the runnable to run under the given deadline. */
+    static Runnable under(final long deadline, final Runnable runnable) {
+        if (deadline == NONE) return runnable;
+        return new Runnable() {
+            @Override
+            public void run() {
+                long previous = enter(deadline);
+                try {
+                    runnable.run();
+                }
+                finally {
+                    exit(previous);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The pending result of an in-app billing operation started through one of IabHelper's
+ * future-returning methods ({@link IabHelper#setupAsync}, {@link IabHelper#queryInventoryFuture},
+ * {@link IabHelper#consumeFuture}).
+ *
+ * Steps can be chained with {@link #then} and fanned out with {@link #allOf}. Continuations run
+ * directly on the thread that completes the previous step, so a chain of billing calls doesn't
+ * bounce through the UI thread between steps. Use {@link #addCallback} with a UI executor for the
+ * final result.
+ *
+ * A failed operation completes with an {@link IabException} carrying its {@link IabResult};
+ * {@link #get} wraps it in an ExecutionException.
+ */
+public class IabFuture<T> implements Future<T> {
+    static final String TAG = "IabHelper/Future";
+
+    /**
+     * Callback notified when the future completes.
+     */
+    public interface Callback<T> {
+        /**
+         * Called when the operation succeeded.
+         */
+        public void onSuccess(T value);
+
+        /**
+         * Called when the operation failed or was cancelled.
+         *
+         * @param e The failure. Its result tells what went wrong.
+         */
+        public void onFailure(IabException e);
+    }
+
+    /**
+     * The next step of a chain, started with the result of the previous one.
+     */
+    public interface Continuation<T, U> {
+        /**
+         * @param value The result of the previous step.
+         * @return The future of the next step.
+         * @throws IabException to fail the chain right away.
+         */
+        public IabFuture<U> then(T value) throws IabException;
+    }
+
+    // Completion state, guarded by this
+    boolean mDone = false;
+    boolean mCancelled = false;
+    T mValue;
+    IabException mFailure;
+
+    // Callbacks to notify on completion, along with the executor to notify them on
+    final List<Callback<T>> mCallbacks = new ArrayList<Callback<T>>();
+    final List<Executor> mCallbackExecutors = new ArrayList<Executor>();
+
+    // Runs callbacks on whichever thread completes the future
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    IabFuture() {
+    }
+
+    /** Returns a future that has already succeeded with the given value. */
+    public static <T> IabFuture<T> completed(T value) {
+        IabFuture<T> f = new IabFuture<T>();
+        f.complete(value);
+        return f;
+    }
+
+    /** Returns a future that has already failed with the given result. */
+    public static <T> IabFuture<T> failed(IabResult result) {
+        IabFuture<T> f = new IabFuture<T>();
+        f.fail(new IabException(result));
+        return f;
+    }
+
+    /**
+     * Returns a future that succeeds with every result, in the same order, once all the given
+     * futures have succeeded, or fails as soon as one of them does.
+     */
+    public static <T> IabFuture<List<T>> allOf(final List<IabFuture<T>> futures) {
+        final IabFuture<List<T>> all = new IabFuture<List<T>>();
+        if (futures.isEmpty()) {
+            all.complete(new ArrayList<T>());
+            return all;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (IabFuture<T> f : futures) {
+            f.addCallback(new Callback<T>() {
+                @Override
+                public void onSuccess(T value) {
+                    if (remaining.decrementAndGet() > 0) return;
+                    List<T> values = new ArrayList<T>(futures.size());
+                    for (IabFuture<T> done : futures) {
+                        values.add(done.mValue);
+                    }
+                    all.complete(values);
+                }
+
+                @Override
+                public void onFailure(IabException e) {
+                    all.fail(e);
+                }
+            }, DIRECT);
+        }
+        return all;
+    }
+
+    /**
+     * Starts the next step once this one succeeds. The continuation runs on the thread that
+     * completes this future. If this step fails, or the continuation throws an IabException, the
+     * returned future fails with the same exception. If the continuation throws anything else or
+     * returns null, it fails with {@link IabHelper#IABHELPER_UNKNOWN_ERROR}.
+     */
+    public <U> IabFuture<U> then(final Continuation<? super T, U> continuation) {
+        final IabFuture<U> next = new IabFuture<U>();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                IabFuture<U> step;
+                try {
+                    step = continuation.then(value);
+                }
+                catch (IabException e) {
+                    next.fail(e);
+                    return;
+                }
+                catch (RuntimeException e) {
+                    next.fail(new IabException(IabHelper.IABHELPER_UNKNOWN_ERROR, "Continuation failed: " + e, e));
+                    return;
+                }
+                if (step == null) {
+                    next.fail(new IabException(IabHelper.IABHELPER_UNKNOWN_ERROR, "Continuation returned no future."));
+                    return;
+                }
+                step.addCallback(new Callback<U>() {
+                    @Override
+                    public void onSuccess(U value) {
+                        next.complete(value);
+                    }
+
+                    @Override
+                    public void onFailure(IabException e) {
+                        next.fail(e);
+                    }
+                }, DIRECT);
+            }
+
+            @Override
+            public void onFailure(IabException e) {
+                next.fail(e);
+            }
+        }, DIRECT);
+        return next;
+    }
+
+    /**
+     * Notifies the callback through the given executor once this future completes (straight away
+     * if it already has).
+     */
+    public void addCallback(Callback<T> callback, Executor executor) {
+        synchronized (this) {
+            if (!mDone) {
+                mCallbacks.add(callback);
+                mCallbackExecutors.add(executor);
+                return;
+            }
+        }
+        notify(callback, executor);
+    }
+
+    void complete(T value) {
+        finish(value, null, false);
+    }
+
+    void fail(IabException failure) {
+        finish(null, failure, false);
+    }
+
+    // Completes the future and notifies the callbacks; only the first completion counts
+    private void finish(T value, IabException failure, boolean cancelled) {
+        List<Callback<T>> callbacks;
+        List<Executor> executors;
+        synchronized (this) {
+            if (mDone) return;
+            mDone = true;
+            mCancelled = cancelled;
+            mValue = value;
+            mFailure = failure;
+            callbacks = new ArrayList<Callback<T>>(mCallbacks);
+            executors = new ArrayList<Executor>(mCallbackExecutors);
+            mCallbacks.clear();
+            mCallbackExecutors.clear();
+            notifyAll();
+        }
+        // A callback that throws (straight through a direct executor) mustn't keep the others
+        // from being notified
+        for (int i = 0; i < callbacks.size(); ++i) {
+            try {
+                notify(callbacks.get(i), executors.get(i));
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "Callback threw while being notified.", e);
+            }
+        }
+    }
+
+    private void notify(final Callback<T> callback, Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mFailure != null) {
+                    callback.onFailure(mFailure);
+                }
+                else {
+                    callback.onSuccess(mValue);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels the future. The billing operation itself can't be stopped, but its result is
+     * dropped and the chain fails with {@link IabHelper#IABHELPER_USER_CANCELLED}.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mDone) return false;
+        }
+        finish(null, new IabException(IabHelper.IABHELPER_USER_CANCELLED, "Operation cancelled."), true);
+        return isCancelled();
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return getDone();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getDone();
+    }
+
+    private T getDone() throws ExecutionException {
+        if (mCancelled) throw new CancellationException();
+        if (mFailure != null) throw new ExecutionException(mFailure);
+        return mValue;
+    }
+}
@@ -17,16 +17,16 @@ package com.example.android.trivialdrivesample.util;
 
 import android.app.Activity;
 import android.app.PendingIntent;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
-import android.content.ServiceConnection;
-import android.content.pm.ResolveInfo;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.DeadObjectException;
 import android.os.Handler;
-import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -34,8 +34,30 @@ import com.android.vending.billing.IInAppBillingService;
 
 import org.json.JSONException;
 
+import java.io.File;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -58,14 +80,38 @@ import java.util.List;
  * to ensure proper cleanup. This object holds a binding to the in-app billing
  * service, which will leak unless you dispose of it correctly. If you created
  * the object on an Activity's onCreate method, then the recommended
- * place to dispose of it is the Activity's onDestroy method.
+ * place to dispose of it is the Activity's onDestroy method. The binding is shared
+ * by all the IabHelper objects in the process and released with the last of them,
+ * so a helper created while another one is alive is set up without waiting.
+ * If the billing service goes away (e.g. while Google Play updates), it is bound
+ * again with backoff; operations wait for it instead of failing, and inventory
+ * reads interrupted by its death are retried once.
  *
  * A note about threading: When using this object from a background thread, you may
  * call the blocking versions of methods; when using from a UI thread, call
  * only the asynchronous versions and handle the results via callbacks.
- * Also, notice that you can only call one asynchronous operation at a time;
- * attempting to start a second asynchronous operation while the first one
- * has not yet completed will result in an exception being thrown.
+ * Asynchronous operations may be started while others are still in progress.
+ * Inventory queries run concurrently with everything else; consuming or purchasing
+ * a SKU waits for any earlier consumption or purchase of the same SKU (and purchase
+ * flows wait for each other). Results are delivered in the order the operations were
+ * started from a given thread, except for purchase flows, which end whenever the user is done.
+ * An operation that runs longer than {@link #setAsyncTimeout} allows fails with
+ * {@link #IABHELPER_TIMEOUT} and stops holding up the ones queued behind it.
+ *
+ * Background work runs on a small thread pool shared by every IabHelper, and results
+ * are posted back to the thread that started the operation. Both can be replaced, see
+ * {@link #setBackgroundExecutor} and {@link #setCallbackExecutor}.
+ *
+ * If you call {@link #enableInventoryCache}, the last inventory is kept on disk so that
+ * {@link #getCachedInventory} can tell what the user owns as soon as the object is created.
+ * Prices are likewise served from memory by {@link #getSkuDetails} while they're refreshed.
+ *
+ * {@link #warmUp} sets up billing and fills the inventory cache at process start, so that
+ * screens find billing ready.
+ *
+ * Besides the listener-based asynchronous methods, {@link #setupAsync},
+ * {@link #queryInventoryFuture} and {@link #consumeFuture} return an {@link IabFuture},
+ * which lets several steps be chained or fanned out without going through the UI thread.
  *
  * @author Bruno Oliveira (Google)
  *
@@ -81,25 +127,126 @@ public class IabHelper {
     // Has this object been disposed of? (If so, we should ignore callbacks, etc)
     boolean mDisposed = false;
 
-    boolean mIsBound = false;
-
     // Are subscriptions supported?
     boolean mSubscriptionsSupported = false;
 
-    // Is an asynchronous operation in progress?
-    // (only one at a time can be in progress)
-    boolean mAsyncInProgress = false;
+    // Schedules asynchronous operations, serializing only the ones that conflict
+    IabAsyncQueue mAsyncQueue = new IabAsyncQueue(this);
+
+    // The purchase flow waiting on handleActivityResult(), if any
+    IabAsyncQueue.Ticket mPurchaseTicket;
+
+    // Runs blocking work for the asynchronous methods
+    Executor mBackgroundExecutor;
+
+    // Delivers results of asynchronous methods (null to post back to the calling thread)
+    Executor mCallbackExecutor;
+
+    // Executors posting to the Looper of each thread that started an operation
+    final Map<Looper, Executor> mLooperExecutors = new HashMap<Looper, Executor>();
+
+    // Thread pool shared by all instances that weren't given a background executor
+    static final int DEFAULT_POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    static Executor sDefaultExecutor;
+
+    // How many purchases a multi-item consumption works on at once
+    int mConsumeParallelism = DEFAULT_CONSUME_PARALLELISM;
+    static final int DEFAULT_CONSUME_PARALLELISM = 4;
+
+    // Last verified inventory, kept across launches (null if caching is disabled)
+    InventoryCache mInventoryCache;
+
+    // How long a call on a background thread waits for the billing service to reconnect
+    static final long RECONNECT_TIMEOUT_MILLIS = 30 * 1000;
+
+    // How long an asynchronous operation may run once started (0 for no limit)
+    long mAsyncTimeout = DEFAULT_ASYNC_TIMEOUT_MILLIS;
+    public static final long DEFAULT_ASYNC_TIMEOUT_MILLIS = 60 * 1000;
+
+    // Makes service calls that have a deadline, so the caller can stop waiting on a hung service
+    static Executor sServiceCallExecutor;
+
+    // How many service calls under a deadline can be in flight at once, counting ones whose
+    // callers gave up on them
+    static final int MAX_SERVICE_CALL_THREADS = 16;
+
+    // The helper started by warmUp(), which holds the shared connection for the life of the
+    // process, and its readiness handle
+    static IabHelper sWarmUpHelper;
+    static IabFuture<IabResult> sWarmUp;
+
+    // How long a cached inventory can answer queryInventoryAsync() without asking the service
+    long mInventoryCacheTtl = 0;
+    public static final long DEFAULT_INVENTORY_CACHE_TTL = 15 * 60 * 1000;
+
+    // Name of the inventory cache file, in the app's files directory
+    static final String INVENTORY_CACHE_FILE = "iab_inventory.cache";
+
+    // Consumable purchases that still have to be consumed, kept across process deaths (null if
+    // the journal is disabled), and the SKUs that are consumable
+    ConsumptionJournal mConsumptionJournal;
+    final Set<String> mConsumableSkus = new HashSet<String>();
+
+    // Told about consumptions recovered from the journal
+    OnConsumeMultiFinishedListener mRecoveryListener;
+
+    // Journal writes that are still under way, by purchase token; consume() waits for them
+    final Map<String, FutureTask<Void>> mJournalWrites = new HashMap<String, FutureTask<Void>>();
+
+    // Name of the consumption journal, in the app's files directory
+    static final String CONSUMPTION_JOURNAL_FILE = "iab_consume.journal";
+
+    // Fewest purchases worth verifying on a thread of their own
+    static final int MIN_VERIFY_BATCH = 16;
+
+    // Most skus the billing service accepts in a single getSkuDetails request
+    static final int SKU_DETAILS_BATCH_SIZE = 20;
+
+    // Are products and subscriptions queried at the same time?
+    boolean mParallelInventoryQueries = false;
+
+    // The inventory query that concurrent queryInventoryAsync() calls share, if one is running
+    InventoryFlight mInventoryFlight;
+    final Object mInventoryFlightLock = new Object();
+
+    // Every SkuDetails we've seen, for getSkuDetails()
+    final SkuDetailsCache mSkuDetailsCache = new SkuDetailsCache();
+
+    // Buy intents fetched ahead of launchPurchaseFlow() (see prefetchBuyIntent), by
+    // buyIntentKey(), and how long one can be used after it was fetched
+    final Map<String, BuyIntentPrefetch> mBuyIntents = new HashMap<String, BuyIntentPrefetch>();
+    static final long BUY_INTENT_TTL_MILLIS = 60 * 1000;
+
+    // How old SkuDetails can get before getSkuDetails() refreshes them
+    long mSkuDetailsMaxAge = DEFAULT_SKU_DETAILS_MAX_AGE;
+    public static final long DEFAULT_SKU_DETAILS_MAX_AGE = 60 * 60 * 1000;
+
+    // Purchases last reported, which entitlement changes are measured against; guarded by
+    // mEntitlementsLock along with the listener and the executor it's notified through
+    Inventory mEntitlements;
+    OnEntitlementsChangedListener mEntitlementsListener;
+    Executor mEntitlementsExecutor;
+    final Object mEntitlementsLock = new Object();
+
+    // Are purchases returned to handleActivityResult() verified on the background executor?
+    boolean mVerifyPurchasesInBackground = false;
 
-    // (for logging/debugging)
-    // if mAsyncInProgress == true, what asynchronous operation is in progress?
-    String mAsyncOperation = "";
+    // Where call latencies and other figures are recorded (null if not measuring)
+    volatile IabMetrics mMetrics;
 
     // Context we were passed during initialization
     Context mContext;
 
-    // Connection to the service
+    // Our package name, as reported to the billing service
+    String mPackageName;
+
+    // Connection to the service, and the shared connection it comes from (null if setup was
+    // given a service)
     IInAppBillingService mService;
-    ServiceConnection mServiceConn;
+    IabConnection mConnection;
+
+    // The listener to tell when setup finishes
+    OnIabSetupFinishedListener mSetupListener;
 
     // The request code used to launch purchase flow
     int mRequestCode;
@@ -107,9 +254,15 @@ public class IabHelper {
     // The item type of the current purchase flow
     String mPurchasingItemType;
 
+    // The activity the current purchase flow was launched from, whose result it waits for
+    WeakReference<Activity> mPurchaseActivity;
+
     // Public key for verifying signature, in base64 encoding
     String mSignatureBase64 = null;
 
+    // Verifies purchase signatures (holds the decoded public key)
+    PurchaseVerifier mVerifier;
+
     // Billing response codes
     public static final int BILLING_RESPONSE_RESULT_OK = 0;
     public static final int BILLING_RESPONSE_RESULT_USER_CANCELED = 1;
@@ -132,6 +285,8 @@ public class IabHelper {
     public static final int IABHELPER_UNKNOWN_ERROR = -1008;
     public static final int IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE = -1009;
     public static final int IABHELPER_INVALID_CONSUMPTION = -1010;
+    public static final int IABHELPER_TIMEOUT = -1011;
+    public static final int IABHELPER_PURCHASE_IN_PROGRESS = -1012;
 
     // Keys for the responses from InAppBillingService
     public static final String RESPONSE_CODE = "RESPONSE_CODE";
@@ -148,6 +303,9 @@ public class IabHelper {
     public static final String ITEM_TYPE_INAPP = "inapp";
     public static final String ITEM_TYPE_SUBS = "subs";
 
+    // Key held by every purchase flow, as only one can wait on an activity result at a time
+    static final String PURCHASE_FLOW_KEY = "purchase-flow";
+
     // some fields on the getSkuDetails response bundle
     public static final String GET_SKU_DETAILS_ITEM_LIST = "ITEM_ID_LIST";
     public static final String GET_SKU_DETAILS_ITEM_TYPE_LIST = "ITEM_TYPE_LIST";
@@ -164,8 +322,37 @@ public class IabHelper {
      *     is NOT your "developer public key".
      */
     public IabHelper(Context ctx, String base64PublicKey) {
+        this(ctx, base64PublicKey, null, null);
+    }
+
+    /**
+     * Creates an instance that runs its background work and delivers its results through the
+     * given executors. See {@link #setBackgroundExecutor} and {@link #setCallbackExecutor}.
+     *
+     * @param ctx Your application or Activity context. Needed to bind to the in-app billing service.
+     * @param base64PublicKey Your application's public key, encoded in base64.
+     * @param backgroundExecutor Executor for blocking work, or null to use the shared default pool.
+     * @param callbackExecutor Executor for listener callbacks, or null to post back to the thread
+     *     that started each operation.
+     */
+    public IabHelper(Context ctx, String base64PublicKey, Executor backgroundExecutor, Executor callbackExecutor) {
+        this(ctx.getPackageName(), base64PublicKey, backgroundExecutor, callbackExecutor);
         mContext = ctx.getApplicationContext();
+    }
+
+    /**
+     * Creates an instance without a Context, for use with {@link #startSetup(IInAppBillingService,
+     * OnIabSetupFinishedListener)}, e.g. in a test. Binding to Google Play and the inventory
+     * cache aren't available.
+     *
+     * @param packageName The package name reported to the billing service.
+     */
+    IabHelper(String packageName, String base64PublicKey, Executor backgroundExecutor, Executor callbackExecutor) {
+        mPackageName = packageName;
         mSignatureBase64 = base64PublicKey;
+        mVerifier = new PurchaseVerifier(base64PublicKey);
+        mBackgroundExecutor = (backgroundExecutor != null) ? backgroundExecutor : getDefaultExecutor();
+        mCallbackExecutor = callbackExecutor;
         logDebug("IAB helper created.");
     }
 
@@ -184,255 +371,1145 @@ public class IabHelper {
     }
 
     /**
-     * Callback for setup process. This listener's {@link #onIabSetupFinished} method is called
-     * when the setup process is complete.
+     * Sets the executor that runs the blocking part of asynchronous operations (inventory
+     * queries, consumption). By default this is a bounded thread pool shared by every IabHelper.
+     *
+     * @param executor The executor to use, or null to go back to the shared default pool.
      */
-    public interface OnIabSetupFinishedListener {
-        /**
-         * Called to notify that setup is complete.
-         *
-         * @param result The result of the setup process.
-         */
-        public void onIabSetupFinished(IabResult result);
+    public void setBackgroundExecutor(Executor executor) {
+        checkNotDisposed();
+        mBackgroundExecutor = (executor != null) ? executor : getDefaultExecutor();
     }
 
     /**
-     * Starts the setup process. This will start up the setup process asynchronously.
-     * You will be notified through the listener when the setup process is complete.
-     * This method is safe to call from a UI thread.
+     * Sets the executor that listener callbacks of asynchronous operations are delivered through.
+     * By default each result is posted back to the thread that started the operation, which must
+     * have a Looper. Purchase flows that had to wait on another operation are launched through
+     * this executor too, so it should run tasks on the UI thread if you launch purchases.
      *
-     * @param listener The listener to notify when the setup process is complete.
+     * @param executor The executor to use, or null to post back to the calling thread.
      */
-    public void startSetup(final OnIabSetupFinishedListener listener) {
-        // If already set up, can't do it again.
+    public void setCallbackExecutor(Executor executor) {
         checkNotDisposed();
-        if (mSetupDone) throw new IllegalStateException("IAB helper is already set up.");
-
-        // Connection to IAB service
-        logDebug("Starting in-app billing setup.");
-        mServiceConn = new ServiceConnection() {
-            @Override
-            public void onServiceDisconnected(ComponentName name) {
-                logDebug("Billing service disconnected.");
-                mService = null;
-            }
+        mCallbackExecutor = executor;
+    }
 
-            @Override
-            public void onServiceConnected(ComponentName name, IBinder service) {
-                if (mDisposed) return;
-                logDebug("Billing service connected.");
-                mService = IInAppBillingService.Stub.asInterface(service);
-                String packageName = mContext.getPackageName();
-                try {
-                    logDebug("Checking for in-app billing 3 support.");
+    /**
+     * Sets how many purchases {@link #consumeAsync(List, OnConsumeMultiFinishedListener)} consumes
+     * concurrently. Each consumption is a separate round trip to the billing service, so a larger
+     * batch finishes sooner when several are in flight at once. Defaults to 4.
+     *
+     * @param parallelism The maximum number of concurrent consumptions (at least 1).
+     */
+    public void setConsumeParallelism(int parallelism) {
+        checkNotDisposed();
+        if (parallelism < 1) throw new IllegalArgumentException("Consume parallelism must be at least 1.");
+        mConsumeParallelism = parallelism;
+    }
 
-                    // check for in-app billing v3 support
-                    int response = mService.isBillingSupported(3, packageName, ITEM_TYPE_INAPP);
-                    if (response != BILLING_RESPONSE_RESULT_OK) {
-                        if (listener != null) listener.onIabSetupFinished(new IabResult(response,
-                                "Error checking for billing v3 support."));
+    /**
+     * Sets how long each asynchronous operation may take once it has started, including any wait
+     * for the billing service to reconnect. An operation that runs out of time is reported with
+     * {@link #IABHELPER_TIMEOUT} and gives up its place in the queue, so operations waiting on it
+     * can go ahead. A service call it was blocked on is left to finish (or hang) on its own
+     * thread. Defaults to {@link #DEFAULT_ASYNC_TIMEOUT_MILLIS}.
+     *
+     * @param timeout The time limit, or 0 for none.
+     * @param unit The unit of the time limit.
+     */
+    public void setAsyncTimeout(long timeout, TimeUnit unit) {
+        checkNotDisposed();
+        mAsyncTimeout = unit.toMillis(timeout);
+    }
 
-                        // if in-app purchases aren't supported, neither are subscriptions.
-                        mSubscriptionsSupported = false;
-                        return;
-                    }
-                    logDebug("In-app billing version 3 supported for " + packageName);
+    /**
+     * Keeps the inventory from each successful query on disk. The cached inventory is available
+     * through {@link #getCachedInventory} straight after construction, and while it is younger
+     * than the given TTL, {@link #queryInventoryAsync} answers from it instead of asking the
+     * billing service. Cached purchases are verified again whenever the cache is read back.
+     * Every helper in the process that enables the cache shares it.
+     *
+     * @param ttlMillis How long a cached inventory is considered fresh, in milliseconds.
+     *     See {@link #DEFAULT_INVENTORY_CACHE_TTL}.
+     */
+    public void enableInventoryCache(long ttlMillis) {
+        checkNotDisposed();
+        if (mContext == null) throw new IllegalStateException("The inventory cache needs a Context.");
+        if (mInventoryCache == null) {
+            mInventoryCache = InventoryCache.get(new File(mContext.getFilesDir(), INVENTORY_CACHE_FILE), mVerifier);
+        }
+        mInventoryCacheTtl = ttlMillis;
+    }
 
-                    // check for v3 subscriptions support
-                    response = mService.isBillingSupported(3, packageName, ITEM_TYPE_SUBS);
-                    if (response == BILLING_RESPONSE_RESULT_OK) {
-                        logDebug("Subscriptions AVAILABLE.");
-                        mSubscriptionsSupported = true;
-                    }
-                    else {
-                        logDebug("Subscriptions NOT AVAILABLE. Response: " + response);
-                    }
+    /**
+     * Journals purchases of the given consumable SKUs on disk from the moment they are verified
+     * until they are consumed. If the process dies in between, setup consumes whatever was left
+     * pending before any other operation can start (in parallel, as with
+     * {@link #consumeAsync(List, OnConsumeMultiFinishedListener)}), instead of leaving it to
+     * the next inventory query to rediscover. Call this before {@link #startSetup}.
+     *
+     * @param consumableSkus The SKUs that are consumed after purchase.
+     * @param recoveryListener Notified with the consumptions recovered at setup, so the app can
+     *     grant what was bought. A purchase whose result is
+     *     {@link #BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED} had already been consumed, and the app
+     *     told so; one consumed by a call that timed out is reported as a success. Purchases in
+     *     the journal are verified again before being consumed, and dropped if they fail. May be null.
+     */
+    public void enableConsumptionJournal(Collection<String> consumableSkus,
+                                         OnConsumeMultiFinishedListener recoveryListener) {
+        checkNotDisposed();
+        if (mContext == null) throw new IllegalStateException("The consumption journal needs a Context.");
+        if (mConsumptionJournal == null) {
+            mConsumptionJournal = ConsumptionJournal.get(new File(mContext.getFilesDir(), CONSUMPTION_JOURNAL_FILE));
+        }
+        synchronized (mConsumableSkus) {
+            mConsumableSkus.clear();
+            mConsumableSkus.addAll(consumableSkus);
+        }
+        mRecoveryListener = recoveryListener;
+    }
 
-                    mSetupDone = true;
-                }
-                catch (RemoteException e) {
-                    if (listener != null) {
-                        listener.onIabSetupFinished(new IabResult(IABHELPER_REMOTE_EXCEPTION,
-                                                    "RemoteException while setting up in-app billing."));
-                    }
-                    e.printStackTrace();
-                    return;
-                }
+    // Journals the purchase on the background executor if it's consumable, as the record is
+    // synced to disk
+    void journalPurchase(final Purchase purchase) {
+        final ConsumptionJournal journal = mConsumptionJournal;
+        if (journal == null) return;
+        synchronized (mConsumableSkus) {
+            if (!mConsumableSkus.contains(purchase.getSku())) return;
+        }
 
-                if (listener != null) {
-                    listener.onIabSetupFinished(new IabResult(BILLING_RESPONSE_RESULT_OK, "Setup successful."));
+        final String token = purchase.getToken();
+        FutureTask<Void> write = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                journal.addPending(purchase);
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                synchronized (mJournalWrites) {
+                    if (mJournalWrites.get(token) == this) mJournalWrites.remove(token);
                 }
             }
         };
+        synchronized (mJournalWrites) {
+            mJournalWrites.put(token, write);
+        }
+        mBackgroundExecutor.execute(write);
+    }
 
-        Intent serviceIntent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
-        serviceIntent.setPackage("com.android.vending");
-        List<ResolveInfo> ri = mContext.getPackageManager().queryIntentServices(serviceIntent, 0);
+    // Waits until the purchase with the given token is journaled, if that's under way, so it
+    // can't be struck off the journal before it's on it
+    void awaitJournalWrite(String token) {
+        FutureTask<Void> write;
+        synchronized (mJournalWrites) {
+            write = mJournalWrites.get(token);
+        }
+        if (write == null) return;
 
-        if (ri != null && !ri.isEmpty()) {
-            // service available to handle that Intent
-            mIsBound = mContext.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE);
+        // No-op if the background executor already ran (or is running) it
+        write.run();
+        try {
+            write.get();
         }
-        else {
-            // no service available to handle that Intent
-            if (listener != null) {
-                listener.onIabSetupFinished(
-                        new IabResult(BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
-                        "Billing service unavailable on device."));
-            }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            logWarn("Unable to journal purchase: " + e.getCause());
         }
     }
 
+    // Consumes whatever the journal still holds, ahead of any operation submitted after this.
+    // The journal is read on the background executor, holding up everything else until then.
+    // Its purchases are verified again first, as the file could have been tampered with.
+    void recoverConsumptions() {
+        final ConsumptionJournal journal = mConsumptionJournal;
+        if (journal == null) return;
+        final Executor callback = getCallbackExecutor();
+        final OnConsumeMultiFinishedListener listener = mRecoveryListener;
+        mAsyncQueue.submit("recover consumptions", IabAsyncQueue.EXCLUSIVE, callback, new IabAsyncQueue.Operation() {
+            @Override
+            public void start(final IabAsyncQueue.Ticket ticket) {
+                mBackgroundExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Purchase> pending = new ArrayList<Purchase>();
+                        for (Purchase p : journal.getPending()) {
+                            if (verifyPurchase(p.getOriginalJson(), p.getSignature())) {
+                                pending.add(p);
+                            }
+                            else {
+                                logWarn("Journaled purchase of sku " + p.getSku() + " failed verification, dropping it.");
+                                journal.markConsumed(p.getToken());
+                            }
+                        }
+                        if (pending.isEmpty() || mDisposed) {
+                            ticket.finish(null);
+                            return;
+                        }
+                        logDebug("Recovering " + pending.size() + " pending consumption(s).");
+                        newConsumeOperation(callback, pending, null, listener).start(ticket);
+                    }
+                });
+            }
+        });
+    }
+
     /**
-     * Dispose of object, releasing resources. It's very important to call this
-     * method when you are done with this object. It will release any resources
-     * used by it such as service connections. Naturally, once the object is
-     * disposed of, it can't be used again.
+     * Returns the last inventory saved by the cache, however old it is. This reads a small file and
+     * verifies the cached purchases the first time it is called, but doesn't need setup to be done
+     * and doesn't talk to the billing service.
+     *
+     * @return The cached inventory, or null if caching is disabled or nothing valid was cached.
      */
-    public void dispose() {
-        logDebug("Disposing.");
-        mSetupDone = false;
-        if (mServiceConn != null) {
-            logDebug("Unbinding from service.");
-            if (mContext != null && mIsBound) {
-                mContext.unbindService(mServiceConn);
-            }
-        }
-        mDisposed = true;
-        mContext = null;
-        mServiceConn = null;
-        mService = null;
-        mPurchaseListener = null;
+    public Inventory getCachedInventory() {
+        checkNotDisposed();
+        Inventory inv = (mInventoryCache == null) ? null : mInventoryCache.get();
+        if (inv != null) updateEntitlements(inv);
+        return inv;
     }
 
-    private void checkNotDisposed() {
-        if (mDisposed) throw new IllegalStateException("IabHelper was disposed of, so it cannot be used.");
+    /**
+     * Sets whether signature verification results are saved with the inventory cache. Purchases
+     * are verified once and remembered (by digest) for the lifetime of this object; with this
+     * enabled, that memory also survives restarts, so unchanged purchases skip the RSA check
+     * entirely. The saved results are sealed with a key kept in the Android keystore and are
+     * ignored if the seal doesn't check out, so editing the file can't make a purchase pass.
+     * The keystore can only hold that key from Android 6.0 on; before that, this does nothing.
+     * Requires {@link #enableInventoryCache}.
+     */
+    public void setPersistVerificationResults(boolean persist) {
+        checkNotDisposed();
+        if (mInventoryCache == null) throw new IllegalStateException("Inventory cache is not enabled.");
+        mInventoryCache.setPersistVerifications(persist);
     }
 
-    /** Returns whether subscriptions are supported. */
-    public boolean subscriptionsSupported() {
+    /**
+     * Sets whether {@link #queryInventory} queries products and subscriptions at the same time
+     * rather than one after the other. The results and the errors reported are the same either way
+     * (an error for products is reported ahead of one for subscriptions), but the query takes about
+     * as long as the slower of the two instead of both added together. Off by default.
+     */
+    public void setParallelInventoryQueries(boolean parallel) {
         checkNotDisposed();
-        return mSubscriptionsSupported;
+        mParallelInventoryQueries = parallel;
     }
 
+    /**
+     * Sets whether {@link #handleActivityResult} parses and verifies a completed purchase on the
+     * background executor. The RSA check then no longer holds up the UI thread right after
+     * checkout: handleActivityResult() returns straight away, and the purchase listener is called
+     * through the callback executor (see {@link #setCallbackExecutor}) once the purchase is
+     * verified. Cancelled and failed purchases are still reported before it returns. Off by default.
+     */
+    public void setVerifyPurchasesInBackground(boolean background) {
+        checkNotDisposed();
+        mVerifyPurchasesInBackground = background;
+    }
 
     /**
-     * Callback that notifies when a purchase is finished.
+     * Listener notified when the purchases owned change.
      */
-    public interface OnIabPurchaseFinishedListener {
+    public interface OnEntitlementsChangedListener {
         /**
-         * Called to notify that an in-app purchase finished. If the purchase was successful,
-         * then the sku parameter specifies which item was purchased. If the purchase failed,
-         * the sku and extraData parameters may or may not be null, depending on how far the purchase
-         * process went.
+         * Called when purchases were added, removed or changed since the last inventory.
          *
-         * @param result The result of the purchase.
-         * @param info The purchase information (null if purchase failed)
+         * @param delta What changed.
+         * @param inventory Everything owned now. SKU details may be missing.
          */
-        public void onIabPurchaseFinished(IabResult result, Purchase info);
+        public void onEntitlementsChanged(InventoryDelta delta, Inventory inventory);
     }
 
-    // The listener registered on launchPurchaseFlow, which we have to call back when
-    // the purchase finishes
-    OnIabPurchaseFinishedListener mPurchaseListener;
+    /**
+     * Sets the listener notified when the purchases owned change, so expensive work that depends
+     * on entitlements only runs when they actually change. Every inventory the helper comes across
+     * (queries, the inventory cache, including {@link #getCachedInventory}) is compared with the
+     * previous one, and completed purchases and consumptions are applied to it as they happen.
+     * The first inventory is compared with an empty one.
+     *
+     * The listener is notified through the callback executor (see {@link #setCallbackExecutor}),
+     * or on this thread's Looper if there is none.
+     *
+     * @param listener The listener, or null to stop notifying.
+     */
+    public void setOnEntitlementsChangedListener(OnEntitlementsChangedListener listener) {
+        checkNotDisposed();
+        Executor executor = (listener == null) ? null : getCallbackExecutor();
+        synchronized (mEntitlementsLock) {
+            mEntitlementsListener = listener;
+            mEntitlementsExecutor = executor;
+        }
+    }
 
-    public void launchPurchaseFlow(Activity act, String sku, int requestCode, OnIabPurchaseFinishedListener listener) {
-        launchPurchaseFlow(act, sku, requestCode, listener, "");
+    // Compares the inventory with the previous one, notifying the listener of any change
+    void updateEntitlements(Inventory inv) {
+        synchronized (mEntitlementsLock) {
+            Inventory previous = mEntitlements;
+            mEntitlements = InventoryCache.copyOf(inv);
+
+            final OnEntitlementsChangedListener listener = mEntitlementsListener;
+            if (listener == null) return;
+            final InventoryDelta delta = InventoryDelta.between(previous, inv);
+            if (delta.isEmpty()) return;
+            logDebug("Entitlements changed. " + delta);
+
+            // Notify while holding the lock, so changes are reported in order
+            final Inventory inv_f = InventoryCache.copyOf(inv);
+            mEntitlementsExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mDisposed) listener.onEntitlementsChanged(delta, inv_f);
+                }
+            });
+        }
     }
 
-    public void launchPurchaseFlow(Activity act, String sku, int requestCode,
-            OnIabPurchaseFinishedListener listener, String extraData) {
-        launchPurchaseFlow(act, sku, ITEM_TYPE_INAPP, requestCode, listener, extraData);
+    // Returns whether the SKU is among the purchases last reported
+    boolean isOwned(String sku) {
+        synchronized (mEntitlementsLock) {
+            return mEntitlements != null && mEntitlements.hasPurchase(sku);
+        }
     }
 
-    public void launchSubscriptionPurchaseFlow(Activity act, String sku, int requestCode,
-            OnIabPurchaseFinishedListener listener) {
-        launchSubscriptionPurchaseFlow(act, sku, requestCode, listener, "");
+    // Applies a completed purchase or consumption to the last inventory
+    void updateEntitlements(Purchase added, String removedSku) {
+        synchronized (mEntitlementsLock) {
+            Inventory inv = (mEntitlements == null) ? new Inventory() : InventoryCache.copyOf(mEntitlements);
+            if (added != null) inv.addPurchase(added);
+            if (removedSku != null) inv.erasePurchase(removedSku);
+            updateEntitlements(inv);
+        }
     }
 
-    public void launchSubscriptionPurchaseFlow(Activity act, String sku, int requestCode,
-            OnIabPurchaseFinishedListener listener, String extraData) {
-        launchPurchaseFlow(act, sku, ITEM_TYPE_SUBS, requestCode, listener, extraData);
+    /**
+     * Sets how old cached SkuDetails can get before {@link #getSkuDetails} refreshes them.
+     * Defaults to {@link #DEFAULT_SKU_DETAILS_MAX_AGE}.
+     */
+    public void setSkuDetailsMaxAge(long maxAgeMillis) {
+        checkNotDisposed();
+        mSkuDetailsMaxAge = maxAgeMillis;
     }
 
     /**
-     * Initiate the UI flow for an in-app purchase. Call this method to initiate an in-app purchase,
-     * which will involve bringing up the Google Play screen. The calling activity will be paused while
-     * the user interacts with Google Play, and the result will be delivered via the activity's
-     * {@link android.app.Activity#onActivityResult} method, at which point you must call
-     * this object's {@link #handleActivityResult} method to continue the purchase flow. This method
-     * MUST be called from the UI thread of the Activity.
+     * Starts recording how long calls to the billing service, signature verification and waits in
+     * the operation queue take, along with how many pages each purchase query needs. Nothing is
+     * logged; read the figures from the given object whenever you like.
      *
-     * @param act The calling activity.
-     * @param sku The sku of the item to purchase.
-     * @param itemType indicates if it's a product or a subscription (ITEM_TYPE_INAPP or ITEM_TYPE_SUBS)
-     * @param requestCode A request code (to differentiate from other responses --
-     *     as in {@link android.app.Activity#startActivityForResult}).
-     * @param listener The listener to notify when the purchase process finishes
-     * @param extraData Extra data (developer payload), which will be returned with the purchase data
-     *     when the purchase completes. This extra data will be permanently bound to that purchase
-     *     and will always be returned when the purchase is queried.
+     * @param metrics Where to record, or null to stop measuring.
      */
-    public void launchPurchaseFlow(Activity act, String sku, String itemType, int requestCode,
-                        OnIabPurchaseFinishedListener listener, String extraData) {
+    public void setMetrics(IabMetrics metrics) {
         checkNotDisposed();
-        checkSetupDone("launchPurchaseFlow");
-        flagStartAsync("launchPurchaseFlow");
-        IabResult result;
+        mMetrics = metrics;
+    }
 
-        if (itemType.equals(ITEM_TYPE_SUBS) && !mSubscriptionsSupported) {
-            IabResult r = new IabResult(IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE,
-                    "Subscriptions are not available.");
-            flagEndAsync();
-            if (listener != null) listener.onIabPurchaseFinished(r, null);
-            return;
-        }
+    /** Returns the metrics being recorded, or null if not measuring. */
+    public IabMetrics getMetrics() {
+        return mMetrics;
+    }
 
-        try {
-            logDebug("Constructing buy intent for " + sku + ", item type: " + itemType);
-            Bundle buyIntentBundle = mService.getBuyIntent(3, mContext.getPackageName(), sku, itemType, extraData);
-            int response = getResponseCodeFromBundle(buyIntentBundle);
-            if (response != BILLING_RESPONSE_RESULT_OK) {
-                logError("Unable to buy item, Error response: " + getResponseDesc(response));
-                flagEndAsync();
-                result = new IabResult(response, "Unable to buy item");
-                if (listener != null) listener.onIabPurchaseFinished(result, null);
-                return;
-            }
+    // Returns the current time for a metric about to be measured, or 0 if not measuring
+    long metricStart() {
+        return (mMetrics == null) ? 0 : System.nanoTime();
+    }
 
-            PendingIntent pendingIntent = buyIntentBundle.getParcelable(RESPONSE_BUY_INTENT);
-            logDebug("Launching buy intent for " + sku + ". Request code: " + requestCode);
-            mRequestCode = requestCode;
-            mPurchaseListener = listener;
-            mPurchasingItemType = itemType;
-            act.startIntentSenderForResult(pendingIntent.getIntentSender(),
-                                           requestCode, new Intent(),
-                                           Integer.valueOf(0), Integer.valueOf(0),
-                                           Integer.valueOf(0));
-        }
-        catch (SendIntentException e) {
-            logError("SendIntentException while launching purchase flow for sku " + sku);
-            e.printStackTrace();
-            flagEndAsync();
+    // Records the time elapsed since metricStart() returned the given start
+    void metricEnd(int metric, long start) {
+        IabMetrics metrics = mMetrics;
+        if (metrics != null && start != 0) metrics.recordSince(metric, start);
+    }
 
-            result = new IabResult(IABHELPER_SEND_INTENT_FAILED, "Failed to send intent.");
-            if (listener != null) listener.onIabPurchaseFinished(result, null);
+    // Verifies a purchase signature, timing the check
+    boolean verifyPurchase(String signedData, String signature) {
+        long start = metricStart();
+        boolean verified = mVerifier.verify(signedData, signature);
+        metricEnd(IabMetrics.VERIFY_PURCHASE, start);
+        return verified;
+    }
+
+    // Returns the thread pool shared by instances without their own background executor
+    static synchronized Executor getDefaultExecutor() {
+        if (sDefaultExecutor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_POOL_SIZE, DEFAULT_POOL_SIZE,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "IabHelper #" + mCount.getAndIncrement());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            sDefaultExecutor = pool;
         }
-        catch (RemoteException e) {
-            logError("RemoteException while launching purchase flow for sku " + sku);
-            e.printStackTrace();
-            flagEndAsync();
+        return sDefaultExecutor;
+    }
 
-            result = new IabResult(IABHELPER_REMOTE_EXCEPTION, "Remote exception while starting purchase flow");
-            if (listener != null) listener.onIabPurchaseFinished(result, null);
+    // Returns the threads service calls under a deadline are made on. A call that hangs holds its
+    // thread until the service answers, so once all of them are taken, further calls are
+    // rejected rather than queued behind the hung ones.
+    static synchronized Executor getServiceCallExecutor() {
+        if (sServiceCallExecutor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(0, MAX_SERVICE_CALL_THREADS,
+                    30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "IabHelper call #" + mCount.getAndIncrement());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            sServiceCallExecutor = pool;
         }
+        return sServiceCallExecutor;
     }
 
-    /**
-     * Handles an activity result that's part of the purchase flow in in-app billing. If you
-     * are calling {@link #launchPurchaseFlow}, then you must call this method from your
-     * Activity's {@link android.app.Activity@onActivityResult} method. This method
-     * MUST be called from the UI thread of the Activity.
+    // Returns an executor that runs tasks on the calling thread. Future-based operations each get
+    // their own, so the queue never holds one back for another's delivery order.
+    static Executor newDirectExecutor() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                r.run();
+            }
+        };
+    }
+
+    // Returns the executor that results of an operation started on this thread go through
+    Executor getCallbackExecutor() {
+        if (mCallbackExecutor != null) return mCallbackExecutor;
+
+        Looper looper = Looper.myLooper();
+        if (looper == null) {
+            throw new IllegalStateException("Can't start an asynchronous operation from a thread without a Looper "
+                    + "unless a callback executor is set.");
+        }
+        synchronized (mLooperExecutors) {
+            Executor executor = mLooperExecutors.get(looper);
+            if (executor == null) {
+                final Handler handler = new Handler(looper);
+                executor = new Executor() {
+                    @Override
+                    public void execute(Runnable r) {
+                        handler.post(r);
+                    }
+                };
+                mLooperExecutors.put(looper, executor);
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Callback for setup process. This listener's {@link #onIabSetupFinished} method is called
+     * when the setup process is complete.
+     */
+    public interface OnIabSetupFinishedListener {
+        /**
+         * Called to notify that setup is complete.
+         *
+         * @param result The result of the setup process.
+         */
+        public void onIabSetupFinished(IabResult result);
+    }
+
+    /**
+     * Starts the setup process. This will start up the setup process asynchronously.
+     * You will be notified through the listener when the setup process is complete.
+     * This method is safe to call from a UI thread.
+     *
+     * The connection to the billing service is shared by every helper in the process, and so
+     * are the checks for billing support. If another helper is already set up, this one is too
+     * by the time this method returns, and the listener has been called.
+     *
+     * @param listener The listener to notify when the setup process is complete.
+     */
+    public void startSetup(final OnIabSetupFinishedListener listener) {
+        // If already set up, can't do it again.
+        checkNotDisposed();
+        if (mSetupDone || mConnection != null) throw new IllegalStateException("IAB helper is already set up.");
+
+        // Connection to IAB service
+        logDebug("Starting in-app billing setup.");
+        mSetupListener = listener;
+        mConnection = IabConnection.get(mContext);
+        mConnection.acquire(this);
+    }
+
+    /**
+     * Sets up against the given service instead of binding to Google Play, e.g. with a fake
+     * service in a test. Setup finishes before this method returns.
+     *
+     * @param service The service to use.
+     * @param listener The listener to notify when the setup process is complete.
+     */
+    void startSetup(IInAppBillingService service, OnIabSetupFinishedListener listener) {
+        checkNotDisposed();
+        if (mSetupDone) throw new IllegalStateException("IAB helper is already set up.");
+        logDebug("Starting in-app billing setup with a given service.");
+        mSetupListener = listener;
+        IabResult result = probeBillingSupport(service);
+        onBillingConnected(service, result, mSubscriptionsSupported);
+    }
+
+    // Probes the newly connected service for in-app billing and subscription support, and
+    // returns the outcome of setup
+    IabResult probeBillingSupport(IInAppBillingService service) {
+        String packageName = mPackageName;
+        try {
+            logDebug("Checking for in-app billing 3 support.");
+
+            // check for in-app billing v3 support
+            int response;
+            long start = metricStart();
+            try {
+                response = callService(service, isBillingSupportedCall(ITEM_TYPE_INAPP));
+            }
+            finally {
+                metricEnd(IabMetrics.CALL_IS_BILLING_SUPPORTED, start);
+            }
+            if (response != BILLING_RESPONSE_RESULT_OK) {
+                // if in-app purchases aren't supported, neither are subscriptions.
+                mSubscriptionsSupported = false;
+                return new IabResult(response, "Error checking for billing v3 support.");
+            }
+            logDebug("In-app billing version 3 supported for " + packageName);
+
+            // check for v3 subscriptions support
+            start = metricStart();
+            try {
+                response = callService(service, isBillingSupportedCall(ITEM_TYPE_SUBS));
+            }
+            finally {
+                metricEnd(IabMetrics.CALL_IS_BILLING_SUPPORTED, start);
+            }
+            if (response == BILLING_RESPONSE_RESULT_OK) {
+                logDebug("Subscriptions AVAILABLE.");
+                mSubscriptionsSupported = true;
+            }
+            else {
+                logDebug("Subscriptions NOT AVAILABLE. Response: " + response);
+                mSubscriptionsSupported = false;
+            }
+        }
+        catch (RemoteException e) {
+            e.printStackTrace();
+            return remoteError(e, "RemoteException while setting up in-app billing.").getResult();
+        }
+        return new IabResult(BILLING_RESPONSE_RESULT_OK, "Setup successful.");
+    }
+
+    // Called when the service has been connected (again) and probed. The first time, this
+    // finishes setup and reports the outcome to the listener; after that, it only swaps the
+    // service. A helper whose setup failed lets go of the connection, so that setup can be
+    // started again.
+    void onBillingConnected(IInAppBillingService service, IabResult result, boolean subscriptionsSupported) {
+        if (mDisposed) return;
+        logDebug("Billing service connected.");
+        mService = service;
+        mSubscriptionsSupported = subscriptionsSupported;
+        if (mSetupDone) {
+            // Catch up on the buy intents that couldn't be fetched while disconnected
+            prefetchBuyIntents(null);
+            return;
+        }
+
+        OnIabSetupFinishedListener listener = mSetupListener;
+        mSetupListener = null;
+        if (result.isSuccess()) {
+            mSetupDone = true;
+
+            // Anything the listener starts queues up behind the recovery
+            recoverConsumptions();
+            prefetchBuyIntents(null);
+        }
+        else {
+            mService = null;
+            if (mConnection != null) {
+                mConnection.release(this);
+                mConnection = null;
+            }
+        }
+        if (listener != null) listener.onIabSetupFinished(result);
+    }
+
+    // Called when the service connection was lost, until the shared connection gets it back
+    void onBillingDisconnected() {
+        logDebug("Billing service disconnected.");
+        mService = null;
+    }
+
+    // Returns the service to call. While the shared connection is reconnecting, this waits for it
+    // on background threads, but fails straight away on the main thread, which the reconnection
+    // itself needs.
+    IInAppBillingService getService() throws RemoteException {
+        IInAppBillingService service = mService;
+        if (service != null) return service;
+        return awaitService();
+    }
+
+    // Waits for the shared connection to have the service again, as getService() does when this
+    // helper has none
+    IInAppBillingService awaitService() throws RemoteException {
+        IInAppBillingService service = null;
+        if (mConnection != null && Looper.myLooper() != Looper.getMainLooper()) {
+            logDebug("Waiting for billing service to reconnect.");
+            try {
+                service = mConnection.awaitService(Math.min(RECONNECT_TIMEOUT_MILLIS, IabDeadline.remainingMillis()));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (service == null) IabDeadline.check("waiting for the billing service to reconnect");
+        }
+        if (service == null) throw new DeadObjectException("Billing service is disconnected.");
+        return service;
+    }
+
+    /**
+     * A call to the billing service.
+     */
+    interface ServiceCall<T> {
+        T call(IInAppBillingService service) throws RemoteException;
+    }
+
+    /**
+     * Told about a service call that the caller stopped waiting for at its deadline.
+     */
+    interface AbandonedCallListener<T> {
+        // Called on the caller's thread, before it gives up
+        void onCallAbandoned();
+
+        // Called on the call's thread if the service answers after all
+        void onLateResult(T result);
+    }
+
+    <T> T callService(IInAppBillingService service, ServiceCall<T> call) throws RemoteException {
+        return callService(service, call, null);
+    }
+
+    // Makes a call to the service. Under a deadline (see IabDeadline), the call is made on another
+    // thread and this one stops waiting for it when the deadline passes; the call itself can't be
+    // stopped, so it carries on by itself until the service answers, and the listener (if any)
+    // gets what it answers.
+    <T> T callService(final IInAppBillingService service, final ServiceCall<T> call,
+                      final AbandonedCallListener<T> listener) throws RemoteException {
+        long remaining = IabDeadline.remainingMillis();
+        if (remaining == IabDeadline.NONE) return call.call(service);
+        IabDeadline.check("before calling the billing service");
+
+        // Whoever flips this first decides whether the answer is the caller's or a late one
+        final AtomicBoolean waiting = new AtomicBoolean(true);
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws RemoteException {
+                return call.call(service);
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (waiting.compareAndSet(true, false) || listener == null) return;
+                try {
+                    listener.onLateResult(get());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException e) {
+                    logWarn("Billing service call failed after timing out: " + e.getCause());
+                }
+            }
+        };
+        try {
+            getServiceCallExecutor().execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            throw new IabDeadline.ExceededException("Too many billing service calls are waiting for an answer.");
+        }
+        try {
+            try {
+                return task.get(remaining, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                // Answered just as the deadline passed?
+                if (!waiting.compareAndSet(true, false)) return task.get();
+                logWarn("Billing service call timed out after " + remaining + " ms.");
+                if (listener != null) listener.onCallAbandoned();
+                throw new IabDeadline.ExceededException("Timed out waiting for the billing service.");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (waiting.compareAndSet(true, false) && listener != null) listener.onCallAbandoned();
+            throw new RemoteException("Interrupted while waiting for the billing service.");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) throw (RemoteException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    ServiceCall<Integer> isBillingSupportedCall(final String itemType) {
+        return new ServiceCall<Integer>() {
+            @Override
+            public Integer call(IInAppBillingService service) throws RemoteException {
+                return Integer.valueOf(service.isBillingSupported(3, mPackageName, itemType));
+            }
+        };
+    }
+
+    // Turns a failed service call into the exception to report, telling a missed deadline apart
+    static IabException remoteError(RemoteException e, String message) {
+        if (e instanceof IabDeadline.ExceededException) {
+            return new IabException(IABHELPER_TIMEOUT, e.getMessage(), e);
+        }
+        return new IabException(IABHELPER_REMOTE_EXCEPTION, message, e);
+    }
+
+    // Returns the deadline of an asynchronous operation starting now
+    long asyncDeadline() {
+        return IabDeadline.fromNow(mAsyncTimeout);
+    }
+
+    // Called when a call to the service failed because the service's process died. Returns the
+    // service to retry the call with once it's reconnected, or rethrows if it can't be waited for.
+    // Only calls that are safe to repeat (reads) should be retried.
+    IInAppBillingService reconnect(IInAppBillingService dead, DeadObjectException e) throws RemoteException {
+        if (mConnection == null || Looper.myLooper() == Looper.getMainLooper()) throw e;
+        logWarn("Billing service died, retrying once it's back.");
+        mConnection.serviceDied(dead);
+
+        // This helper is only told on the main thread, so don't go by its service
+        return awaitService();
+    }
+
+    /**
+     * Dispose of object, releasing resources. It's very important to call this
+     * method when you are done with this object. It will release any resources
+     * used by it such as service connections. Naturally, once the object is
+     * disposed of, it can't be used again.
+     */
+    public void dispose() {
+        logDebug("Disposing.");
+        mSetupDone = false;
+        if (mConnection != null) {
+            logDebug("Releasing service connection.");
+            mConnection.release(this);
+        }
+        mDisposed = true;
+        if (mPurchaseTicket != null) mPurchaseTicket.finish(null);
+        mAsyncQueue.clear();
+        mPurchaseTicket = null;
+        synchronized (mLooperExecutors) {
+            mLooperExecutors.clear();
+        }
+        synchronized (mEntitlementsLock) {
+            mEntitlementsListener = null;
+            mEntitlementsExecutor = null;
+        }
+        synchronized (mBuyIntents) {
+            mBuyIntents.clear();
+        }
+        mContext = null;
+        mConnection = null;
+        mSetupListener = null;
+        mService = null;
+        mPurchaseListener = null;
+        mPurchaseActivity = null;
+    }
+
+    private void checkNotDisposed() {
+        if (mDisposed) throw new IllegalStateException("IabHelper was disposed of, so it cannot be used.");
+    }
+
+    /** Returns whether subscriptions are supported. */
+    public boolean subscriptionsSupported() {
+        checkNotDisposed();
+        return mSubscriptionsSupported;
+    }
+
+
+    /**
+     * Callback that notifies when a purchase is finished.
+     */
+    public interface OnIabPurchaseFinishedListener {
+        /**
+         * Called to notify that an in-app purchase finished. If the purchase was successful,
+         * then the sku parameter specifies which item was purchased. If the purchase failed,
+         * the sku and extraData parameters may or may not be null, depending on how far the purchase
+         * process went.
+         *
+         * @param result The result of the purchase.
+         * @param info The purchase information (null if purchase failed)
+         */
+        public void onIabPurchaseFinished(IabResult result, Purchase info);
+    }
+
+    // The listener registered on launchPurchaseFlow, which we have to call back when
+    // the purchase finishes
+    OnIabPurchaseFinishedListener mPurchaseListener;
+
+    public void launchPurchaseFlow(Activity act, String sku, int requestCode, OnIabPurchaseFinishedListener listener) {
+        launchPurchaseFlow(act, sku, requestCode, listener, "");
+    }
+
+    public void launchPurchaseFlow(Activity act, String sku, int requestCode,
+            OnIabPurchaseFinishedListener listener, String extraData) {
+        launchPurchaseFlow(act, sku, ITEM_TYPE_INAPP, requestCode, listener, extraData);
+    }
+
+    public void launchSubscriptionPurchaseFlow(Activity act, String sku, int requestCode,
+            OnIabPurchaseFinishedListener listener) {
+        launchSubscriptionPurchaseFlow(act, sku, requestCode, listener, "");
+    }
+
+    public void launchSubscriptionPurchaseFlow(Activity act, String sku, int requestCode,
+            OnIabPurchaseFinishedListener listener, String extraData) {
+        launchPurchaseFlow(act, sku, ITEM_TYPE_SUBS, requestCode, listener, extraData);
+    }
+
+    /**
+     * Initiate the UI flow for an in-app purchase. Call this method to initiate an in-app purchase,
+     * which will involve bringing up the Google Play screen. The calling activity will be paused while
+     * the user interacts with Google Play, and the result will be delivered via the activity's
+     * {@link android.app.Activity#onActivityResult} method, at which point you must call
+     * this object's {@link #handleActivityResult} method to continue the purchase flow. This method
+     * MUST be called from the UI thread of the Activity.
+     *
+     * @param act The calling activity.
+     * @param sku The sku of the item to purchase.
+     * @param itemType indicates if it's a product or a subscription (ITEM_TYPE_INAPP or ITEM_TYPE_SUBS)
+     * @param requestCode A request code (to differentiate from other responses --
+     *     as in {@link android.app.Activity#startActivityForResult}).
+     * @param listener The listener to notify when the purchase process finishes
+     * @param extraData Extra data (developer payload), which will be returned with the purchase data
+     *     when the purchase completes. This extra data will be permanently bound to that purchase
+     *     and will always be returned when the purchase is queried.
+     *
+     * If a purchase flow was launched and its activity can still get the result, e.g. the user
+     * tapped twice, this flow is rejected: its listener gets {@link #IABHELPER_PURCHASE_IN_PROGRESS}
+     * and the one in progress goes on. If that activity is finishing or gone, the result isn't
+     * coming anymore, so the old flow is given up on: its listener gets
+     * {@link #IABHELPER_UNKNOWN_PURCHASE_RESPONSE} and this flow goes ahead. If the same sku is
+     * being consumed, or a purchase flow is still waiting to be launched, the flow is launched on
+     * this thread as soon as that operation finishes.
+     */
+    public void launchPurchaseFlow(final Activity act, final String sku, final String itemType,
+                        final int requestCode, final OnIabPurchaseFinishedListener listener,
+                        final String extraData) {
+        checkNotDisposed();
+        checkSetupDone("launchPurchaseFlow");
+        final Executor callback = getCallbackExecutor();
+        if (isPurchaseFlowLive()) {
+            logWarn("Purchase flow for " + sku + " rejected, another one is in progress.");
+            IabResult r = new IabResult(IABHELPER_PURCHASE_IN_PROGRESS, "Another purchase flow is in progress.");
+            if (listener != null) listener.onIabPurchaseFinished(r, null);
+            return;
+        }
+        abandonPurchaseFlow();
+        final boolean[] submitting = { true };
+        List<String> keys = new ArrayList<String>();
+        keys.add(PURCHASE_FLOW_KEY);
+        keys.add(sku);
+
+        // Waiting on the user can take forever, so nothing the caller starts later waits for it
+        mAsyncQueue.submit("launchPurchaseFlow", keys, false, callback, new IabAsyncQueue.Operation() {
+            @Override
+            public void start(final IabAsyncQueue.Ticket ticket) {
+                if (submitting[0]) {
+                    launchPurchaseFlowInternal(ticket, act, sku, itemType, requestCode, listener, extraData);
+                    return;
+                }
+
+                // We had to wait for a conflicting operation, so get back onto the calling thread
+                callback.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        launchPurchaseFlowInternal(ticket, act, sku, itemType, requestCode, listener, extraData);
+                    }
+                });
+            }
+        });
+        submitting[0] = false;
+    }
+
+    void launchPurchaseFlowInternal(final IabAsyncQueue.Ticket ticket, final Activity act, final String sku,
+                        final String itemType, final int requestCode,
+                        final OnIabPurchaseFinishedListener listener, final String extraData) {
+        IabResult result;
+
+        if (mDisposed) {
+            ticket.finish(null);
+            return;
+        }
+
+        if (itemType.equals(ITEM_TYPE_SUBS) && !mSubscriptionsSupported) {
+            IabResult r = new IabResult(IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE,
+                    "Subscriptions are not available.");
+            ticket.finish(null);
+            if (listener != null) listener.onIabPurchaseFinished(r, null);
+            return;
+        }
+
+        // A prefetched buy intent spares us the round trip to the service
+        PendingIntent pendingIntent = takePrefetchedBuyIntent(sku, itemType, extraData);
+
+        // Otherwise, hold the flow (and whatever is queued behind it) until the service is back
+        if (pendingIntent == null && mService == null && mConnection != null) {
+            boolean held = mConnection.runWhenConnected(new Runnable() {
+                @Override
+                public void run() {
+                    launchPurchaseFlowInternal(ticket, act, sku, itemType, requestCode, listener, extraData);
+                }
+            });
+            if (held) {
+                logDebug("Billing service disconnected, purchase flow for " + sku + " waits for it.");
+                return;
+            }
+        }
+
+        try {
+            if (pendingIntent == null) {
+                logDebug("Constructing buy intent for " + sku + ", item type: " + itemType);
+                Bundle buyIntentBundle = getBuyIntent(sku, itemType, extraData);
+                int response = getResponseCodeFromBundle(buyIntentBundle);
+                if (response != BILLING_RESPONSE_RESULT_OK) {
+                    logError("Unable to buy item, Error response: " + getResponseDesc(response));
+                    ticket.finish(null);
+                    result = new IabResult(response, "Unable to buy item");
+                    if (listener != null) listener.onIabPurchaseFinished(result, null);
+                    return;
+                }
+                pendingIntent = buyIntentBundle.getParcelable(RESPONSE_BUY_INTENT);
+            }
+            else {
+                logDebug("Using prefetched buy intent for " + sku + ".");
+            }
+
+            logDebug("Launching buy intent for " + sku + ". Request code: " + requestCode);
+            mRequestCode = requestCode;
+            mPurchaseTicket = ticket;
+            mPurchaseListener = listener;
+            mPurchasingItemType = itemType;
+            mPurchaseActivity = new WeakReference<Activity>(act);
+            act.startIntentSenderForResult(pendingIntent.getIntentSender(),
+                                           requestCode, new Intent(),
+                                           Integer.valueOf(0), Integer.valueOf(0),
+                                           Integer.valueOf(0));
+        }
+        catch (SendIntentException e) {
+            logError("SendIntentException while launching purchase flow for sku " + sku);
+            e.printStackTrace();
+            mPurchaseTicket = null;
+            ticket.finish(null);
+
+            result = new IabResult(IABHELPER_SEND_INTENT_FAILED, "Failed to send intent.");
+            if (listener != null) listener.onIabPurchaseFinished(result, null);
+        }
+        catch (RemoteException e) {
+            logError("RemoteException while launching purchase flow for sku " + sku);
+            e.printStackTrace();
+            mPurchaseTicket = null;
+            ticket.finish(null);
+
+            result = remoteError(e, "Remote exception while starting purchase flow").getResult();
+            if (listener != null) listener.onIabPurchaseFinished(result, null);
+        }
+    }
+
+    // Whether the launched purchase flow can still get its result, i.e. the activity it was
+    // launched from is still around to receive it
+    boolean isPurchaseFlowLive() {
+        if (mPurchaseTicket == null) return false;
+        Activity act = (mPurchaseActivity != null) ? mPurchaseActivity.get() : null;
+        if (act == null || act.isFinishing()) return false;
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1 || !act.isDestroyed();
+    }
+
+    // Gives up on the launched purchase flow that is still waiting on handleActivityResult(), if
+    // any, as its result isn't coming anymore. A purchase may have gone through regardless, so the
+    // next inventory query goes to the service.
+    void abandonPurchaseFlow() {
+        IabAsyncQueue.Ticket ticket = mPurchaseTicket;
+        if (ticket == null) return;
+        OnIabPurchaseFinishedListener listener = mPurchaseListener;
+        mPurchaseTicket = null;
+        mPurchaseListener = null;
+        mPurchaseActivity = null;
+        logWarn("Purchase flow never got its activity result, giving up on it.");
+        ticket.finish(null);
+        invalidateInventoryCache();
+        endInventoryFlight(null);
+        if (listener != null) {
+            IabResult result = new IabResult(IABHELPER_UNKNOWN_PURCHASE_RESPONSE,
+                    "Purchase flow was abandoned without a result.");
+            listener.onIabPurchaseFinished(result, null);
+        }
+    }
+
+    Bundle getBuyIntent(final String sku, final String itemType, final String extraData) throws RemoteException {
+        long start = metricStart();
+        try {
+            return callService(getService(), new ServiceCall<Bundle>() {
+                @Override
+                public Bundle call(IInAppBillingService service) throws RemoteException {
+                    return service.getBuyIntent(3, mPackageName, sku, itemType, extraData);
+                }
+            });
+        }
+        finally {
+            metricEnd(IabMetrics.CALL_GET_BUY_INTENT, start);
+        }
+    }
+
+    // A buy intent fetched ahead of launchPurchaseFlow(), guarded by mBuyIntents
+    static class BuyIntentPrefetch {
+        final String mSku;
+        final String mItemType;
+        final String mExtraData;
+
+        // The intent and when it was fetched (SystemClock.elapsedRealtime), or null if it
+        // hasn't been, or has been used or dropped since
+        PendingIntent mIntent;
+        long mFetchTime;
+
+        // Is a fetch under way?
+        boolean mFetching;
+
+        BuyIntentPrefetch(String sku, String itemType, String extraData) {
+            mSku = sku;
+            mItemType = itemType;
+            mExtraData = extraData;
+        }
+    }
+
+    static String buyIntentKey(String sku, String itemType, String extraData) {
+        return itemType + ':' + sku + ':' + ((extraData == null) ? "" : "=" + extraData);
+    }
+
+    /**
+     * Declares a purchase the user is likely to start soon (e.g. the one the current screen
+     * offers), so its buy intent is fetched in the background ahead of time. A later
+     * {@link #launchPurchaseFlow} with the same SKU, item type and developer payload then shows
+     * the purchase dialog without first waiting on the billing service, as long as the intent
+     * is at most {@link #BUY_INTENT_TTL_MILLIS} old. The intent is fetched as soon as setup is
+     * done, and fetched again after it has been used, whenever the SKU is consumed and when the
+     * service reconnects. Nothing is fetched while the user owns the SKU.
+     *
+     * @param sku The SKU likely to be bought.
+     * @param itemType ITEM_TYPE_INAPP or ITEM_TYPE_SUBS
+     * @param extraData The developer payload the purchase flow will be launched with.
+     */
+    public void prefetchBuyIntent(String sku, String itemType, String extraData) {
+        checkNotDisposed();
+        BuyIntentPrefetch prefetch;
+        synchronized (mBuyIntents) {
+            String key = buyIntentKey(sku, itemType, extraData);
+            prefetch = mBuyIntents.get(key);
+            if (prefetch == null) {
+                prefetch = new BuyIntentPrefetch(sku, itemType, extraData);
+                mBuyIntents.put(key, prefetch);
+            }
+        }
+        if (mSetupDone) fetchBuyIntent(prefetch);
+    }
+
+    // Fetches the buy intents declared for the given SKU (or for all, if null) that are missing
+    // or stale
+    void prefetchBuyIntents(String sku) {
+        List<BuyIntentPrefetch> fetch = new ArrayList<BuyIntentPrefetch>();
+        synchronized (mBuyIntents) {
+            for (BuyIntentPrefetch prefetch : mBuyIntents.values()) {
+                if (sku != null && !sku.equals(prefetch.mSku)) continue;
+                if (sku != null || !isFresh(prefetch)) {
+                    prefetch.mIntent = null;
+                    fetch.add(prefetch);
+                }
+            }
+        }
+        for (BuyIntentPrefetch prefetch : fetch) {
+            fetchBuyIntent(prefetch);
+        }
+    }
+
+    static boolean isFresh(BuyIntentPrefetch prefetch) {
+        return prefetch.mIntent != null
+                && SystemClock.elapsedRealtime() - prefetch.mFetchTime < BUY_INTENT_TTL_MILLIS;
+    }
+
+    // Fetches a buy intent on the background executor, unless that's already under way
+    void fetchBuyIntent(final BuyIntentPrefetch prefetch) {
+        // An owned SKU can't be bought again, and a disconnected service is fetched from once
+        // it's back
+        if (isOwned(prefetch.mSku) || (mService == null && mConnection != null)) return;
+        synchronized (mBuyIntents) {
+            if (prefetch.mFetching) return;
+            prefetch.mFetching = true;
+        }
+        mBackgroundExecutor.execute(IabDeadline.under(asyncDeadline(), new Runnable() {
+            @Override
+            public void run() {
+                PendingIntent intent = null;
+                try {
+                    if (!mDisposed) {
+                        logDebug("Prefetching buy intent for " + prefetch.mSku + ".");
+                        Bundle buyIntentBundle = getBuyIntent(prefetch.mSku, prefetch.mItemType, prefetch.mExtraData);
+                        int response = getResponseCodeFromBundle(buyIntentBundle);
+                        if (response == BILLING_RESPONSE_RESULT_OK) {
+                            intent = buyIntentBundle.getParcelable(RESPONSE_BUY_INTENT);
+                        }
+                        else {
+                            // e.g. already owned; the purchase flow will report it
+                            logDebug("Not prefetching buy intent for " + prefetch.mSku + ": " + getResponseDesc(response));
+                        }
+                    }
+                }
+                catch (RemoteException e) {
+                    logWarn("Unable to prefetch buy intent for " + prefetch.mSku + ": " + e);
+                }
+                finally {
+                    synchronized (mBuyIntents) {
+                        prefetch.mFetching = false;
+                        if (intent != null) {
+                            prefetch.mIntent = intent;
+                            prefetch.mFetchTime = SystemClock.elapsedRealtime();
+                        }
+                    }
+                }
+            }
+        }));
+    }
+
+    // Returns the prefetched buy intent of the purchase if it's still fresh, and fetches the next
+    // one, since an intent is only good for one purchase flow
+    PendingIntent takePrefetchedBuyIntent(String sku, String itemType, String extraData) {
+        BuyIntentPrefetch prefetch;
+        PendingIntent intent = null;
+        synchronized (mBuyIntents) {
+            prefetch = mBuyIntents.get(buyIntentKey(sku, itemType, extraData));
+            if (prefetch == null) return null;
+            if (isFresh(prefetch)) intent = prefetch.mIntent;
+            prefetch.mIntent = null;
+        }
+
+        // Without one, the purchase flow fetches its own
+        if (intent != null) fetchBuyIntent(prefetch);
+        return intent;
+    }
+
+    /**
+     * Handles an activity result that's part of the purchase flow in in-app billing. If you
+     * are calling {@link #launchPurchaseFlow}, then you must call this method from your
+     * Activity's {@link android.app.Activity@onActivityResult} method. This method
+     * MUST be called from the UI thread of the Activity. To keep signature verification off that
+     * thread, see {@link #setVerifyPurchasesInBackground}.
      *
      * @param requestCode The requestCode as you received it.
      * @param resultCode The resultCode as you received it.
@@ -449,9 +1526,11 @@ public class IabHelper {
         checkSetupDone("handleActivityResult");
 
         // end of async purchase operation that started on launchPurchaseFlow
-        flagEndAsync();
+        IabAsyncQueue.Ticket ticket = mPurchaseTicket;
+        mPurchaseTicket = null;
 
         if (data == null) {
+            if (ticket != null) ticket.finish(null);
             logError("Null data in IAB activity result.");
             result = new IabResult(IABHELPER_BAD_RESPONSE, "Null data in IAB result");
             if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
@@ -469,41 +1548,20 @@ public class IabHelper {
             logDebug("Extras: " + data.getExtras());
             logDebug("Expected item type: " + mPurchasingItemType);
 
-            if (purchaseData == null || dataSignature == null) {
-                logError("BUG: either purchaseData or dataSignature is null.");
-                logDebug("Extras: " + data.getExtras().toString());
-                result = new IabResult(IABHELPER_UNKNOWN_ERROR, "IAB returned null purchaseData or dataSignature");
-                if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
-                return true;
-            }
-
-            Purchase purchase = null;
-            try {
-                purchase = new Purchase(mPurchasingItemType, purchaseData, dataSignature);
-                String sku = purchase.getSku();
-
-                // Verify signature
-                if (!Security.verifyPurchase(mSignatureBase64, purchaseData, dataSignature)) {
-                    logError("Purchase signature verification FAILED for sku " + sku);
-                    result = new IabResult(IABHELPER_VERIFICATION_FAILED, "Signature verification failed for sku " + sku);
-                    if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, purchase);
-                    return true;
-                }
-                logDebug("Purchase signature successfully verified.");
-            }
-            catch (JSONException e) {
-                logError("Failed to parse purchase data.");
-                e.printStackTrace();
-                result = new IabResult(IABHELPER_BAD_RESPONSE, "Failed to parse purchase data.");
-                if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
+            if (mVerifyPurchasesInBackground) {
+                // The purchase flow holds on to its keys until the purchase is verified
+                verifyPurchaseDataAsync(ticket, mPurchasingItemType, purchaseData, dataSignature);
                 return true;
             }
 
-            if (mPurchaseListener != null) {
-                mPurchaseListener.onIabPurchaseFinished(new IabResult(BILLING_RESPONSE_RESULT_OK, "Success"), purchase);
-            }
+            if (ticket != null) ticket.finish(null);
+            PurchaseOutcome outcome = verifyPurchaseData(mPurchasingItemType, purchaseData, dataSignature);
+            if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(outcome.mResult, outcome.mPurchase);
+            return true;
         }
-        else if (resultCode == Activity.RESULT_OK) {
+
+        if (ticket != null) ticket.finish(null);
+        if (resultCode == Activity.RESULT_OK) {
             // result code was OK, but in-app billing response was not OK.
             logDebug("Result code was OK but in-app billing response was not OK: " + getResponseDesc(responseCode));
             if (mPurchaseListener != null) {
@@ -525,10 +1583,103 @@ public class IabHelper {
         return true;
     }
 
+    // The outcome of a purchase flow: its result, and the purchase if there is one
+    static class PurchaseOutcome {
+        final IabResult mResult;
+        final Purchase mPurchase;
+
+        PurchaseOutcome(IabResult result, Purchase purchase) {
+            mResult = result;
+            mPurchase = purchase;
+        }
+    }
+
+    // Parses and verifies the purchase returned by a successful purchase flow, and applies it to
+    // the inventory cache and entitlements if it checks out
+    PurchaseOutcome verifyPurchaseData(String itemType, String purchaseData, String dataSignature) {
+        if (purchaseData == null || dataSignature == null) {
+            logError("BUG: either purchaseData or dataSignature is null.");
+            return new PurchaseOutcome(new IabResult(IABHELPER_UNKNOWN_ERROR,
+                    "IAB returned null purchaseData or dataSignature"), null);
+        }
+
+        Purchase purchase = null;
+        try {
+            purchase = new Purchase(itemType, purchaseData, dataSignature);
+            String sku = purchase.getSku();
+
+            // Verify signature
+            if (!verifyPurchase(purchaseData, dataSignature)) {
+                logError("Purchase signature verification FAILED for sku " + sku);
+                return new PurchaseOutcome(new IabResult(IABHELPER_VERIFICATION_FAILED,
+                        "Signature verification failed for sku " + sku), purchase);
+            }
+            logDebug("Purchase signature successfully verified.");
+        }
+        catch (JSONException e) {
+            logError("Failed to parse purchase data.");
+            e.printStackTrace();
+            return new PurchaseOutcome(new IabResult(IABHELPER_BAD_RESPONSE, "Failed to parse purchase data."), null);
+        }
+
+        journalPurchase(purchase);
+        invalidateInventoryCache();
+        endInventoryFlight(null);
+        updateEntitlements(purchase, null);
+        prefetchBuyIntents(purchase.getSku());
+        return new PurchaseOutcome(new IabResult(BILLING_RESPONSE_RESULT_OK, "Success"), purchase);
+    }
+
+    // Verifies the purchase on the background executor, then reports it to the purchase listener
+    // through the purchase flow's ticket (or the callback executor, if the flow has none)
+    void verifyPurchaseDataAsync(final IabAsyncQueue.Ticket ticket, final String itemType,
+                                 final String purchaseData, final String dataSignature) {
+        final OnIabPurchaseFinishedListener listener = mPurchaseListener;
+        final Executor callback = (ticket == null) ? getCallbackExecutor() : null;
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final PurchaseOutcome outcome = verifyPurchaseData(itemType, purchaseData, dataSignature);
+                Runnable delivery = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mDisposed && listener != null) {
+                            listener.onIabPurchaseFinished(outcome.mResult, outcome.mPurchase);
+                        }
+                    }
+                };
+                if (ticket != null) {
+                    ticket.finish(delivery);
+                }
+                else {
+                    callback.execute(delivery);
+                }
+            }
+        });
+    }
+
     public Inventory queryInventory(boolean querySkuDetails, List<String> moreSkus) throws IabException {
         return queryInventory(querySkuDetails, moreSkus, null);
     }
 
+    /**
+     * Queries the inventory like {@link #queryInventory(boolean, List)}, giving up after the given
+     * time. This covers the calls to the service as well as waiting for it to reconnect.
+     *
+     * @throws IabException with {@link #IABHELPER_TIMEOUT} if the time runs out, or if another
+     *     problem occurs while refreshing the inventory.
+     */
+    public Inventory queryInventory(boolean querySkuDetails, List<String> moreSkus,
+                                    long timeout, TimeUnit unit) throws IabException {
+        long previous = IabDeadline.enter(IabDeadline.fromNow(unit.toMillis(timeout)));
+        try {
+            return queryInventory(querySkuDetails, moreSkus, null);
+        }
+        finally {
+            IabDeadline.exit(previous);
+        }
+    }
+
     /**
      * Queries the inventory. This will query all owned items from the server, as well as
      * information on additional skus, if specified. This method may block or take long to execute.
@@ -544,104 +1695,566 @@ public class IabHelper {
      */
     public Inventory queryInventory(boolean querySkuDetails, List<String> moreItemSkus,
                                         List<String> moreSubsSkus) throws IabException {
+        return queryInventory(querySkuDetails, moreItemSkus, moreSubsSkus, null);
+    }
+
+    // Queries the inventory, reporting each verified batch to the given progress (if not null)
+    Inventory queryInventory(boolean querySkuDetails, List<String> moreItemSkus,
+                             List<String> moreSubsSkus, InventoryProgress progress) throws IabException {
         checkNotDisposed();
         checkSetupDone("queryInventory");
         try {
             Inventory inv = new Inventory();
-            int r = queryPurchases(inv, ITEM_TYPE_INAPP);
+            if (mParallelInventoryQueries && mSubscriptionsSupported) {
+                queryAllItemTypesParallel(inv, querySkuDetails, moreItemSkus, progress);
+            }
+            else {
+                queryItemType(inv, ITEM_TYPE_INAPP, querySkuDetails, moreItemSkus, progress);
+
+                // if subscriptions are supported, then also query for subscriptions
+                if (mSubscriptionsSupported) {
+                    queryItemType(inv, ITEM_TYPE_SUBS, querySkuDetails, moreItemSkus, progress);
+                }
+            }
+
+            if (mInventoryCache != null) mInventoryCache.put(inv, querySkuDetails);
+            updateEntitlements(inv);
+            return inv;
+        }
+        catch (RemoteException e) {
+            throw remoteError(e, "Remote exception while refreshing inventory.");
+        }
+        catch (JSONException e) {
+            throw new IabException(IABHELPER_BAD_RESPONSE, "Error parsing JSON response while refreshing inventory.", e);
+        }
+    }
+
+    // Queries purchases (and optionally details) of one item type into the inventory
+    void queryItemType(Inventory inv, String itemType, boolean querySkuDetails, List<String> moreSkus,
+                       InventoryProgress progress) throws IabException, RemoteException, JSONException {
+        boolean subs = itemType.equals(ITEM_TYPE_SUBS);
+        int r = queryPurchases(inv, itemType, progress);
+        if (r != BILLING_RESPONSE_RESULT_OK) {
+            throw new IabException(r, subs ? "Error refreshing inventory (querying owned subscriptions)."
+                                           : "Error refreshing inventory (querying owned items).");
+        }
+
+        if (querySkuDetails) {
+            r = querySkuDetails(itemType, inv, moreSkus, progress);
             if (r != BILLING_RESPONSE_RESULT_OK) {
-                throw new IabException(r, "Error refreshing inventory (querying owned items).");
+                throw new IabException(r, subs ? "Error refreshing inventory (querying prices of subscriptions)."
+                                               : "Error refreshing inventory (querying prices of items).");
             }
+        }
+    }
 
-            if (querySkuDetails) {
-                r = querySkuDetails(ITEM_TYPE_INAPP, inv, moreItemSkus);
-                if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new IabException(r, "Error refreshing inventory (querying prices of items).");
+    // Queries products on this thread while subscriptions are queried on the background executor,
+    // then merges the subscriptions in. A product error wins, like it does when run in sequence.
+    void queryAllItemTypesParallel(Inventory inv, final boolean querySkuDetails, final List<String> moreSkus,
+                                   final InventoryProgress progress) throws IabException, RemoteException, JSONException {
+        FutureTask<Inventory> subsQuery = IabTasks.fork(mBackgroundExecutor, new Callable<Inventory>() {
+            @Override
+            public Inventory call() throws Exception {
+                Inventory subsInv = new Inventory();
+                queryItemType(subsInv, ITEM_TYPE_SUBS, querySkuDetails, moreSkus, progress);
+                return subsInv;
+            }
+        });
+
+        boolean productsDone = false;
+        try {
+            queryItemType(inv, ITEM_TYPE_INAPP, querySkuDetails, moreSkus, progress);
+            productsDone = true;
+        }
+        finally {
+            // No point waiting for subscriptions if products failed
+            if (!productsDone) subsQuery.cancel(false);
+        }
+
+        Inventory subsInv;
+        try {
+            subsInv = IabTasks.join(subsQuery);
+        }
+        catch (IabException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw rethrow(e);
+        }
+
+        inv.mPurchaseMap.putAll(subsInv.mPurchaseMap);
+        inv.mSkuMap.putAll(subsInv.mSkuMap);
+    }
+
+    /**
+     * Listener that notifies when an inventory query operation completes.
+     */
+    public interface QueryInventoryFinishedListener {
+        /**
+         * Called to notify that an inventory query operation completed.
+         *
+         * @param result The result of the operation.
+         * @param inv The inventory.
+         */
+        public void onQueryInventoryFinished(IabResult result, Inventory inv);
+    }
+
+    /**
+     * Inventory query listener that also receives the inventory batch by batch while it is being
+     * queried, so an entitlement can be unlocked as soon as its purchase is verified rather than
+     * once every page of every item type is in.
+     *
+     * Batches are delivered like the final event and always ahead of it. By the time
+     * {@link #onQueryInventoryFinished} is called, every purchase and SkuDetails in the inventory
+     * has been part of a batch. If the query fails halfway, the batches delivered so far were
+     * still verified. A batch may be delivered twice if a query shared with another caller had to
+     * be run again.
+     */
+    public interface QueryInventoryProgressListener extends QueryInventoryFinishedListener {
+        /**
+         * Called with each verified batch of owned purchases, typically a page from the service.
+         *
+         * @param itemType The item type of the purchases.
+         * @param purchases The purchases in this batch.
+         */
+        public void onPurchasesLoaded(String itemType, List<Purchase> purchases);
+
+        /**
+         * Called with each batch of SKU details.
+         *
+         * @param itemType The item type of the skus.
+         * @param skuDetails The details in this batch.
+         */
+        public void onSkuDetailsLoaded(String itemType, List<SkuDetails> skuDetails);
+    }
+
+    // Receives the verified batches of an inventory query, on the thread that produced them
+    interface InventoryProgress {
+        void onPurchasesLoaded(String itemType, List<Purchase> purchases);
+        void onSkuDetailsLoaded(String itemType, List<SkuDetails> skuDetails);
+    }
+
+    // Returns a progress that hands batches to the listener through the executor, or null if the
+    // listener doesn't want them
+    InventoryProgress progressFor(QueryInventoryFinishedListener listener, final Executor executor) {
+        if (!(listener instanceof QueryInventoryProgressListener)) return null;
+        final QueryInventoryProgressListener progressListener = (QueryInventoryProgressListener) listener;
+        return new InventoryProgress() {
+            @Override
+            public void onPurchasesLoaded(final String itemType, final List<Purchase> purchases) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mDisposed) progressListener.onPurchasesLoaded(itemType, purchases);
+                    }
+                });
+            }
+
+            @Override
+            public void onSkuDetailsLoaded(final String itemType, final List<SkuDetails> skuDetails) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mDisposed) progressListener.onSkuDetailsLoaded(itemType, skuDetails);
+                    }
+                });
+            }
+        };
+    }
+
+    // Reports a whole inventory (e.g. from the cache) as one batch per item type
+    static void reportInventory(Inventory inv, InventoryProgress progress) {
+        if (progress == null) return;
+        String[] itemTypes = { ITEM_TYPE_INAPP, ITEM_TYPE_SUBS };
+        for (String itemType : itemTypes) {
+            List<Purchase> purchases = new ArrayList<Purchase>();
+            for (Purchase p : inv.getAllPurchases()) {
+                if (itemType.equals(p.getItemType())) purchases.add(p);
+            }
+            if (!purchases.isEmpty()) progress.onPurchasesLoaded(itemType, purchases);
+            reportSkuDetails(inv, itemType, progress);
+        }
+    }
+
+    // Reports the inventory's SKU details of one item type as one batch
+    static void reportSkuDetails(Inventory inv, String itemType, InventoryProgress progress) {
+        List<SkuDetails> skuDetails = new ArrayList<SkuDetails>();
+        for (SkuDetails d : inv.mSkuMap.values()) {
+            if (itemType.equals(d.mItemType)) skuDetails.add(d);
+        }
+        if (!skuDetails.isEmpty()) progress.onSkuDetailsLoaded(itemType, skuDetails);
+    }
+
+
+    /**
+     * Asynchronous wrapper for inventory query. This will perform an inventory
+     * query as described in {@link #queryInventory}, but will do so asynchronously
+     * and call back the specified listener upon completion. This method is safe to
+     * call from a UI thread.
+     *
+     * If the inventory cache is enabled and holds a fresh enough inventory that covers the
+     * requested skus, the listener gets a copy of it without a round trip to the service.
+     *
+     * Calls made while another inventory query is running share its result instead of starting
+     * their own, and the details of owned skus are fetched once for all of them. Only details of
+     * further skus are fetched separately. Each call still gives up on its own deadline (see
+     * {@link #setAsyncTimeout}), and one that runs out doesn't fail the others.
+     *
+     * Pass a {@link QueryInventoryProgressListener} to also get the inventory batch by batch.
+     *
+     * @param querySkuDetails as in {@link #queryInventory}
+     * @param moreSkus as in {@link #queryInventory}
+     * @param listener The listener to notify when the refresh operation completes.
+     */
+    public void queryInventoryAsync(final boolean querySkuDetails,
+                               final List<String> moreSkus,
+                               final QueryInventoryFinishedListener listener) {
+        checkNotDisposed();
+        checkSetupDone("queryInventory");
+        final Executor callback = getCallbackExecutor();
+        final InventoryProgress progress = progressFor(listener, callback);
+        final InventoryFlight flight = attachInventoryFlight(querySkuDetails);
+        mAsyncQueue.submit("refresh inventory", null, callback, new IabAsyncQueue.Operation() {
+            @Override
+            public void start(final IabAsyncQueue.Ticket ticket) {
+                mBackgroundExecutor.execute(IabDeadline.under(asyncDeadline(), new Runnable() {
+                    @Override
+                    public void run() {
+                        IabResult result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
+                        Inventory inv = null;
+                        try {
+                            inv = getFreshCachedInventory(querySkuDetails, moreSkus);
+                            if (inv != null) {
+                                result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory served from cache.");
+                                reportInventory(inv, progress);
+                            }
+                            else {
+                                inv = queryInventoryShared(flight, querySkuDetails, moreSkus, progress);
+                            }
+                        }
+                        catch (IabException ex) {
+                            result = ex.getResult();
+                        }
+
+                        final IabResult result_f = result;
+                        final Inventory inv_f = inv;
+                        ticket.finish(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!mDisposed && listener != null) {
+                                    listener.onQueryInventoryFinished(result_f, inv_f);
+                                }
+                            }
+                        });
+                    }
+                }));
+            }
+        });
+    }
+
+    /**
+     * An inventory query that concurrent callers attach to. It fetches what every caller needs
+     * (purchases, plus details of owned skus if the first caller asked for them). If it doesn't
+     * include the details, callers that want them share a second step fetching them; callers
+     * fetch any further SKU details on their own.
+     *
+     * Either step runs on the thread of the first caller to wait for it, under that caller's
+     * deadline, while the others wait under their own.
+     */
+    class InventoryFlight implements Callable<Inventory>, InventoryProgress {
+        final FutureTask<Inventory> mTask = new FutureTask<Inventory>(this);
+        final boolean mWithDetails;
+
+        // Adds the details of the owned skus to the query's inventory
+        final FutureTask<Inventory> mDetailsTask = new FutureTask<Inventory>(new Callable<Inventory>() {
+            @Override
+            public Inventory call() throws Exception {
+                Inventory inv = InventoryCache.copyOf(mTask.get());
+                querySkuDetailsOf(inv, null, null);
+                if (mInventoryCache != null) mInventoryCache.put(inv, true);
+                return inv;
+            }
+        });
+
+        // Callers that want the batches, and the batches reported so far for those that attach
+        // late; guarded by this
+        final List<InventoryProgress> mObservers = new ArrayList<InventoryProgress>();
+        final List<String> mBatchTypes = new ArrayList<String>();
+        final List<List<?>> mBatches = new ArrayList<List<?>>();
+
+        InventoryFlight(boolean withDetails) {
+            mWithDetails = withDetails;
+        }
+
+        @Override
+        public Inventory call() throws IabException {
+            try {
+                return queryInventory(mWithDetails, null, null, this);
+            }
+            finally {
+                endInventoryFlight(this);
+            }
+        }
+
+        // Starts reporting batches to the observer, beginning with those reported so far
+        synchronized void addObserver(InventoryProgress observer) {
+            for (int i = 0; i < mBatches.size(); ++i) {
+                report(observer, mBatchTypes.get(i), mBatches.get(i));
+            }
+            mObservers.add(observer);
+        }
+
+        @Override
+        public synchronized void onPurchasesLoaded(String itemType, List<Purchase> purchases) {
+            addBatch(itemType, purchases);
+        }
+
+        @Override
+        public synchronized void onSkuDetailsLoaded(String itemType, List<SkuDetails> skuDetails) {
+            addBatch(itemType, skuDetails);
+        }
+
+        private void addBatch(String itemType, List<?> batch) {
+            mBatchTypes.add(itemType);
+            mBatches.add(batch);
+            for (InventoryProgress observer : mObservers) {
+                report(observer, itemType, batch);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void report(InventoryProgress observer, String itemType, List<?> batch) {
+            if (!batch.isEmpty() && batch.get(0) instanceof Purchase) {
+                observer.onPurchasesLoaded(itemType, (List<Purchase>) batch);
+            }
+            else {
+                observer.onSkuDetailsLoaded(itemType, (List<SkuDetails>) batch);
+            }
+        }
+    }
+
+    // Returns the cached inventory if it's fresh enough to answer the query, otherwise null
+    Inventory getFreshCachedInventory(boolean querySkuDetails, List<String> moreSkus) {
+        InventoryCache cache = mInventoryCache;
+        if (cache == null || !cache.isFresh(mInventoryCacheTtl, querySkuDetails, moreSkus)) return null;
+        logDebug("Serving inventory from cache.");
+        Inventory inv = cache.get();
+        if (inv != null) updateEntitlements(inv);
+        return inv;
+    }
+
+    // Returns the inventory query in progress (or waiting to start), starting a new one if needed
+    InventoryFlight attachInventoryFlight(boolean querySkuDetails) {
+        synchronized (mInventoryFlightLock) {
+            if (mInventoryFlight == null) {
+                mInventoryFlight = new InventoryFlight(querySkuDetails);
+            }
+            else {
+                logDebug("Attaching to inventory query already in progress.");
+            }
+            return mInventoryFlight;
+        }
+    }
+
+    // Waits for the shared inventory query (passing its batches on to the progress, if any), then
+    // fetches any details only this caller wants. If the query ran out of the time of the caller
+    // that ran it while this one still has some, this one attaches to a new query.
+    Inventory queryInventoryShared(InventoryFlight flight, boolean querySkuDetails, List<String> moreSkus,
+                                   InventoryProgress progress) throws IabException {
+        Inventory inv;
+        while (true) {
+            if (progress != null) flight.addObserver(progress);
+            try {
+                // Whoever gets here first runs the query
+                inv = joinInventoryFlight(flight.mTask);
+                if (querySkuDetails && !flight.mWithDetails) {
+                    inv = joinInventoryFlight(flight.mDetailsTask);
+                    if (progress != null) {
+                        reportSkuDetails(inv, ITEM_TYPE_INAPP, progress);
+                        reportSkuDetails(inv, ITEM_TYPE_SUBS, progress);
+                    }
                 }
+                break;
             }
+            catch (IabException e) {
+                if (e.getResult().getResponse() != IABHELPER_TIMEOUT || IabDeadline.remainingMillis() <= 0) throw e;
+                logDebug("Shared inventory query ran out of another caller's time, querying again.");
+                flight = attachInventoryFlight(flight.mWithDetails);
+            }
+        }
+
+        // Fetch the details this caller wants that the shared query didn't, and keep them in the
+        // cache, which callers asking for the same skus check for them
+        if (querySkuDetails && moreSkus != null) {
+            querySkuDetailsOf(inv, moreSkus, progress);
+            if (mInventoryCache != null) mInventoryCache.putSkuDetails(inv.mSkuMap.values());
+        }
+        return inv;
+    }
+
+    // Waits for a step of a shared inventory query, running it on this thread if nobody has
+    // started it, and returns a copy of its inventory
+    Inventory joinInventoryFlight(FutureTask<Inventory> task) throws IabException {
+        try {
+            return InventoryCache.copyOf(IabTasks.join(task));
+        }
+        catch (IabException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (RemoteException e) {
+            // Ran out of time waiting for the query
+            throw remoteError(e, "Remote exception while refreshing inventory.");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IabException(IABHELPER_UNKNOWN_ERROR, "Interrupted while refreshing inventory.", e);
+        }
+        catch (Exception e) {
+            throw new IabException(IABHELPER_UNKNOWN_ERROR, "Error refreshing inventory.", e);
+        }
+    }
 
-            // if subscriptions are supported, then also query for subscriptions
+    // Adds the details of the owned skus and of the given ones (if not null) to the inventory,
+    // skipping those it already has
+    void querySkuDetailsOf(Inventory inv, List<String> moreSkus, InventoryProgress progress) throws IabException {
+        try {
+            int r = querySkuDetails(ITEM_TYPE_INAPP, inv, moreSkus, progress);
+            if (r != BILLING_RESPONSE_RESULT_OK) {
+                throw new IabException(r, "Error refreshing inventory (querying prices of items).");
+            }
             if (mSubscriptionsSupported) {
-                r = queryPurchases(inv, ITEM_TYPE_SUBS);
+                r = querySkuDetails(ITEM_TYPE_SUBS, inv, moreSkus, progress);
                 if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new IabException(r, "Error refreshing inventory (querying owned subscriptions).");
-                }
-
-                if (querySkuDetails) {
-                    r = querySkuDetails(ITEM_TYPE_SUBS, inv, moreItemSkus);
-                    if (r != BILLING_RESPONSE_RESULT_OK) {
-                        throw new IabException(r, "Error refreshing inventory (querying prices of subscriptions).");
-                    }
+                    throw new IabException(r, "Error refreshing inventory (querying prices of subscriptions).");
                 }
             }
-
-            return inv;
         }
         catch (RemoteException e) {
-            throw new IabException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while refreshing inventory.", e);
+            throw remoteError(e, "Remote exception while refreshing inventory.");
         }
         catch (JSONException e) {
             throw new IabException(IABHELPER_BAD_RESPONSE, "Error parsing JSON response while refreshing inventory.", e);
         }
     }
 
+    // Stops new callers from attaching to the given query (or to any query, if null), for when it's
+    // done or has been made stale by a purchase or consumption. Callers already attached still
+    // share it; if it hasn't started yet, the first of them to get to it runs it.
+    void endInventoryFlight(InventoryFlight flight) {
+        synchronized (mInventoryFlightLock) {
+            if (flight == null || mInventoryFlight == flight) mInventoryFlight = null;
+        }
+    }
+
     /**
-     * Listener that notifies when an inventory query operation completes.
+     * Future-returning version of {@link #startSetup}. The future succeeds with the setup result,
+     * or fails with an IabException carrying it. This method is safe to call from a UI thread.
      */
-    public interface QueryInventoryFinishedListener {
-        /**
-         * Called to notify that an inventory query operation completed.
-         *
-         * @param result The result of the operation.
-         * @param inv The inventory.
-         */
-        public void onQueryInventoryFinished(IabResult result, Inventory inv);
+    public IabFuture<IabResult> setupAsync() {
+        final IabFuture<IabResult> future = new IabFuture<IabResult>();
+        startSetup(new OnIabSetupFinishedListener() {
+            @Override
+            public void onIabSetupFinished(IabResult result) {
+                if (result.isSuccess()) {
+                    future.complete(result);
+                }
+                else {
+                    future.fail(new IabException(result));
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Gets billing ready for the whole process ahead of any screen that needs it: binds to the
+     * billing service, checks for billing support and then refreshes the inventory cache (see
+     * {@link #enableInventoryCache}) with SKU details, as {@link #queryInventoryAsync} asks for
+     * by default. Call this from Application.onCreate(), on the main thread.
+     *
+     * The helper it creates stays alive for the life of the process, so the shared connection
+     * does too, and every helper created afterwards is set up as soon as its
+     * {@link #startSetup} is called.
+     *
+     * @param ctx Any context of the application.
+     * @param base64PublicKey Your application's public key, as for the constructor.
+     * @param moreSkus The additional SKUs the app's inventory queries ask details for, or null.
+     * @return A handle that succeeds with the setup result once billing is ready, or fails with
+     *     it. Poll it with {@link IabFuture#isDone}, or wait for it with
+     *     {@link IabFuture#addCallback}. Later calls return the same handle, unless setup failed,
+     *     in which case it's tried again.
+     */
+    public static synchronized IabFuture<IabResult> warmUp(Context ctx, String base64PublicKey,
+                                                           final List<String> moreSkus) {
+        if (sWarmUp != null) {
+            synchronized (sWarmUp) {
+                if (!sWarmUp.mDone || sWarmUp.mFailure == null) return sWarmUp;
+            }
+            sWarmUpHelper.dispose();
+        }
+
+        final IabHelper helper = new IabHelper(ctx, base64PublicKey);
+        helper.enableInventoryCache(DEFAULT_INVENTORY_CACHE_TTL);
+        sWarmUpHelper = helper;
+        sWarmUp = helper.setupAsync();
+        sWarmUp.addCallback(new IabFuture.Callback<IabResult>() {
+            @Override
+            public void onSuccess(IabResult result) {
+                // Nobody waits for this; it only fills the inventory cache
+                if (!helper.mDisposed) helper.queryInventoryFuture(true, moreSkus);
+            }
+
+            @Override
+            public void onFailure(IabException e) {
+                helper.logWarn("Warm-up failed: " + e.getResult());
+            }
+        }, IabFuture.DIRECT);
+        return sWarmUp;
     }
 
+    public static IabFuture<IabResult> warmUp(Context ctx, String base64PublicKey) {
+        return warmUp(ctx, base64PublicKey, null);
+    }
 
     /**
-     * Asynchronous wrapper for inventory query. This will perform an inventory
-     * query as described in {@link #queryInventory}, but will do so asynchronously
-     * and call back the specified listener upon completion. This method is safe to
-     * call from a UI thread.
+     * Future-returning version of {@link #queryInventoryAsync}, sharing the inventory cache and
+     * concurrent queries the same way. The future is completed on the background thread that ran
+     * the query, and can be called from any thread once setup is done.
      *
      * @param querySkuDetails as in {@link #queryInventory}
      * @param moreSkus as in {@link #queryInventory}
-     * @param listener The listener to notify when the refresh operation completes.
      */
-    public void queryInventoryAsync(final boolean querySkuDetails,
-                               final List<String> moreSkus,
-                               final QueryInventoryFinishedListener listener) {
-        final Handler handler = new Handler();
+    public IabFuture<Inventory> queryInventoryFuture(final boolean querySkuDetails, final List<String> moreSkus) {
         checkNotDisposed();
         checkSetupDone("queryInventory");
-        flagStartAsync("refresh inventory");
-        (new Thread(new Runnable() {
+        final IabFuture<Inventory> future = new IabFuture<Inventory>();
+        final InventoryFlight flight = attachInventoryFlight(querySkuDetails);
+        mAsyncQueue.submit("refresh inventory", null, newDirectExecutor(), new IabAsyncQueue.Operation() {
             @Override
-            public void run() {
-                IabResult result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
-                Inventory inv = null;
-                try {
-                    inv = queryInventory(querySkuDetails, moreSkus);
-                }
-                catch (IabException ex) {
-                    result = ex.getResult();
-                }
-
-                flagEndAsync();
-
-                final IabResult result_f = result;
-                final Inventory inv_f = inv;
-                if (!mDisposed && listener != null) {
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            listener.onQueryInventoryFinished(result_f, inv_f);
+            public void start(final IabAsyncQueue.Ticket ticket) {
+                mBackgroundExecutor.execute(IabDeadline.under(asyncDeadline(), new Runnable() {
+                    @Override
+                    public void run() {
+                        Inventory inv;
+                        try {
+                            inv = getFreshCachedInventory(querySkuDetails, moreSkus);
+                            if (inv == null) inv = queryInventoryShared(flight, querySkuDetails, moreSkus, null);
                         }
-                    });
-                }
+                        catch (IabException ex) {
+                            ticket.finish(null);
+                            future.fail(ex);
+                            return;
+                        }
+                        ticket.finish(null);
+                        future.complete(inv);
+                    }
+                }));
             }
-        })).start();
+        });
+        return future;
     }
 
     public void queryInventoryAsync(QueryInventoryFinishedListener listener) {
@@ -653,6 +2266,100 @@ public class IabHelper {
     }
 
 
+    /**
+     * Listener that notifies when {@link #getSkuDetails} has refreshed details in the background.
+     */
+    public interface OnSkuDetailsRefreshedListener {
+        /**
+         * Called to notify that a refresh of SkuDetails completed.
+         *
+         * @param result The result of the refresh.
+         * @param details The details of every requested sku that is now known, keyed by sku.
+         *     Includes stale ones if the refresh failed.
+         */
+        public void onSkuDetailsRefreshed(IabResult result, Map<String, SkuDetails> details);
+    }
+
+    /**
+     * Returns the SkuDetails (prices etc) of the given skus from memory, as fetched by earlier
+     * queries or saved by the inventory cache, even if they are stale. Any that are missing or older
+     * than {@link #setSkuDetailsMaxAge} are refreshed in the background and the listener is told once
+     * that's done. If everything is fresh or setup isn't done yet, nothing is refreshed and the listener
+     * isn't called. Cached details are dropped whenever the locale or currency changes. This method is
+     * safe to call from a UI thread.
+     *
+     * @param itemType The type of the skus (ITEM_TYPE_INAPP or ITEM_TYPE_SUBS).
+     * @param skus The skus to look up.
+     * @param listener The listener to notify when a refresh completes. May be null.
+     * @return The details of every sku that is known right now, keyed by sku.
+     */
+    public Map<String, SkuDetails> getSkuDetails(final String itemType, final List<String> skus,
+                                                 final OnSkuDetailsRefreshedListener listener) {
+        checkNotDisposed();
+        final Map<String, SkuDetails> known = new HashMap<String, SkuDetails>();
+        final List<String> stale = new ArrayList<String>();
+        Inventory cachedInventory = null;
+        for (String sku : skus) {
+            SkuDetails d = mSkuDetailsCache.get(itemType, sku);
+            if (d == null && mInventoryCache != null) {
+                // Fall back on the inventory cache, treating its details as stale
+                if (cachedInventory == null) cachedInventory = mInventoryCache.get();
+                d = (cachedInventory == null) ? null : cachedInventory.getSkuDetails(sku);
+                if (d != null && itemType.equals(d.mItemType)) {
+                    mSkuDetailsCache.putStale(itemType, d);
+                }
+                else {
+                    d = null;
+                }
+            }
+            if (d != null) known.put(sku, d);
+            if (mSkuDetailsCache.isStale(itemType, sku, mSkuDetailsMaxAge)) stale.add(sku);
+        }
+
+        if (stale.isEmpty() || !mSetupDone) return known;
+
+        logDebug("Refreshing details of " + stale.size() + " skus.");
+        mAsyncQueue.submit("refresh sku details", null, getCallbackExecutor(), new IabAsyncQueue.Operation() {
+            @Override
+            public void start(final IabAsyncQueue.Ticket ticket) {
+                mBackgroundExecutor.execute(IabDeadline.under(asyncDeadline(), new Runnable() {
+                    @Override
+                    public void run() {
+                        IabResult result = new IabResult(BILLING_RESPONSE_RESULT_OK, "SkuDetails refresh successful.");
+                        try {
+                            int r = querySkuDetails(itemType, new Inventory(), stale, null);
+                            if (r != BILLING_RESPONSE_RESULT_OK) {
+                                result = new IabResult(r, "Error refreshing SkuDetails.");
+                            }
+                        }
+                        catch (RemoteException e) {
+                            result = remoteError(e, "Remote exception while refreshing SkuDetails.").getResult();
+                        }
+                        catch (JSONException e) {
+                            result = new IabResult(IABHELPER_BAD_RESPONSE, "Error parsing JSON response while refreshing SkuDetails.");
+                        }
+
+                        final IabResult result_f = result;
+                        final Map<String, SkuDetails> details = new HashMap<String, SkuDetails>(known);
+                        for (String sku : skus) {
+                            SkuDetails d = mSkuDetailsCache.get(itemType, sku);
+                            if (d != null) details.put(sku, d);
+                        }
+                        ticket.finish(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!mDisposed && listener != null) {
+                                    listener.onSkuDetailsRefreshed(result_f, details);
+                                }
+                            }
+                        });
+                    }
+                }));
+            }
+        });
+        return known;
+    }
+
     /**
      * Consumes a given in-app product. Consuming can only be done on an item
      * that's owned, and as a result of consumption, the user will no longer own it.
@@ -672,8 +2379,8 @@ public class IabHelper {
         }
 
         try {
-            String token = itemInfo.getToken();
-            String sku = itemInfo.getSku();
+            final String token = itemInfo.getToken();
+            final String sku = itemInfo.getSku();
             if (token == null || token.equals("")) {
                logError("Can't consume "+ sku + ". No token.");
                throw new IabException(IABHELPER_MISSING_TOKEN, "PurchaseInfo is missing token for sku: "
@@ -681,17 +2388,82 @@ public class IabHelper {
             }
 
             logDebug("Consuming sku: " + sku + ", token: " + token);
-            int response = mService.consumePurchase(3, mContext.getPackageName(), token);
+            final ConsumptionJournal journal = mConsumptionJournal;
+            if (journal != null) awaitJournalWrite(token);
+            int response;
+            long start = metricStart();
+            try {
+                response = callService(getService(), new ServiceCall<Integer>() {
+                    @Override
+                    public Integer call(IInAppBillingService service) throws RemoteException {
+                        return Integer.valueOf(service.consumePurchase(3, mPackageName, token));
+                    }
+                }, new AbandonedCallListener<Integer>() {
+                    @Override
+                    public void onCallAbandoned() {
+                        // If it went through, the service will say it's not owned the next time
+                        if (journal != null) journal.markTimedOut(token);
+                    }
+
+                    @Override
+                    public void onLateResult(Integer result) {
+                        if (result.intValue() != BILLING_RESPONSE_RESULT_OK || mDisposed) return;
+                        // The caller was told it timed out, so it stays journaled until consumed again
+                        logWarn("Consumption of sku " + sku + " went through after timing out.");
+                        consumed(token, sku, false);
+                    }
+                }).intValue();
+            }
+            finally {
+                metricEnd(IabMetrics.CALL_CONSUME_PURCHASE, start);
+            }
+
+            // Not owned any more after a timed-out consume means that consume went through
+            if (response == BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED && journal != null && journal.hasTimedOut(token)) {
+                logDebug("Sku " + sku + " was consumed by an earlier call that timed out.");
+                response = BILLING_RESPONSE_RESULT_OK;
+            }
             if (response == BILLING_RESPONSE_RESULT_OK) {
                logDebug("Successfully consumed sku: " + sku);
+               consumed(token, sku, true);
             }
             else {
+               // Nothing left to consume if it isn't owned
+               if (response == BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED && journal != null) {
+                   journal.markConsumed(token);
+               }
                logDebug("Error consuming consuming sku " + sku + ". " + getResponseDesc(response));
                throw new IabException(response, "Error consuming sku " + sku);
             }
         }
         catch (RemoteException e) {
-            throw new IabException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while consuming. PurchaseInfo: " + itemInfo, e);
+            throw remoteError(e, "Remote exception while consuming. PurchaseInfo: " + itemInfo);
+        }
+    }
+
+    // Catches up with a purchase having been consumed, and strikes it off the journal unless
+    // the caller hasn't been told yet
+    void consumed(String token, String sku, boolean strikeOff) {
+        if (mInventoryCache != null) mInventoryCache.invalidate();
+        if (strikeOff && mConsumptionJournal != null) mConsumptionJournal.markConsumed(token);
+        endInventoryFlight(null);
+        updateEntitlements(null, sku);
+        prefetchBuyIntents(sku);
+    }
+
+    /**
+     * Consumes a given in-app product like {@link #consume(Purchase)}, giving up after the given
+     * time. If it does, the result is {@link #IABHELPER_TIMEOUT} and the purchase may or may not
+     * have been consumed. With the consumption journal enabled, consuming it again (or recovering
+     * it at the next setup) then succeeds if it was.
+     */
+    void consume(Purchase itemInfo, long timeout, TimeUnit unit) throws IabException {
+        long previous = IabDeadline.enter(IabDeadline.fromNow(unit.toMillis(timeout)));
+        try {
+            consume(itemInfo);
+        }
+        finally {
+            IabDeadline.exit(previous);
         }
     }
 
@@ -722,6 +2494,20 @@ public class IabHelper {
         public void onConsumeMultiFinished(List<Purchase> purchases, List<IabResult> results);
     }
 
+    /**
+     * Multi-item consumption callback that also hears about each item as soon as it's done.
+     */
+    public interface OnConsumeMultiProgressListener extends OnConsumeMultiFinishedListener {
+        /**
+         * Called as each item of a multi-item consumption finishes, in completion order.
+         * {@link #onConsumeMultiFinished} is still called once every item is done.
+         *
+         * @param purchase The purchase that was (or was to be) consumed.
+         * @param result The result of its consumption.
+         */
+        public void onConsumeItemFinished(Purchase purchase, IabResult result);
+    }
+
     /**
      * Asynchronous wrapper to item consumption. Works like {@link #consume}, but
      * performs the consumption in the background and notifies completion through
@@ -735,18 +2521,58 @@ public class IabHelper {
         checkSetupDone("consume");
         List<Purchase> purchases = new ArrayList<Purchase>();
         purchases.add(purchase);
-        consumeAsyncInternal(purchases, listener, null);
+        consumeAsyncInternal("consume", purchases, listener, null);
     }
 
     /**
      * Same as {@link consumeAsync}, but for multiple items at once.
+     * Up to {@link #setConsumeParallelism} items are consumed concurrently, and purchases that
+     * share a token are only consumed once (each entry still gets a result). If the listener is an
+     * {@link OnConsumeMultiProgressListener}, it is told about each item as it finishes.
+     *
      * @param purchases The list of PurchaseInfo objects representing the purchases to consume.
      * @param listener The listener to notify when the consumption operation finishes.
      */
     public void consumeAsync(List<Purchase> purchases, OnConsumeMultiFinishedListener listener) {
         checkNotDisposed();
         checkSetupDone("consume");
-        consumeAsyncInternal(purchases, null, listener);
+        consumeAsyncInternal("consume", purchases, null, listener);
+    }
+
+    /**
+     * Future-returning version of {@link #consumeAsync(Purchase, OnConsumeFinishedListener)}.
+     * The future succeeds with the consumed purchase, and is completed on the background thread
+     * that consumed it. Can be called from any thread once setup is done.
+     *
+     * @param purchase The purchase to be consumed.
+     */
+    public IabFuture<Purchase> consumeFuture(final Purchase purchase) {
+        checkNotDisposed();
+        checkSetupDone("consume");
+        final IabFuture<Purchase> future = new IabFuture<Purchase>();
+        List<String> keys = new ArrayList<String>();
+        keys.add(purchase.getSku());
+        mAsyncQueue.submit("consume", keys, newDirectExecutor(), new IabAsyncQueue.Operation() {
+            @Override
+            public void start(final IabAsyncQueue.Ticket ticket) {
+                mBackgroundExecutor.execute(IabDeadline.under(asyncDeadline(), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            consume(purchase);
+                        }
+                        catch (IabException ex) {
+                            ticket.finish(null);
+                            future.fail(ex);
+                            return;
+                        }
+                        ticket.finish(null);
+                        future.complete(purchase);
+                    }
+                }));
+            }
+        });
+        return future;
     }
 
     /**
@@ -757,32 +2583,47 @@ public class IabHelper {
      *     It also includes the result code numerically.
      */
     public static String getResponseDesc(int code) {
-        String[] iab_msgs = ("0:OK/1:User Canceled/2:Unknown/" +
-                "3:Billing Unavailable/4:Item unavailable/" +
-                "5:Developer Error/6:Error/7:Item Already Owned/" +
-                "8:Item not owned").split("/");
-        String[] iabhelper_msgs = ("0:OK/-1001:Remote exception during initialization/" +
-                                   "-1002:Bad response received/" +
-                                   "-1003:Purchase signature verification failed/" +
-                                   "-1004:Send intent failed/" +
-                                   "-1005:User cancelled/" +
-                                   "-1006:Unknown purchase response/" +
-                                   "-1007:Missing token/" +
-                                   "-1008:Unknown error/" +
-                                   "-1009:Subscriptions not available/" +
-                                   "-1010:Invalid consumption attempt").split("/");
-
         if (code <= IABHELPER_ERROR_BASE) {
             int index = IABHELPER_ERROR_BASE - code;
-            if (index >= 0 && index < iabhelper_msgs.length) return iabhelper_msgs[index];
+            if (index >= 0 && index < IABHELPER_MSGS.length) return IABHELPER_MSGS[index];
             else return String.valueOf(code) + ":Unknown IAB Helper Error";
         }
-        else if (code < 0 || code >= iab_msgs.length)
+        else if (code < 0 || code >= IAB_MSGS.length)
             return String.valueOf(code) + ":Unknown";
         else
-            return iab_msgs[code];
+            return IAB_MSGS[code];
     }
 
+    // Descriptions for getResponseDesc(), split once rather than on every call
+    static final String[] IAB_MSGS = ("0:OK/1:User Canceled/2:Unknown/" +
+            "3:Billing Unavailable/4:Item unavailable/" +
+            "5:Developer Error/6:Error/7:Item Already Owned/" +
+            "8:Item not owned").split("/");
+    static final String[] IABHELPER_MSGS = ("0:OK/-1001:Remote exception during initialization/" +
+                                            "-1002:Bad response received/" +
+                                            "-1003:Purchase signature verification failed/" +
+                                            "-1004:Send intent failed/" +
+                                            "-1005:User cancelled/" +
+                                            "-1006:Unknown purchase response/" +
+                                            "-1007:Missing token/" +
+                                            "-1008:Unknown error/" +
+                                            "-1009:Subscriptions not available/" +
+                                            "-1010:Invalid consumption attempt/" +
+                                            "-1011:Timed out/" +
+                                            "-1012:Another purchase flow is in progress").split("/");
+
+
+    // Makes the next inventory query go to the service, without blocking the calling thread
+    void invalidateInventoryCache() {
+        final InventoryCache cache = mInventoryCache;
+        if (cache == null) return;
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cache.invalidate();
+            }
+        });
+    }
 
     // Checks that setup was done; if not, throws an exception.
     void checkSetupDone(String operation) {
@@ -824,43 +2665,30 @@ public class IabHelper {
         }
     }
 
-    void flagStartAsync(String operation) {
-        if (mAsyncInProgress) throw new IllegalStateException("Can't start async operation (" +
-                operation + ") because another async operation(" + mAsyncOperation + ") is in progress.");
-        mAsyncOperation = operation;
-        mAsyncInProgress = true;
-        logDebug("Starting async operation: " + operation);
-    }
-
-    void flagEndAsync() {
-        logDebug("Ending async operation: " + mAsyncOperation);
-        mAsyncOperation = "";
-        mAsyncInProgress = false;
-    }
-
-
-    int queryPurchases(Inventory inv, String itemType) throws JSONException, RemoteException {
+    int queryPurchases(Inventory inv, final String itemType, InventoryProgress progress)
+                                throws JSONException, RemoteException {
         // Query purchases
         logDebug("Querying owned items, item type: " + itemType);
-        logDebug("Package name: " + mContext.getPackageName());
+        logDebug("Package name: " + mPackageName);
         boolean verificationFailed = false;
         String continueToken = null;
+        Bundle ownedItems = getPurchases(itemType, null);
+        int pages = 0;
 
-        do {
-            logDebug("Calling getPurchases with continuation token: " + continueToken);
-            Bundle ownedItems = mService.getPurchases(3, mContext.getPackageName(),
-                    itemType, continueToken);
-
+        while (true) {
+            ++pages;
             int response = getResponseCodeFromBundle(ownedItems);
             logDebug("Owned items response: " + String.valueOf(response));
             if (response != BILLING_RESPONSE_RESULT_OK) {
                 logDebug("getPurchases() failed: " + getResponseDesc(response));
+                recordPageCount(pages);
                 return response;
             }
             if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST)
                     || !ownedItems.containsKey(RESPONSE_INAPP_PURCHASE_DATA_LIST)
                     || !ownedItems.containsKey(RESPONSE_INAPP_SIGNATURE_LIST)) {
                 logError("Bundle returned from getPurchases() doesn't contain required fields.");
+                recordPageCount(pages);
                 return IABHELPER_BAD_RESPONSE;
             }
 
@@ -871,13 +2699,37 @@ public class IabHelper {
             ArrayList<String> signatureList = ownedItems.getStringArrayList(
                         RESPONSE_INAPP_SIGNATURE_LIST);
 
-            for (int i = 0; i < purchaseDataList.size(); ++i) {
+            // Ask for the next page now, so it's on its way while we verify this one
+            continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
+            logDebug("Continuation token: " + continueToken);
+            FutureTask<Bundle> nextPage = null;
+            if (!TextUtils.isEmpty(continueToken)) {
+                final String token = continueToken;
+                nextPage = IabTasks.fork(mBackgroundExecutor, new Callable<Bundle>() {
+                    @Override
+                    public Bundle call() throws RemoteException {
+                        return getPurchases(itemType, token);
+                    }
+                });
+            }
+
+            Purchase[] purchases;
+            try {
+                purchases = verifyPurchases(itemType, purchaseDataList, signatureList);
+            }
+            catch (JSONException e) {
+                if (nextPage != null) nextPage.cancel(false);
+                throw e;
+            }
+
+            List<Purchase> verified = new ArrayList<Purchase>(purchases.length);
+            for (int i = 0; i < purchases.length; ++i) {
                 String purchaseData = purchaseDataList.get(i);
                 String signature = signatureList.get(i);
                 String sku = ownedSkus.get(i);
-                if (Security.verifyPurchase(mSignatureBase64, purchaseData, signature)) {
+                Purchase purchase = purchases[i];
+                if (purchase != null) {
                     logDebug("Sku is owned: " + sku);
-                    Purchase purchase = new Purchase(itemType, purchaseData, signature);
 
                     if (TextUtils.isEmpty(purchase.getToken())) {
                         logWarn("BUG: empty/null token!");
@@ -886,6 +2738,7 @@ public class IabHelper {
 
                     // Record ownership and token
                     inv.addPurchase(purchase);
+                    verified.add(purchase);
                 }
                 else {
                     logWarn("Purchase signature verification **FAILED**. Not adding item.");
@@ -894,99 +2747,324 @@ public class IabHelper {
                     verificationFailed = true;
                 }
             }
+            if (progress != null && !verified.isEmpty()) progress.onPurchasesLoaded(itemType, verified);
 
-            continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
-            logDebug("Continuation token: " + continueToken);
-        } while (!TextUtils.isEmpty(continueToken));
+            if (nextPage == null) break;
+            try {
+                ownedItems = IabTasks.join(nextPage);
+            }
+            catch (Exception e) {
+                throw rethrow(e);
+            }
+        }
 
+        recordPageCount(pages);
         return verificationFailed ? IABHELPER_VERIFICATION_FAILED : BILLING_RESPONSE_RESULT_OK;
     }
 
-    int querySkuDetails(String itemType, Inventory inv, List<String> moreSkus)
-                                throws RemoteException, JSONException {
-        logDebug("Querying SKU details.");
-        ArrayList<String> skuList = new ArrayList<String>();
-        skuList.addAll(inv.getAllOwnedSkus(itemType));
-        if (moreSkus != null) {
-            for (String sku : moreSkus) {
-                if (!skuList.contains(sku)) {
-                    skuList.add(sku);
+    void recordPageCount(int pages) {
+        IabMetrics metrics = mMetrics;
+        if (metrics != null) metrics.record(IabMetrics.PURCHASE_PAGES, pages);
+    }
+
+    Bundle getPurchases(final String itemType, final String continueToken) throws RemoteException {
+        logDebug("Calling getPurchases with continuation token: " + continueToken);
+        long start = metricStart();
+        ServiceCall<Bundle> call = new ServiceCall<Bundle>() {
+            @Override
+            public Bundle call(IInAppBillingService service) throws RemoteException {
+                return service.getPurchases(3, mPackageName, itemType, continueToken);
+            }
+        };
+        try {
+            IInAppBillingService service = getService();
+            try {
+                return callService(service, call);
+            }
+            catch (DeadObjectException e) {
+                return callService(reconnect(service, e), call);
+            }
+        }
+        finally {
+            metricEnd(IabMetrics.CALL_GET_PURCHASES, start);
+        }
+    }
+
+    // Verifies and parses a page of purchases, split across the background executor when it's
+    // big enough. Returns the purchases in page order, with null for any that failed verification.
+    Purchase[] verifyPurchases(final String itemType, final List<String> purchaseDataList,
+                               final List<String> signatureList) throws JSONException, RemoteException {
+        final Purchase[] purchases = new Purchase[purchaseDataList.size()];
+        int chunks = Math.min(Runtime.getRuntime().availableProcessors(), purchases.length / MIN_VERIFY_BATCH);
+        if (chunks <= 1) {
+            verifyPurchases(itemType, purchaseDataList, signatureList, purchases, 0, purchases.length);
+            return purchases;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks);
+        for (int c = 0; c < chunks; ++c) {
+            final int from = purchases.length * c / chunks;
+            final int to = purchases.length * (c + 1) / chunks;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws JSONException {
+                    verifyPurchases(itemType, purchaseDataList, signatureList, purchases, from, to);
+                    return null;
                 }
+            });
+        }
+        try {
+            // Joining the tasks also makes their writes to the array visible here
+            IabTasks.invokeAll(mBackgroundExecutor, tasks);
+        }
+        catch (Exception e) {
+            throw rethrow(e);
+        }
+        return purchases;
+    }
+
+    void verifyPurchases(String itemType, List<String> purchaseDataList, List<String> signatureList,
+                         Purchase[] purchases, int from, int to) throws JSONException {
+        for (int i = from; i < to; ++i) {
+            String purchaseData = purchaseDataList.get(i);
+            String signature = signatureList.get(i);
+            if (verifyPurchase(purchaseData, signature)) {
+                purchases[i] = new Purchase(itemType, purchaseData, signature);
             }
         }
+    }
+
+    // Rethrows an exception from a forked task as one the billing code already deals with
+    static RuntimeException rethrow(Exception e) throws RemoteException, JSONException {
+        if (e instanceof RemoteException) throw (RemoteException) e;
+        if (e instanceof JSONException) throw (JSONException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for in-app billing work.", e);
+        }
+        throw new RuntimeException(e);
+    }
+
+    int querySkuDetails(final String itemType, Inventory inv, List<String> moreSkus,
+                        final InventoryProgress progress) throws RemoteException, JSONException {
+        logDebug("Querying SKU details.");
+        Set<String> skuSet = new LinkedHashSet<String>(inv.getAllOwnedSkus(itemType));
+        if (moreSkus != null) {
+            skuSet.addAll(moreSkus);
+        }
+
+        // Skip whatever the inventory already has details for (e.g. from a shared query)
+        Iterator<String> it = skuSet.iterator();
+        while (it.hasNext()) {
+            if (inv.hasDetails(it.next())) it.remove();
+        }
 
-        if (skuList.size() == 0) {
+        if (skuSet.size() == 0) {
             logDebug("queryPrices: nothing to do because there are no SKUs.");
             return BILLING_RESPONSE_RESULT_OK;
         }
 
-        Bundle querySkus = new Bundle();
-        querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skuList);
-        Bundle skuDetails = mService.getSkuDetails(3, mContext.getPackageName(),
-                itemType, querySkus);
+        // Split into batches the service will accept, and send them all at once. Each batch is
+        // parsed (and reported) as soon as it comes back.
+        List<String> skuList = new ArrayList<String>(skuSet);
+        List<Callable<List<SkuDetails>>> requests = new ArrayList<Callable<List<SkuDetails>>>();
+        for (int from = 0; from < skuList.size(); from += SKU_DETAILS_BATCH_SIZE) {
+            final ArrayList<String> batch = new ArrayList<String>(
+                    skuList.subList(from, Math.min(from + SKU_DETAILS_BATCH_SIZE, skuList.size())));
+            requests.add(new Callable<List<SkuDetails>>() {
+                @Override
+                public List<SkuDetails> call() throws IabException, RemoteException, JSONException {
+                    List<SkuDetails> details = parseSkuDetails(itemType, getSkuDetails(itemType, batch));
+                    if (progress != null && !details.isEmpty()) progress.onSkuDetailsLoaded(itemType, details);
+                    return details;
+                }
+            });
+        }
+
+        List<List<SkuDetails>> responses;
+        try {
+            responses = IabTasks.invokeAll(mBackgroundExecutor, requests);
+        }
+        catch (IabException e) {
+            return e.getResult().getResponse();
+        }
+        catch (Exception e) {
+            throw rethrow(e);
+        }
+
+        for (List<SkuDetails> details : responses) {
+            for (SkuDetails d : details) {
+                inv.addSkuDetails(d);
+                mSkuDetailsCache.put(itemType, d);
+            }
+        }
+        return BILLING_RESPONSE_RESULT_OK;
+    }
 
+    // Parses a getSkuDetails() response, throwing an IabException with the response code if it failed
+    List<SkuDetails> parseSkuDetails(String itemType, Bundle skuDetails) throws IabException, JSONException {
         if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
             int response = getResponseCodeFromBundle(skuDetails);
             if (response != BILLING_RESPONSE_RESULT_OK) {
                 logDebug("getSkuDetails() failed: " + getResponseDesc(response));
-                return response;
+                throw new IabException(response, "getSkuDetails() failed.");
             }
             else {
                 logError("getSkuDetails() returned a bundle with neither an error nor a detail list.");
-                return IABHELPER_BAD_RESPONSE;
+                throw new IabException(IABHELPER_BAD_RESPONSE, "getSkuDetails() returned no detail list.");
             }
         }
 
         ArrayList<String> responseList = skuDetails.getStringArrayList(
                 RESPONSE_GET_SKU_DETAILS_LIST);
 
+        List<SkuDetails> details = new ArrayList<SkuDetails>(responseList.size());
         for (String thisResponse : responseList) {
             SkuDetails d = new SkuDetails(itemType, thisResponse);
             logDebug("Got sku details: " + d);
-            inv.addSkuDetails(d);
+            details.add(d);
         }
-        return BILLING_RESPONSE_RESULT_OK;
+        return details;
+    }
+
+    Bundle getSkuDetails(final String itemType, ArrayList<String> skus) throws RemoteException {
+        logDebug("Calling getSkuDetails for " + skus.size() + " skus.");
+        final Bundle querySkus = new Bundle();
+        querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skus);
+        long start = metricStart();
+        ServiceCall<Bundle> call = new ServiceCall<Bundle>() {
+            @Override
+            public Bundle call(IInAppBillingService service) throws RemoteException {
+                return service.getSkuDetails(3, mPackageName, itemType, querySkus);
+            }
+        };
+        try {
+            IInAppBillingService service = getService();
+            try {
+                return callService(service, call);
+            }
+            catch (DeadObjectException e) {
+                return callService(reconnect(service, e), call);
+            }
+        }
+        finally {
+            metricEnd(IabMetrics.CALL_GET_SKU_DETAILS, start);
+        }
+    }
+
+
+    // Consumes the purchases as one queued operation, keyed by their SKUs
+    void consumeAsyncInternal(String name, List<Purchase> purchases, OnConsumeFinishedListener singleListener,
+                              OnConsumeMultiFinishedListener multiListener) {
+        Executor callback = getCallbackExecutor();
+        Set<String> skus = new LinkedHashSet<String>();
+        for (Purchase purchase : purchases) {
+            skus.add(purchase.getSku());
+        }
+        mAsyncQueue.submit(name, skus, callback, newConsumeOperation(callback, purchases, singleListener, multiListener));
     }
 
+    // Returns the body of an operation consuming the purchases, which delivers its results
+    // through the given executor
+    IabAsyncQueue.Operation newConsumeOperation(final Executor callback, final List<Purchase> purchases,
+                                                final OnConsumeFinishedListener singleListener,
+                                                final OnConsumeMultiFinishedListener multiListener) {
+        final OnConsumeMultiProgressListener progressListener =
+                (multiListener instanceof OnConsumeMultiProgressListener) ? (OnConsumeMultiProgressListener) multiListener : null;
+
+        // Consume each token only once; duplicates share the result of the first occurrence
+        final List<Purchase> unique = new ArrayList<Purchase>();
+        final int[] uniqueIndex = new int[purchases.size()];
+        Map<String, Integer> byToken = new HashMap<String, Integer>();
+        for (int i = 0; i < purchases.size(); ++i) {
+            Purchase purchase = purchases.get(i);
+            String token = purchase.getToken();
+            Integer index = TextUtils.isEmpty(token) ? null : byToken.get(token);
+            if (index == null) {
+                index = unique.size();
+                unique.add(purchase);
+                if (!TextUtils.isEmpty(token)) byToken.put(token, index);
+            }
+            uniqueIndex[i] = index;
+        }
 
-    void consumeAsyncInternal(final List<Purchase> purchases,
-                              final OnConsumeFinishedListener singleListener,
-                              final OnConsumeMultiFinishedListener multiListener) {
-        final Handler handler = new Handler();
-        flagStartAsync("consume");
-        (new Thread(new Runnable() {
+        final int workers = Math.max(1, Math.min(mConsumeParallelism, unique.size()));
+        return new IabAsyncQueue.Operation() {
             @Override
-            public void run() {
-                final List<IabResult> results = new ArrayList<IabResult>();
-                for (Purchase purchase : purchases) {
-                    try {
-                        consume(purchase);
-                        results.add(new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku()));
-                    }
-                    catch (IabException ex) {
-                        results.add(ex.getResult());
+            public void start(final IabAsyncQueue.Ticket ticket) {
+                final IabResult[] uniqueResults = new IabResult[unique.size()];
+                final AtomicInteger next = new AtomicInteger(0);
+                final AtomicInteger remaining = new AtomicInteger(unique.size());
+
+                if (unique.isEmpty()) {
+                    finishConsume(ticket, purchases, uniqueIndex, uniqueResults, singleListener, multiListener);
+                    return;
+                }
+
+                // Each worker keeps taking the next unconsumed purchase, so one slow token only
+                // holds up the worker that drew it
+                Runnable worker = new Runnable() {
+                    @Override
+                    public void run() {
+                        int i;
+                        while ((i = next.getAndIncrement()) < unique.size()) {
+                            final Purchase purchase = unique.get(i);
+                            IabResult result;
+                            try {
+                                consume(purchase);
+                                result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku());
+                            }
+                            catch (IabException ex) {
+                                result = ex.getResult();
+                            }
+                            uniqueResults[i] = result;
+
+                            if (progressListener != null) {
+                                final IabResult result_f = result;
+                                callback.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        if (!mDisposed) progressListener.onConsumeItemFinished(purchase, result_f);
+                                    }
+                                });
+                            }
+
+                            if (remaining.decrementAndGet() == 0) {
+                                finishConsume(ticket, purchases, uniqueIndex, uniqueResults, singleListener, multiListener);
+                            }
+                        }
                     }
+                };
+                // The whole batch shares one deadline
+                Runnable timedWorker = IabDeadline.under(asyncDeadline(), worker);
+                for (int w = 0; w < workers; ++w) {
+                    mBackgroundExecutor.execute(timedWorker);
                 }
+            }
+        };
+    }
+
+    // Expands the per-token results back to one per purchase and delivers them
+    void finishConsume(IabAsyncQueue.Ticket ticket, final List<Purchase> purchases, int[] uniqueIndex,
+                       IabResult[] uniqueResults, final OnConsumeFinishedListener singleListener,
+                       final OnConsumeMultiFinishedListener multiListener) {
+        final List<IabResult> results = new ArrayList<IabResult>(purchases.size());
+        for (int i = 0; i < purchases.size(); ++i) {
+            results.add(uniqueResults[uniqueIndex[i]]);
+        }
 
-                flagEndAsync();
+        ticket.finish(new Runnable() {
+            @Override
+            public void run() {
                 if (!mDisposed && singleListener != null) {
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            singleListener.onConsumeFinished(purchases.get(0), results.get(0));
-                        }
-                    });
+                    singleListener.onConsumeFinished(purchases.get(0), results.get(0));
                 }
                 if (!mDisposed && multiListener != null) {
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            multiListener.onConsumeMultiFinished(purchases, results);
-                        }
-                    });
+                    multiListener.onConsumeMultiFinished(purchases, results);
                 }
             }
-        })).start();
+        });
     }
 
     void logDebug(String msg) {
@@ -0,0 +1,148 @@
+package com.example.android.trivialdrivesample.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Collects latency and throughput figures for an {@link IabHelper}: how long each call to the
+ * billing service takes, signature verification time, how long asynchronous operations wait in
+ * the queue, and how many pages each purchase query needs. Service calls are timed whether they
+ * succeed, fail or time out, so a timed-out call shows up as a call as long as its deadline.
+ *
+ * Recording is lock-free and only costs a few atomic increments, and nothing is logged. Pass an
+ * instance to {@link IabHelper#setMetrics} and read it whenever you like through {@link #getSnapshot}.
+ */
+public class IabMetrics {
+    // What is measured (durations are in microseconds)
+    public static final int CALL_IS_BILLING_SUPPORTED = 0;
+    public static final int CALL_GET_PURCHASES = 1;
+    public static final int CALL_GET_SKU_DETAILS = 2;
+    public static final int CALL_GET_BUY_INTENT = 3;
+    public static final int CALL_CONSUME_PURCHASE = 4;
+    public static final int VERIFY_PURCHASE = 5;
+    public static final int QUEUE_WAIT = 6;
+    public static final int PURCHASE_PAGES = 7;
+    static final int METRIC_COUNT = 8;
+
+    static final String[] METRIC_NAMES = { "isBillingSupported", "getPurchases", "getSkuDetails",
+            "getBuyIntent", "consumePurchase", "verifyPurchase", "queueWait", "purchasePages" };
+
+    // Values are sorted into power-of-two buckets; bucket i holds values below 2^i
+    static final int BUCKET_COUNT = 64;
+
+    /**
+     * A point-in-time copy of one metric.
+     */
+    public static class Snapshot {
+        final String mName;
+        final long mCount;
+        final long mSum;
+        final long mMax;
+        final long[] mBuckets;
+
+        Snapshot(String name, long count, long sum, long max, long[] buckets) {
+            mName = name;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+            mBuckets = buckets;
+        }
+
+        public String getName() { return mName; }
+        public long getCount() { return mCount; }
+        public long getSum() { return mSum; }
+        public long getMax() { return mMax; }
+        public double getMean() { return (mCount == 0) ? 0 : (double) mSum / mCount; }
+
+        /**
+         * Returns an upper bound for the given percentile, accurate to within a factor of two.
+         *
+         * @param percentile Between 0 and 100.
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) return 0;
+            long rank = (long) Math.ceil(mCount * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; ++i) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0) return Math.min(mMax, (i == 0) ? 0 : (1L << i) - 1);
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": count=" + mCount + " mean=" + (long) getMean() + " p50=" + getPercentile(50)
+                    + " p95=" + getPercentile(95) + " max=" + mMax;
+        }
+    }
+
+    final AtomicLongArray mBuckets = new AtomicLongArray(METRIC_COUNT * BUCKET_COUNT);
+    final AtomicLongArray mCounts = new AtomicLongArray(METRIC_COUNT);
+    final AtomicLongArray mSums = new AtomicLongArray(METRIC_COUNT);
+    final AtomicLong[] mMaxes = new AtomicLong[METRIC_COUNT];
+
+    public IabMetrics() {
+        for (int i = 0; i < METRIC_COUNT; ++i) {
+            mMaxes[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Records a value for a metric. Durations are in microseconds.
+     */
+    public void record(int metric, long value) {
+        if (value < 0) value = 0;
+        int bucket = BUCKET_COUNT - Long.numberOfLeadingZeros(value);
+        if (bucket >= BUCKET_COUNT) bucket = BUCKET_COUNT - 1;
+        mBuckets.incrementAndGet(metric * BUCKET_COUNT + bucket);
+        mCounts.incrementAndGet(metric);
+        mSums.addAndGet(metric, value);
+
+        AtomicLong max = mMaxes[metric];
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    // Records the time elapsed since a System.nanoTime() reading, in microseconds
+    void recordSince(int metric, long startNanos) {
+        record(metric, (System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Returns a copy of the given metric. Concurrent recording may make the figures of a snapshot
+     * very slightly inconsistent with each other, which is fine for sampling.
+     */
+    public Snapshot getSnapshot(int metric) {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            buckets[i] = mBuckets.get(metric * BUCKET_COUNT + i);
+        }
+        return new Snapshot(METRIC_NAMES[metric], mCounts.get(metric), mSums.get(metric),
+                mMaxes[metric].get(), buckets);
+    }
+
+    /** Clears every metric. */
+    public void reset() {
+        for (int i = 0; i < mBuckets.length(); ++i) {
+            mBuckets.set(i, 0);
+        }
+        for (int i = 0; i < METRIC_COUNT; ++i) {
+            mCounts.set(i, 0);
+            mSums.set(i, 0);
+            mMaxes[i].set(0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("IabMetrics:");
+        for (int i = 0; i < METRIC_COUNT; ++i) {
+            sb.append("\n  ").append(getSnapshot(i));
+        }
+        return sb.toString();
+    }
+}
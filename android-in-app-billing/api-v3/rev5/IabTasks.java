@@ -0,0 +1,91 @@
+package com.example.android.trivialdrivesample.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Fork/join helpers for splitting billing work across an Executor.
+ *
+ * Joining a task that no thread has picked up yet runs it on the joining thread. Waiting on work
+ * submitted to a bounded pool therefore never deadlocks, even when the waiting thread belongs to
+ * that same pool.
+ *
+ * Forked tasks run under the {@link IabDeadline} of the thread that forked them, and joining gives
+ * up once the joining thread's deadline passes.
+ */
+final class IabTasks {
+    private IabTasks() {
+    }
+
+    /**
+     * Submits a task to the executor.
+     */
+    static <T> FutureTask<T> fork(Executor executor, Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<T>(IabDeadline.propagate(callable));
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Waits for a forked task, running it on this thread if it hasn't started yet.
+     *
+     * @return The task's result.
+     * @throws Exception Whatever the task threw, InterruptedException if interrupted while waiting,
+     *     or IabDeadline.ExceededException if this thread's deadline passed first.
+     */
+    static <T> T join(FutureTask<T> task) throws Exception {
+        // No-op if another thread already ran (or is running) the task
+        task.run();
+        try {
+            long remaining = IabDeadline.remainingMillis();
+            if (remaining == IabDeadline.NONE) return task.get();
+            return task.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            throw new IabDeadline.ExceededException("Timed out waiting for billing work.");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Runs all the callables, the first on this thread and the rest on the executor, and returns
+     * their results in the same order. If one throws, the ones that haven't started are cancelled
+     * and the exception is rethrown.
+     */
+    static <T> List<T> invokeAll(Executor executor, List<? extends Callable<T>> callables) throws Exception {
+        List<T> results = new ArrayList<T>(callables.size());
+        if (callables.isEmpty()) return results;
+
+        List<FutureTask<T>> tasks = new ArrayList<FutureTask<T>>(callables.size());
+        for (int i = 1; i < callables.size(); ++i) {
+            tasks.add(fork(executor, callables.get(i)));
+        }
+
+        int joined = 0;
+        try {
+            results.add(callables.get(0).call());
+            for (FutureTask<T> task : tasks) {
+                results.add(join(task));
+                ++joined;
+            }
+        }
+        finally {
+            for (int i = joined; i < tasks.size(); ++i) {
+                tasks.get(i).cancel(false);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,342 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Keeps the last verified {@link Inventory} in memory and in a small file, so that what the user
+ * owns is known at startup, before the billing service has even been bound.
+ *
+ * Purchases are stored along with their signatures and are verified again when the file is read,
+ * so a snapshot that was tampered with (or signed for another key) is thrown away.
+ *
+ * The verifier's remembered results can optionally be stored alongside, which lets the purchases
+ * in the snapshot (and an unchanged refresh) skip the RSA check after a restart. They are sealed
+ * with a key from the Android keystore (see {@link VerificationSeal}) and only trusted if the
+ * seal checks out, so a file that was tampered with can't vouch for its own purchases; they are
+ * verified the usual way instead. Without a keystore key, the results aren't stored.
+ *
+ * There is one cache per file in the process (see {@link #get}), shared by every helper that
+ * enables it, so what one helper queries is seen by the others without reading the file again.
+ * It keeps the verifier of the helper that enabled it first.
+ */
+class InventoryCache {
+    static final String TAG = "IabHelper/InventoryCache";
+
+    // Identifies the file format, bump when it changes
+    static final int FILE_MAGIC = 0x49414243;
+    static final int FILE_VERSION = 3;
+
+    // The caches of this process, by file path
+    static final Map<String, InventoryCache> sShared = new HashMap<String, InventoryCache>();
+
+    /**
+     * Returns the cache kept in the given file, creating it with the given verifier if this
+     * process has none yet.
+     */
+    static synchronized InventoryCache get(File file, PurchaseVerifier verifier) {
+        String path = file.getAbsolutePath();
+        InventoryCache cache = sShared.get(path);
+        if (cache == null) {
+            cache = new InventoryCache(file, verifier);
+            sShared.put(path, cache);
+        }
+        return cache;
+    }
+
+    // Where the snapshot is kept
+    final File mFile;
+
+    // Verifies the stored purchases
+    final PurchaseVerifier mVerifier;
+
+    // Has the file been read yet?
+    boolean mLoaded = false;
+
+    // The snapshot, or null if there's none
+    Inventory mInventory;
+
+    // When the snapshot was taken (System.currentTimeMillis), 0 if it needs revalidating
+    long mTimestamp = 0;
+
+    // Were SKU details queried for the snapshot?
+    boolean mHasDetails = false;
+
+    // Are verification results stored with the snapshot?
+    boolean mPersistVerifications = false;
+
+    // Seals the stored verification results, null until they are stored
+    VerificationSeal mSeal;
+
+    InventoryCache(File file, PurchaseVerifier verifier) {
+        mFile = file;
+        mVerifier = verifier;
+    }
+
+    /**
+     * Returns a copy of the cached inventory, reading it from disk on first use.
+     *
+     * @return The inventory, or null if nothing valid was cached.
+     */
+    synchronized Inventory get() {
+        load();
+        return (mInventory == null) ? null : copyOf(mInventory);
+    }
+
+    /**
+     * Returns whether the cached inventory is younger than the given age and can stand in for a
+     * query with the given arguments.
+     */
+    synchronized boolean isFresh(long maxAgeMillis, boolean querySkuDetails, List<String> moreSkus) {
+        load();
+        if (mInventory == null || mTimestamp == 0) return false;
+
+        long age = System.currentTimeMillis() - mTimestamp;
+        if (age < 0 || age >= maxAgeMillis) return false;
+
+        if (querySkuDetails) {
+            if (!mHasDetails) return false;
+            if (moreSkus != null) {
+                for (String sku : moreSkus) {
+                    if (!mInventory.hasDetails(sku)) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the cached inventory with a freshly queried one and writes it to disk. If the new
+     * one was queried without SKU details, those of the old one are kept, and still count as
+     * queried as long as they cover everything owned. Call from a background thread.
+     */
+    synchronized void put(Inventory inv, boolean hasDetails) {
+        load();
+        Inventory copy = copyOf(inv);
+        if (!hasDetails && mHasDetails && mInventory != null) {
+            for (Map.Entry<String, SkuDetails> e : mInventory.mSkuMap.entrySet()) {
+                if (!copy.mSkuMap.containsKey(e.getKey())) copy.mSkuMap.put(e.getKey(), e.getValue());
+            }
+            hasDetails = copy.mSkuMap.keySet().containsAll(copy.mPurchaseMap.keySet());
+        }
+        mInventory = copy;
+        mTimestamp = System.currentTimeMillis();
+        mHasDetails = hasDetails;
+        save();
+    }
+
+    /**
+     * Adds SKU details fetched after the cached inventory was queried, leaving its purchases and
+     * age alone. Call from a background thread.
+     */
+    synchronized void putSkuDetails(Collection<SkuDetails> details) {
+        load();
+        if (mInventory == null) return;
+        boolean added = false;
+        for (SkuDetails d : details) {
+            if (mInventory.mSkuMap.containsKey(d.getSku())) continue;
+            mInventory.mSkuMap.put(d.getSku(), d);
+            added = true;
+        }
+        if (added) save();
+    }
+
+    /**
+     * Keeps the cached inventory for startup, but makes sure the next query goes to the service.
+     * Call from a background thread.
+     */
+    synchronized void invalidate() {
+        load();
+        if (mInventory == null || mTimestamp == 0) return;
+        mTimestamp = 0;
+        save();
+    }
+
+    /** Forgets the cached inventory and deletes the file. */
+    synchronized void clear() {
+        mLoaded = true;
+        mInventory = null;
+        mTimestamp = 0;
+        mHasDetails = false;
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Unable to delete " + mFile);
+        }
+    }
+
+    /**
+     * Sets whether the verifier's remembered results are saved and restored with the snapshot.
+     * They aren't if there's no keystore key to seal them with.
+     */
+    synchronized void setPersistVerifications(boolean persist) {
+        if (persist && mSeal == null) mSeal = VerificationSeal.get();
+        if (persist && mSeal == null) {
+            Log.w(TAG, "No key to seal verification results with, not saving them.");
+            persist = false;
+        }
+        mPersistVerifications = persist;
+    }
+
+    // Returns the encoded public key the remembered results were verified with
+    byte[] verifierKey() {
+        return (mVerifier.mPublicKey == null) ? new byte[0] : mVerifier.mPublicKey.getEncoded();
+    }
+
+    // Returns a copy that can be handed out without sharing the maps
+    static Inventory copyOf(Inventory inv) {
+        Inventory copy = new Inventory();
+        copy.mPurchaseMap.putAll(inv.mPurchaseMap);
+        copy.mSkuMap.putAll(inv.mSkuMap);
+        return copy;
+    }
+
+    private void load() {
+        if (mLoaded) return;
+        mLoaded = true;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Ignoring inventory cache with unknown format.");
+                return;
+            }
+            long timestamp = in.readLong();
+            boolean hasDetails = in.readBoolean();
+
+            // Remembered verifications come first, so the purchases below can use them
+            int verifiedCount = in.readInt();
+            List<String> verified = new ArrayList<String>(verifiedCount);
+            for (int i = 0; i < verifiedCount; ++i) {
+                verified.add(in.readUTF());
+            }
+            byte[] seal = new byte[in.readInt()];
+            in.readFully(seal);
+            if (mPersistVerifications && !verified.isEmpty()) {
+                if (mSeal.isSealed(verifierKey(), verified, seal)) {
+                    mVerifier.addVerifiedKeys(verified);
+                }
+                else {
+                    Log.w(TAG, "Stored verification results aren't sealed with our key, verifying again.");
+                }
+            }
+
+            Inventory inv = new Inventory();
+            int purchaseCount = in.readInt();
+            for (int i = 0; i < purchaseCount; ++i) {
+                String itemType = in.readUTF();
+                String purchaseData = in.readUTF();
+                String signature = in.readUTF();
+                if (!mVerifier.verify(purchaseData, signature)) {
+                    Log.w(TAG, "Purchase signature verification FAILED for cached inventory. Discarding it.");
+                    return;
+                }
+                inv.addPurchase(new Purchase(itemType, purchaseData, signature));
+            }
+
+            int detailsCount = in.readInt();
+            for (int i = 0; i < detailsCount; ++i) {
+                String itemType = in.readUTF();
+                inv.addSkuDetails(new SkuDetails(itemType, in.readUTF()));
+            }
+
+            mInventory = inv;
+            mTimestamp = timestamp;
+            mHasDetails = hasDetails;
+        }
+        catch (FileNotFoundException e) {
+            // Nothing cached yet
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to read inventory cache: " + e);
+        }
+        catch (JSONException e) {
+            Log.w(TAG, "Unable to parse inventory cache: " + e);
+        }
+        finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void save() {
+        // Write to a temporary file first, so a crash halfway through can't leave a broken cache
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeLong(mTimestamp);
+            out.writeBoolean(mHasDetails);
+
+            List<String> verified = mPersistVerifications ? mVerifier.getVerifiedKeys() : new ArrayList<String>();
+            byte[] seal = verified.isEmpty() ? null : mSeal.seal(verifierKey(), verified);
+            if (seal == null) {
+                verified.clear();
+                seal = new byte[0];
+            }
+            out.writeInt(verified.size());
+            for (String key : verified) {
+                out.writeUTF(key);
+            }
+            out.writeInt(seal.length);
+            out.write(seal);
+
+            List<Purchase> purchases = new ArrayList<Purchase>(mInventory.mPurchaseMap.values());
+            out.writeInt(purchases.size());
+            for (Purchase p : purchases) {
+                out.writeUTF(p.mItemType);
+                out.writeUTF(p.getOriginalJson());
+                out.writeUTF(p.getSignature());
+            }
+
+            List<SkuDetails> details = new ArrayList<SkuDetails>(mInventory.mSkuMap.values());
+            out.writeInt(details.size());
+            for (SkuDetails d : details) {
+                out.writeUTF(d.mItemType);
+                out.writeUTF(d.mJson);
+            }
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "Unable to replace " + mFile);
+                tmp.delete();
+            }
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to write inventory cache: " + e);
+            tmp.delete();
+        }
+        finally {
+            closeQuietly(out);
+        }
+    }
+
+    static void closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        }
+        catch (IOException e) {
+            // Nothing useful to do about it
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.android.trivialdrivesample.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The difference in owned purchases between two inventories, by SKU. A purchase is changed when
+ * the same SKU is owned in both but with a different order, token or purchase state (e.g. a
+ * subscription that was renewed or upgraded).
+ *
+ * See {@link IabHelper#setOnEntitlementsChangedListener}.
+ */
+public class InventoryDelta {
+    final List<Purchase> mAdded;
+    final List<Purchase> mRemoved;
+    final List<Purchase> mChanged;
+
+    InventoryDelta(List<Purchase> added, List<Purchase> removed, List<Purchase> changed) {
+        mAdded = Collections.unmodifiableList(added);
+        mRemoved = Collections.unmodifiableList(removed);
+        mChanged = Collections.unmodifiableList(changed);
+    }
+
+    /**
+     * Compares the purchases of two inventories.
+     *
+     * @param before The earlier inventory, or null if there wasn't one (everything is added).
+     * @param after The later inventory.
+     */
+    static InventoryDelta between(Inventory before, Inventory after) {
+        List<Purchase> added = new ArrayList<Purchase>();
+        List<Purchase> removed = new ArrayList<Purchase>();
+        List<Purchase> changed = new ArrayList<Purchase>();
+
+        Map<String, Purchase> old = (before == null) ? Collections.<String, Purchase>emptyMap() : before.mPurchaseMap;
+        for (Map.Entry<String, Purchase> e : after.mPurchaseMap.entrySet()) {
+            Purchase previous = old.get(e.getKey());
+            if (previous == null) {
+                added.add(e.getValue());
+            }
+            else if (!isSamePurchase(previous, e.getValue())) {
+                changed.add(e.getValue());
+            }
+        }
+        for (Map.Entry<String, Purchase> e : old.entrySet()) {
+            if (!after.mPurchaseMap.containsKey(e.getKey())) removed.add(e.getValue());
+        }
+        return new InventoryDelta(added, removed, changed);
+    }
+
+    static boolean isSamePurchase(Purchase a, Purchase b) {
+        return equal(a.getOrderId(), b.getOrderId()) && equal(a.getToken(), b.getToken())
+                && a.getPurchaseState() == b.getPurchaseState();
+    }
+
+    private static boolean equal(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    /** Returns the purchases of SKUs that weren't owned before. */
+    public List<Purchase> getAdded() {
+        return mAdded;
+    }
+
+    /** Returns the purchases of SKUs that are no longer owned (e.g. consumed or refunded). */
+    public List<Purchase> getRemoved() {
+        return mRemoved;
+    }
+
+    /** Returns the new purchases of SKUs that are still owned, but under a different order or state. */
+    public List<Purchase> getChanged() {
+        return mChanged;
+    }
+
+    /** Returns whether nothing changed. */
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mRemoved.isEmpty() && mChanged.isEmpty();
+    }
+
+    /** Returns whether the given SKU was added, removed or changed. */
+    public boolean affectsSku(String sku) {
+        return contains(mAdded, sku) || contains(mRemoved, sku) || contains(mChanged, sku);
+    }
+
+    private static boolean contains(List<Purchase> purchases, String sku) {
+        for (Purchase p : purchases) {
+            if (p.getSku().equals(sku)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "InventoryDelta: added " + skus(mAdded) + ", removed " + skus(mRemoved)
+                + ", changed " + skus(mChanged);
+    }
+
+    private static List<String> skus(List<Purchase> purchases) {
+        List<String> skus = new ArrayList<String>(purchases.size());
+        for (Purchase p : purchases) {
+            skus.add(p.getSku());
+        }
+        return skus;
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Verifies purchase signatures against the app's public key, like {@link Security#verifyPurchase}.
+ * The key is decoded once when the verifier is created, and each thread keeps its own Signature
+ * already initialized with it, so verifying a purchase only costs the RSA check itself.
+ *
+ * Results are also remembered in a small LRU cache keyed by the digests of the purchase data and
+ * signature, so a purchase that comes back unchanged on the next inventory refresh isn't checked
+ * again.
+ */
+class PurchaseVerifier {
+    static final String TAG = "IabHelper/Verifier";
+    static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+    static final String DIGEST_ALGORITHM = "SHA-256";
+
+    // How many verification results are remembered
+    static final int MEMO_SIZE = 512;
+
+    // The decoded public key, or null if none (or an invalid one) was given
+    final PublicKey mPublicKey;
+
+    // Signature ready for verification, one per thread as they aren't thread safe
+    final ThreadLocal<Signature> mSignature = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                Signature sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+                sig.initVerify(mPublicKey);
+                return sig;
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            catch (InvalidKeyException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    };
+
+    // Digest used for memo keys, one per thread
+    final ThreadLocal<MessageDigest> mDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(DIGEST_ALGORITHM);
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    // Verification results, keyed by the digests of purchase data and signature (access ordered)
+    final Map<String, Boolean> mMemo = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MEMO_SIZE;
+        }
+    };
+
+    /**
+     * @param base64PublicKey The app's public key, encoded in base64.
+     */
+    PurchaseVerifier(String base64PublicKey) {
+        PublicKey key = null;
+        if (!TextUtils.isEmpty(base64PublicKey)) {
+            try {
+                key = Security.generatePublicKey(base64PublicKey);
+            }
+            catch (IllegalArgumentException e) {
+                Log.e(TAG, "Invalid public key, no purchase will pass verification.");
+            }
+        }
+        mPublicKey = key;
+    }
+
+    /**
+     * Verifies that the data was signed with the private key matching our public key.
+     *
+     * @param signedData The signed JSON string (signed, not encrypted).
+     * @param signature The signature for the data, signed with the private key.
+     * @return Whether the signature is valid.
+     */
+    boolean verify(String signedData, String signature) {
+        if (TextUtils.isEmpty(signedData) || TextUtils.isEmpty(signature) || mPublicKey == null) {
+            Log.e(TAG, "Purchase verification failed: missing data.");
+            return false;
+        }
+
+        String key = memoKey(signedData, signature);
+        synchronized (mMemo) {
+            Boolean known = mMemo.get(key);
+            if (known != null) return known.booleanValue();
+        }
+
+        boolean verified = verifySignature(signedData, signature);
+        synchronized (mMemo) {
+            mMemo.put(key, Boolean.valueOf(verified));
+        }
+        return verified;
+    }
+
+    /**
+     * Returns the memo keys of every remembered successful verification, most recently used last.
+     */
+    List<String> getVerifiedKeys() {
+        List<String> keys = new ArrayList<String>();
+        synchronized (mMemo) {
+            for (Map.Entry<String, Boolean> e : mMemo.entrySet()) {
+                if (e.getValue().booleanValue()) keys.add(e.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Remembers the given memo keys as successfully verified, as returned by {@link #getVerifiedKeys}.
+     */
+    void addVerifiedKeys(Collection<String> keys) {
+        synchronized (mMemo) {
+            for (String key : keys) {
+                mMemo.put(key, Boolean.TRUE);
+            }
+        }
+    }
+
+    // Builds the memo key from the digests of the purchase data and of its signature
+    String memoKey(String signedData, String signature) {
+        MessageDigest md = mDigest.get();
+        StringBuilder sb = new StringBuilder(128);
+        appendHex(sb, md.digest(signedData.getBytes()));
+        appendHex(sb, md.digest(signature.getBytes()));
+        return sb.toString();
+    }
+
+    static void appendHex(StringBuilder sb, byte[] bytes) {
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+    }
+
+    // Does the actual RSA check
+    boolean verifySignature(String signedData, String signature) {
+        byte[] signatureBytes;
+        try {
+            signatureBytes = Base64.decode(signature);
+        }
+        catch (Base64DecoderException e) {
+            Log.e(TAG, "Base64 decoding failed.");
+            return false;
+        }
+
+        Signature sig = mSignature.get();
+        try {
+            // verify() leaves the Signature ready for the next use
+            sig.update(signedData.getBytes());
+            if (!sig.verify(signatureBytes)) {
+                Log.e(TAG, "Signature verification failed.");
+                return false;
+            }
+            return true;
+        }
+        catch (SignatureException e) {
+            // Don't trust the state it was left in
+            mSignature.remove();
+            Log.e(TAG, "Signature exception.");
+            return false;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.android.trivialdrivesample.util;
+
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Remembers the {@link SkuDetails} (prices, titles, descriptions) seen by {@link IabHelper}, keyed
+ * by item type and sku, along with when each was fetched. Stale entries are still handed out, so
+ * the UI can show a price straight away while a fresh one is fetched in the background.
+ *
+ * Prices are formatted for the user's locale and currency, so everything is dropped as soon as
+ * either changes.
+ */
+class SkuDetailsCache {
+    static class Entry {
+        final SkuDetails mDetails;
+
+        // When the details were fetched (System.currentTimeMillis), 0 if unknown
+        final long mTimestamp;
+
+        Entry(SkuDetails details, long timestamp) {
+            mDetails = details;
+            mTimestamp = timestamp;
+        }
+    }
+
+    final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    // Locale and currency the cached entries were fetched under
+    String mLocaleKey;
+
+    /** Returns the cached details for a sku, however old, or null. */
+    synchronized SkuDetails get(String itemType, String sku) {
+        checkLocale();
+        Entry e = mEntries.get(key(itemType, sku));
+        return (e == null) ? null : e.mDetails;
+    }
+
+    /** Returns whether the sku's details are missing or older than the given age. */
+    synchronized boolean isStale(String itemType, String sku, long maxAgeMillis) {
+        checkLocale();
+        Entry e = mEntries.get(key(itemType, sku));
+        if (e == null) return true;
+        long age = System.currentTimeMillis() - e.mTimestamp;
+        return age < 0 || age >= maxAgeMillis;
+    }
+
+    /** Stores details that were just fetched. */
+    synchronized void put(String itemType, SkuDetails details) {
+        checkLocale();
+        mEntries.put(key(itemType, details.getSku()), new Entry(details, System.currentTimeMillis()));
+    }
+
+    /** Stores details of unknown age (e.g. from the inventory cache), unless newer ones are known. */
+    synchronized void putStale(String itemType, SkuDetails details) {
+        checkLocale();
+        String key = key(itemType, details.getSku());
+        if (!mEntries.containsKey(key)) mEntries.put(key, new Entry(details, 0));
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    // Drops everything if the locale or currency changed since the entries were fetched
+    private void checkLocale() {
+        String localeKey = currentLocaleKey();
+        if (!localeKey.equals(mLocaleKey)) {
+            mEntries.clear();
+            mLocaleKey = localeKey;
+        }
+    }
+
+    static String currentLocaleKey() {
+        Locale locale = Locale.getDefault();
+        String currency;
+        try {
+            Currency c = Currency.getInstance(locale);
+            currency = (c == null) ? "" : c.getCurrencyCode();
+        }
+        catch (IllegalArgumentException e) {
+            // Locale without a country, so no currency either
+            currency = "";
+        }
+        return locale.toString() + "/" + currency;
+    }
+
+    static String key(String itemType, String sku) {
+        return itemType + ":" + sku;
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.ProviderException;
+import java.util.List;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+
+/**
+ * Authenticates the verification results saved with the inventory cache, so the file can't vouch
+ * for purchases that were never verified. The memo keys are sealed with an HMAC whose key lives
+ * in the Android keystore and can't be read out of it, even by someone who can write the file.
+ *
+ * The keystore only holds HMAC keys from Android 6.0 (API 23) on; before that {@link #get}
+ * returns null and the results aren't saved at all.
+ */
+class VerificationSeal {
+    static final String TAG = "IabHelper/Seal";
+    static final String KEYSTORE = "AndroidKeyStore";
+    static final String KEY_ALIAS = "IabHelper.verifications";
+    static final String MAC_ALGORITHM = "HmacSHA256";
+
+    // The seal of this process, once the key has been looked up
+    static VerificationSeal sSeal;
+    static boolean sLookedUp = false;
+
+    /**
+     * Returns the seal backed by the app's keystore key, creating the key on first use.
+     *
+     * @return The seal, or null if the keystore can't hold the key.
+     */
+    static synchronized VerificationSeal get() {
+        if (!sLookedUp) {
+            sLookedUp = true;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                SecretKey key = loadKey();
+                if (key != null) sSeal = new VerificationSeal(key);
+            }
+        }
+        return sSeal;
+    }
+
+    static SecretKey loadKey() {
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+            keyStore.load(null);
+            Key key = keyStore.getKey(KEY_ALIAS, null);
+            if (key instanceof SecretKey) return (SecretKey) key;
+
+            KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_HMAC_SHA256, KEYSTORE);
+            generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                    KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY).build());
+            return generator.generateKey();
+        }
+        catch (GeneralSecurityException e) {
+            Log.w(TAG, "Unable to get the sealing key: " + e);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to get the sealing key: " + e);
+        }
+        catch (ProviderException e) {
+            // Some keystores fail this way rather than with a checked exception
+            Log.w(TAG, "Unable to get the sealing key: " + e);
+        }
+        return null;
+    }
+
+    // The HMAC key
+    final SecretKey mKey;
+
+    VerificationSeal(SecretKey key) {
+        mKey = key;
+    }
+
+    /**
+     * Returns the seal of the given memo keys, which are only good for the given public key.
+     *
+     * @return The seal, or null if it couldn't be computed.
+     */
+    byte[] seal(byte[] publicKey, List<String> memoKeys) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(mKey);
+            mac.update(publicKey);
+            for (String memoKey : memoKeys) {
+                // Memo keys are hex, so a separator can't be confused with one
+                mac.update((byte) '\n');
+                mac.update(memoKey.getBytes("UTF-8"));
+            }
+            return mac.doFinal();
+        }
+        catch (GeneralSecurityException e) {
+            Log.w(TAG, "Unable to seal verification results: " + e);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to seal verification results: " + e);
+        }
+        catch (ProviderException e) {
+            Log.w(TAG, "Unable to seal verification results: " + e);
+        }
+        return null;
+    }
+
+    /** Returns whether the seal was made by {@link #seal} for these memo keys and public key. */
+    boolean isSealed(byte[] publicKey, List<String> memoKeys, byte[] seal) {
+        byte[] expected = seal(publicKey, memoKeys);
+        return expected != null && MessageDigest.isEqual(expected, seal);
+    }
+}
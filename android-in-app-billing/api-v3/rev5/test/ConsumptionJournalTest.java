@@ -0,0 +1,242 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * The journal of purchases still to be consumed, on its own and as replayed by
+ * {@link IabHelper#recoverConsumptions} against a {@link FakeInAppBillingService}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConsumptionJournalTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    FakeInAppBillingService mService;
+    IabHelper mHelper;
+    File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mService = new FakeInAppBillingService();
+        Executor direct = IabHelper.newDirectExecutor();
+        mHelper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+        mHelper.startSetup(mService, null);
+        mFile = new File(mFolder.getRoot(), "journal");
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.dispose();
+    }
+
+    // Returns the purchases the service owns, as it hands them out
+    List<Purchase> ownedPurchases() throws Exception {
+        Bundle owned = mService.getPurchases(3, IabLoadDriver.PACKAGE_NAME, IabHelper.ITEM_TYPE_INAPP, null);
+        List<String> data = owned.getStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST);
+        List<String> signatures = owned.getStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST);
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        for (int i = 0; i < data.size(); ++i) {
+            purchases.add(new Purchase(IabHelper.ITEM_TYPE_INAPP, data.get(i), signatures.get(i)));
+        }
+        return purchases;
+    }
+
+    // Hands the helper a journal of the file for the given consumable skus, like
+    // enableConsumptionJournal does with one in the app's files dir
+    ConsumptionJournal enableJournal(String... consumableSkus) {
+        ConsumptionJournal journal = new ConsumptionJournal(mFile);
+        mHelper.mConsumptionJournal = journal;
+        for (String sku : consumableSkus) {
+            mHelper.mConsumableSkus.add(sku);
+        }
+        return journal;
+    }
+
+    // Returns a listener that adds the recovered purchases and their results to the given lists
+    static IabHelper.OnConsumeMultiFinishedListener recordInto(final List<Purchase> recovered,
+                                                               final List<IabResult> results) {
+        return new IabHelper.OnConsumeMultiFinishedListener() {
+            @Override
+            public void onConsumeMultiFinished(List<Purchase> purchases, List<IabResult> r) {
+                recovered.addAll(purchases);
+                results.addAll(r);
+            }
+        };
+    }
+
+    @Test
+    public void helpersShareTheJournalOfAFile() {
+        ConsumptionJournal journal = ConsumptionJournal.get(mFile);
+        assertSame(journal, ConsumptionJournal.get(new File(mFile.getParentFile(), mFile.getName())));
+    }
+
+    @Test
+    public void pendingPurchasesSurviveARestart() throws Exception {
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 3);
+        List<Purchase> purchases = ownedPurchases();
+        ConsumptionJournal journal = new ConsumptionJournal(mFile);
+        for (Purchase p : purchases) {
+            journal.addPending(p);
+        }
+        journal.markConsumed(purchases.get(1).getToken());
+        journal.markTimedOut(purchases.get(2).getToken());
+
+        ConsumptionJournal reloaded = new ConsumptionJournal(mFile);
+        List<Purchase> pending = reloaded.getPending();
+        assertEquals(2, pending.size());
+        assertEquals(purchases.get(0).getToken(), pending.get(0).getToken());
+        assertEquals(purchases.get(2).getToken(), pending.get(1).getToken());
+        assertTrue(reloaded.hasTimedOut(purchases.get(2).getToken()));
+        assertFalse(reloaded.hasTimedOut(purchases.get(0).getToken()));
+
+        reloaded.markConsumed(purchases.get(0).getToken());
+        reloaded.markConsumed(purchases.get(2).getToken());
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void recoveryConsumesOnlyVerifiedPurchases() throws Exception {
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+        mService.addTamperedPurchase(IabHelper.ITEM_TYPE_INAPP, "forged");
+        ConsumptionJournal journal = new ConsumptionJournal(mFile);
+        for (Purchase p : ownedPurchases()) {
+            journal.addPending(p);
+        }
+
+        List<Purchase> recovered = new ArrayList<Purchase>();
+        List<IabResult> results = new ArrayList<IabResult>();
+        mHelper.mConsumptionJournal = journal;
+        mHelper.mRecoveryListener = recordInto(recovered, results);
+        mHelper.recoverConsumptions();
+
+        assertEquals(1, recovered.size());
+        assertEquals("gas", recovered.get(0).getSku());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(1, mService.getCallCount(IabMetrics.CALL_CONSUME_PURCHASE));
+        assertTrue(journal.getPending().isEmpty());
+    }
+
+    @Test
+    public void recordCutShortIsDropped() throws Exception {
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 2);
+        List<Purchase> purchases = ownedPurchases();
+        ConsumptionJournal journal = new ConsumptionJournal(mFile);
+        journal.addPending(purchases.get(0));
+        journal.addPending(purchases.get(1));
+
+        // The process died halfway through writing the second record
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        ConsumptionJournal reloaded = new ConsumptionJournal(mFile);
+        assertEquals(1, reloaded.getPending().size());
+        reloaded.addPending(purchases.get(1));
+        assertEquals(2, new ConsumptionJournal(mFile).getPending().size());
+    }
+
+    @Test
+    public void consumablePurchaseIsJournaledUntilConsumed() throws Exception {
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "premium");
+        ConsumptionJournal journal = enableJournal("gas");
+        for (Purchase p : ownedPurchases()) {
+            mHelper.verifyPurchaseData(IabHelper.ITEM_TYPE_INAPP, p.getOriginalJson(), p.getSignature());
+        }
+        assertEquals(1, journal.getPending().size());
+        assertEquals("gas", journal.getPending().get(0).getSku());
+
+        mHelper.consume(journal.getPending().get(0));
+        assertTrue(journal.getPending().isEmpty());
+    }
+
+    @Test
+    public void failedConsumptionStaysJournaled() throws Exception {
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+        ConsumptionJournal journal = enableJournal("gas");
+        Purchase gas = ownedPurchases().get(0);
+        mHelper.verifyPurchaseData(IabHelper.ITEM_TYPE_INAPP, gas.getOriginalJson(), gas.getSignature());
+        mService.failCalls(IabMetrics.CALL_CONSUME_PURCHASE, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 1);
+        try {
+            mHelper.consume(gas);
+            fail("Expected the consumption to fail");
+        }
+        catch (IabException e) {
+            assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, e.getResult().getResponse());
+        }
+        assertEquals(1, journal.getPending().size());
+    }
+
+    @Test
+    public void recoveryRunsAheadOfLaterOperations() throws Exception {
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+        ConsumptionJournal journal = enableJournal("gas");
+        journal.addPending(ownedPurchases().get(0));
+        ManualExecutor background = new ManualExecutor();
+        mHelper.setBackgroundExecutor(background);
+
+        final List<Inventory> queried = new ArrayList<Inventory>();
+        mHelper.recoverConsumptions();
+        mHelper.queryInventoryAsync(false, new IabHelper.QueryInventoryFinishedListener() {
+            @Override
+            public void onQueryInventoryFinished(IabResult result, Inventory inv) {
+                queried.add(inv);
+            }
+        });
+        assertEquals(1, background.pending());
+
+        background.runAll();
+        assertFalse(queried.get(0).hasPurchase("gas"));
+        assertEquals(1, mService.getCallCount(IabMetrics.CALL_CONSUME_PURCHASE));
+    }
+
+    @Test
+    public void purchaseConsumedBeforeATimeoutIsRecoveredAsASuccess() throws Exception {
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 2);
+        List<Purchase> purchases = ownedPurchases();
+        ConsumptionJournal journal = enableJournal("gas.0", "gas.1");
+        for (Purchase p : purchases) {
+            journal.addPending(p);
+            mService.consumePurchase(3, IabLoadDriver.PACKAGE_NAME, p.getToken());
+        }
+        // Only the first consumption timed out; the second was reported
+        journal.markTimedOut(purchases.get(0).getToken());
+
+        List<Purchase> recovered = new ArrayList<Purchase>();
+        List<IabResult> results = new ArrayList<IabResult>();
+        mHelper.mRecoveryListener = recordInto(recovered, results);
+        mHelper.recoverConsumptions();
+
+        assertEquals(2, results.size());
+        for (int i = 0; i < 2; ++i) {
+            if (recovered.get(i).getSku().equals("gas.0")) {
+                assertTrue(results.get(i).isSuccess());
+            }
+            else {
+                assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED, results.get(i).getResponse());
+            }
+        }
+        assertTrue(journal.getPending().isEmpty());
+    }
+}
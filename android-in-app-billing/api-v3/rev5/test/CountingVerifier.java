@@ -0,0 +1,22 @@
+package com.example.android.trivialdrivesample.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A {@link PurchaseVerifier} that counts the RSA checks it actually does, as opposed to the
+ * results it remembered.
+ */
+class CountingVerifier extends PurchaseVerifier {
+    final AtomicInteger mChecks = new AtomicInteger();
+
+    CountingVerifier(String base64PublicKey) {
+        super(base64PublicKey);
+    }
+
+    @Override
+    boolean verifySignature(String signedData, String signature) {
+        mChecks.incrementAndGet();
+        return super.verifySignature(signedData, signature);
+    }
+}
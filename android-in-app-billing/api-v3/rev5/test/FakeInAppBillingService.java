@@ -0,0 +1,445 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.app.PendingIntent;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * An in-process stand-in for the Google Play billing service, for exercising {@link IabHelper}
+ * without Google Play. Hand it to {@link IabHelper#startSetup(IInAppBillingService,
+ * IabHelper.OnIabSetupFinishedListener)} along with {@link #getPublicKey()}.
+ *
+ * It can also be bound to like the real service: {@link #asBinder()} returns a local binder
+ * that IInAppBillingService.Stub.asInterface() turns back into this object (see
+ * {@link InstalledBillingService}).
+ *
+ * Purchases and products are scripted up front. Purchases are signed with a key pair generated
+ * for this instance and returned in pages of a configurable size, like the real service does.
+ * Each kind of call can be given a latency and made to fail, which is what load tests need.
+ * Calls are identified by the IabMetrics call constants ({@link IabMetrics#CALL_GET_PURCHASES} etc).
+ *
+ * This class is thread safe; the latency is simulated outside of any lock, so concurrent calls
+ * overlap like they would against the real service.
+ */
+public class FakeInAppBillingService implements IInAppBillingService {
+    static final String KEY_ALGORITHM = "RSA";
+    static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    // Same size as the keys Google Play hands out, so verification costs the same
+    static final int KEY_SIZE = 2048;
+
+    // Interface name of the billing service's binder, as declared in its AIDL
+    static final String DESCRIPTOR = "com.android.vending.billing.IInAppBillingService";
+
+    // Number of call types, indexed by the IabMetrics call constants
+    static final int CALL_TYPES = IabMetrics.CALL_CONSUME_PURCHASE + 1;
+
+    // A scripted purchase, as returned by getPurchases()
+    static class FakePurchase {
+        final String mSku;
+        final String mToken;
+        final String mData;
+        final String mSignature;
+
+        FakePurchase(String sku, String token, String data, String signature) {
+            mSku = sku;
+            mToken = token;
+            mData = data;
+            mSignature = signature;
+        }
+    }
+
+    final String mPublicKey;
+    final PrivateKey mPrivateKey;
+
+    // What a client binding to this service gets
+    final Binder mBinder = new Binder();
+
+    // Owned purchases per item type, in purchase order; guarded by this
+    final Map<String, List<FakePurchase>> mPurchases = new HashMap<String, List<FakePurchase>>();
+
+    // Products that getSkuDetails() knows about, by item type and sku; guarded by this
+    final Map<String, String> mProducts = new LinkedHashMap<String, String>();
+
+    // Purchases returned per getPurchases() call
+    int mPageSize = 100;
+
+    boolean mSubscriptionsSupported = true;
+
+    // Returned by getBuyIntent(), if set
+    PendingIntent mBuyIntent;
+
+    // Simulated latency per call type, in milliseconds
+    final long[] mLatency = new long[CALL_TYPES];
+
+    // Injected failures per call type: how many calls are left to fail, and how
+    final int[] mFailuresLeft = new int[CALL_TYPES];
+    final int[] mFailureResponse = new int[CALL_TYPES];
+    final boolean[] mFailureThrows = new boolean[CALL_TYPES];
+
+    final AtomicInteger[] mCallCounts = new AtomicInteger[CALL_TYPES];
+
+    // Used to make up order ids and tokens
+    int mNextPurchase = 1;
+
+    /**
+     * Creates an empty service with a freshly generated key pair. Generating the key takes a
+     * moment, so reuse the instance (or its key) across runs where possible.
+     */
+    public FakeInAppBillingService() {
+        KeyPair keyPair;
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+            generator.initialize(KEY_SIZE);
+            keyPair = generator.generateKeyPair();
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        mPublicKey = Base64.encode(keyPair.getPublic().getEncoded());
+        mPrivateKey = keyPair.getPrivate();
+        for (int i = 0; i < CALL_TYPES; ++i) {
+            mCallCounts[i] = new AtomicInteger();
+        }
+        mBinder.attachInterface(this, DESCRIPTOR);
+    }
+
+    /** Returns the public key purchases are signed for, encoded in base64, to give IabHelper. */
+    public String getPublicKey() {
+        return mPublicKey;
+    }
+
+    /**
+     * Adds an owned item.
+     *
+     * @param itemType {@link IabHelper#ITEM_TYPE_INAPP} or {@link IabHelper#ITEM_TYPE_SUBS}.
+     * @param sku The sku purchased.
+     * @return The purchase token.
+     */
+    public synchronized String addPurchase(String itemType, String sku) {
+        return addPurchase(itemType, sku, true);
+    }
+
+    /**
+     * Adds an owned item whose signature doesn't match its data, so it fails verification.
+     *
+     * @return The purchase token.
+     */
+    public synchronized String addTamperedPurchase(String itemType, String sku) {
+        return addPurchase(itemType, sku, false);
+    }
+
+    /**
+     * Adds the given number of owned items, with skus made of the prefix followed by a number.
+     */
+    public synchronized void addPurchases(String itemType, String skuPrefix, int count) {
+        for (int i = 0; i < count; ++i) {
+            addPurchase(itemType, skuPrefix + i, true);
+        }
+    }
+
+    private String addPurchase(String itemType, String sku, boolean validSignature) {
+        int n = mNextPurchase++;
+        String token = "token." + n;
+        String data = "{\"orderId\":\"12999763169054705758." + n + "\","
+                + "\"packageName\":\"com.example.fake\","
+                + "\"productId\":" + quote(sku) + ","
+                + "\"purchaseTime\":" + System.currentTimeMillis() + ","
+                + "\"purchaseState\":0,"
+                + "\"developerPayload\":\"\","
+                + "\"purchaseToken\":" + quote(token) + "}";
+        String signature = sign(validSignature ? data : data + " ");
+
+        List<FakePurchase> owned = mPurchases.get(itemType);
+        if (owned == null) {
+            owned = new ArrayList<FakePurchase>();
+            mPurchases.put(itemType, owned);
+        }
+        owned.add(new FakePurchase(sku, token, data, signature));
+        return token;
+    }
+
+    /**
+     * Adds a product that getSkuDetails() returns details for.
+     *
+     * @param price The formatted price, e.g. "$0.99".
+     */
+    public synchronized void addProduct(String itemType, String sku, String price, String title) {
+        String json = "{\"productId\":" + quote(sku) + ","
+                + "\"type\":" + quote(itemType) + ","
+                + "\"price\":" + quote(price) + ","
+                + "\"title\":" + quote(title) + ","
+                + "\"description\":" + quote(title) + "}";
+        mProducts.put(itemType + ":" + sku, json);
+    }
+
+    /** Sets how many purchases each getPurchases() call returns before handing out a continuation token. */
+    public synchronized void setPageSize(int pageSize) {
+        if (pageSize < 1) throw new IllegalArgumentException("Page size must be at least 1.");
+        mPageSize = pageSize;
+    }
+
+    /** Sets whether isBillingSupported() reports subscriptions as supported. */
+    public synchronized void setSubscriptionsSupported(boolean supported) {
+        mSubscriptionsSupported = supported;
+    }
+
+    /**
+     * Sets the intent getBuyIntent() returns, so purchase flows can be launched where a
+     * PendingIntent can be made (e.g. under Robolectric). No purchase is added when it is.
+     */
+    public synchronized void setBuyIntent(PendingIntent intent) {
+        mBuyIntent = intent;
+    }
+
+    /**
+     * Sets how long every call takes, in milliseconds.
+     */
+    public synchronized void setLatency(long millis) {
+        for (int i = 0; i < CALL_TYPES; ++i) {
+            mLatency[i] = millis;
+        }
+    }
+
+    /**
+     * Sets how long one kind of call takes, in milliseconds.
+     *
+     * @param call One of the IabMetrics call constants, e.g. {@link IabMetrics#CALL_GET_PURCHASES}.
+     */
+    public synchronized void setLatency(int call, long millis) {
+        mLatency[call] = millis;
+    }
+
+    /**
+     * Makes the next calls of one kind fail with the given response code.
+     *
+     * @param call One of the IabMetrics call constants.
+     * @param response The billing response code to return, e.g. {@link IabHelper#BILLING_RESPONSE_RESULT_ERROR}.
+     * @param count How many calls fail.
+     */
+    public synchronized void failCalls(int call, int response, int count) {
+        mFailuresLeft[call] = count;
+        mFailureResponse[call] = response;
+        mFailureThrows[call] = false;
+    }
+
+    /**
+     * Makes the next calls of one kind throw a DeadObjectException, as if the service had died.
+     *
+     * @param call One of the IabMetrics call constants.
+     * @param count How many calls fail.
+     */
+    public synchronized void throwOnCalls(int call, int count) {
+        mFailuresLeft[call] = count;
+        mFailureThrows[call] = true;
+    }
+
+    /** Returns how many calls of the given kind were made. */
+    public int getCallCount(int call) {
+        return mCallCounts[call].get();
+    }
+
+    /** Returns how many purchases of the given type are currently owned. */
+    public synchronized int getPurchaseCount(String itemType) {
+        List<FakePurchase> owned = mPurchases.get(itemType);
+        return (owned == null) ? 0 : owned.size();
+    }
+
+    @Override
+    public IBinder asBinder() {
+        return mBinder;
+    }
+
+    @Override
+    public int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException {
+        Integer failure = beginCall(IabMetrics.CALL_IS_BILLING_SUPPORTED);
+        if (failure != null) return failure.intValue();
+        if (apiVersion < 3) return IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE;
+        synchronized (this) {
+            if (IabHelper.ITEM_TYPE_SUBS.equals(type) && !mSubscriptionsSupported) {
+                return IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE;
+            }
+        }
+        return IabHelper.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    @Override
+    public Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle) throws RemoteException {
+        Integer failure = beginCall(IabMetrics.CALL_GET_SKU_DETAILS);
+        if (failure != null) return response(failure.intValue());
+
+        ArrayList<String> skus = skusBundle.getStringArrayList(IabHelper.GET_SKU_DETAILS_ITEM_LIST);
+        if (skus == null || skus.size() > IabHelper.SKU_DETAILS_BATCH_SIZE) {
+            return response(IabHelper.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR);
+        }
+
+        // Like the real service, skus it doesn't know are silently left out
+        ArrayList<String> details = new ArrayList<String>();
+        synchronized (this) {
+            for (String sku : skus) {
+                String json = mProducts.get(type + ":" + sku);
+                if (json != null) details.add(json);
+            }
+        }
+        Bundle bundle = response(IabHelper.BILLING_RESPONSE_RESULT_OK);
+        bundle.putStringArrayList(IabHelper.RESPONSE_GET_SKU_DETAILS_LIST, details);
+        return bundle;
+    }
+
+    @Override
+    public Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type,
+                               String developerPayload) throws RemoteException {
+        Integer failure = beginCall(IabMetrics.CALL_GET_BUY_INTENT);
+        if (failure != null) return response(failure.intValue());
+
+        synchronized (this) {
+            List<FakePurchase> owned = mPurchases.get(type);
+            if (owned != null) {
+                for (FakePurchase p : owned) {
+                    if (p.mSku.equals(sku)) return response(IabHelper.BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED);
+                }
+            }
+            if (!mProducts.containsKey(type + ":" + sku)) {
+                return response(IabHelper.BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE);
+            }
+
+            // There's no purchase UI behind this service, so unless an intent was set, no
+            // BUY_INTENT is returned. Script purchases with addPurchase() instead.
+            Bundle bundle = response(IabHelper.BILLING_RESPONSE_RESULT_OK);
+            if (mBuyIntent != null) bundle.putParcelable(IabHelper.RESPONSE_BUY_INTENT, mBuyIntent);
+            return bundle;
+        }
+    }
+
+    @Override
+    public Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken)
+            throws RemoteException {
+        Integer failure = beginCall(IabMetrics.CALL_GET_PURCHASES);
+        if (failure != null) return response(failure.intValue());
+
+        int from = 0;
+        if (continuationToken != null) {
+            try {
+                from = Integer.parseInt(continuationToken);
+            }
+            catch (NumberFormatException e) {
+                return response(IabHelper.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR);
+            }
+        }
+
+        ArrayList<String> skus = new ArrayList<String>();
+        ArrayList<String> data = new ArrayList<String>();
+        ArrayList<String> signatures = new ArrayList<String>();
+        String nextToken = null;
+        synchronized (this) {
+            List<FakePurchase> owned = mPurchases.get(type);
+            int size = (owned == null) ? 0 : owned.size();
+            int to = Math.min(size, from + mPageSize);
+            for (int i = from; i < to; ++i) {
+                FakePurchase p = owned.get(i);
+                skus.add(p.mSku);
+                data.add(p.mData);
+                signatures.add(p.mSignature);
+            }
+            if (to < size) nextToken = String.valueOf(to);
+        }
+
+        Bundle bundle = response(IabHelper.BILLING_RESPONSE_RESULT_OK);
+        bundle.putStringArrayList(IabHelper.RESPONSE_INAPP_ITEM_LIST, skus);
+        bundle.putStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST, data);
+        bundle.putStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST, signatures);
+        if (nextToken != null) bundle.putString(IabHelper.INAPP_CONTINUATION_TOKEN, nextToken);
+        return bundle;
+    }
+
+    @Override
+    public int consumePurchase(int apiVersion, String packageName, String purchaseToken) throws RemoteException {
+        Integer failure = beginCall(IabMetrics.CALL_CONSUME_PURCHASE);
+        if (failure != null) return failure.intValue();
+
+        synchronized (this) {
+            List<FakePurchase> owned = mPurchases.get(IabHelper.ITEM_TYPE_INAPP);
+            if (owned != null) {
+                for (int i = 0; i < owned.size(); ++i) {
+                    if (owned.get(i).mToken.equals(purchaseToken)) {
+                        owned.remove(i);
+                        return IabHelper.BILLING_RESPONSE_RESULT_OK;
+                    }
+                }
+            }
+        }
+        return IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+    }
+
+    // Counts the call, waits out its latency and applies any injected failure. Returns the
+    // response code to fail with, or null to go ahead.
+    private Integer beginCall(int call) throws RemoteException {
+        mCallCounts[call].incrementAndGet();
+
+        long latency;
+        boolean fail;
+        boolean fatal;
+        int response;
+        synchronized (this) {
+            latency = mLatency[call];
+            fail = mFailuresLeft[call] > 0;
+            if (fail) --mFailuresLeft[call];
+            fatal = mFailureThrows[call];
+            response = mFailureResponse[call];
+        }
+
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted.");
+            }
+        }
+
+        if (!fail) return null;
+        if (fatal) throw new DeadObjectException("Injected failure.");
+        return Integer.valueOf(response);
+    }
+
+    private static Bundle response(int code) {
+        Bundle bundle = new Bundle();
+        bundle.putInt(IabHelper.RESPONSE_CODE, code);
+        return bundle;
+    }
+
+    private String sign(String data) {
+        try {
+            Signature sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+            sig.initSign(mPrivateKey);
+            sig.update(data.getBytes());
+            return Base64.encode(sig.sign());
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Admission and delivery order of {@link IabAsyncQueue}. Operations here only record that they
+ * started and keep their ticket, so each test decides when they finish.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabAsyncQueueTest {
+    IabAsyncQueue mQueue;
+    Executor mCaller;
+
+    // Names of the operations started, and of the results delivered, in order
+    final List<String> mStarted = new ArrayList<String>();
+    final List<String> mDelivered = new ArrayList<String>();
+
+    // Tickets of the operations started, by name
+    final Map<String, IabAsyncQueue.Ticket> mTickets = new HashMap<String, IabAsyncQueue.Ticket>();
+
+    @Before
+    public void setUp() {
+        Executor direct = IabHelper.newDirectExecutor();
+        mQueue = new IabAsyncQueue(new IabHelper(IabLoadDriver.PACKAGE_NAME, null, direct, direct));
+        mCaller = direct;
+    }
+
+    void submit(final String name, Collection<String> keys) {
+        submit(name, keys, true, mCaller);
+    }
+
+    void submit(final String name, Collection<String> keys, boolean ordered, Executor caller) {
+        mQueue.submit(name, keys, ordered, caller, new IabAsyncQueue.Operation() {
+            @Override
+            public void start(IabAsyncQueue.Ticket ticket) {
+                mStarted.add(name);
+                mTickets.put(name, ticket);
+            }
+        });
+    }
+
+    void finish(final String name) {
+        mTickets.get(name).finish(new Runnable() {
+            @Override
+            public void run() {
+                mDelivered.add(name);
+            }
+        });
+    }
+
+    @Test
+    public void readsRunAlongsideMutations() {
+        submit("consume", Arrays.asList("sku.a"));
+        submit("query", null);
+        assertEquals(Arrays.asList("consume", "query"), mStarted);
+    }
+
+    @Test
+    public void overlappingKeysAreSerialized() {
+        submit("consume a", Arrays.asList("sku.a"));
+        submit("purchase a", Arrays.asList("sku.a"));
+        submit("consume b", Arrays.asList("sku.b"));
+        assertEquals(Arrays.asList("consume a", "consume b"), mStarted);
+
+        finish("consume a");
+        assertEquals(Arrays.asList("consume a", "consume b", "purchase a"), mStarted);
+    }
+
+    @Test
+    public void laterOperationDoesntOvertakeAWaitingConflict() {
+        submit("consume a", Arrays.asList("sku.a"));
+        submit("consume a and b", Arrays.asList("sku.a", "sku.b"));
+        submit("consume b", Arrays.asList("sku.b"));
+        assertEquals(Arrays.asList("consume a"), mStarted);
+
+        finish("consume a");
+        assertEquals(Arrays.asList("consume a", "consume a and b"), mStarted);
+        finish("consume a and b");
+        assertEquals(Arrays.asList("consume a", "consume a and b", "consume b"), mStarted);
+    }
+
+    @Test
+    public void exclusiveOperationRunsAlone() {
+        submit("query", null);
+        submit("recover", IabAsyncQueue.EXCLUSIVE);
+        submit("later query", null);
+        assertEquals(Arrays.asList("query"), mStarted);
+
+        finish("query");
+        assertEquals(Arrays.asList("query", "recover"), mStarted);
+        finish("recover");
+        assertEquals(Arrays.asList("query", "recover", "later query"), mStarted);
+    }
+
+    @Test
+    public void resultsAreDeliveredInSubmissionOrder() {
+        submit("slow", null);
+        submit("quick", null);
+        finish("quick");
+        assertTrue(mDelivered.isEmpty());
+
+        finish("slow");
+        assertEquals(Arrays.asList("slow", "quick"), mDelivered);
+    }
+
+    @Test
+    public void callersAreOrderedSeparately() {
+        Executor other = new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                r.run();
+            }
+        };
+        submit("slow", null);
+        submit("other", null, true, other);
+        finish("other");
+        assertEquals(Arrays.asList("other"), mDelivered);
+    }
+
+    @Test
+    public void unorderedResultsDontHoldOthersUp() {
+        submit("purchase", Arrays.asList("sku.a"), false, mCaller);
+        submit("query", null);
+        finish("query");
+        assertEquals(Arrays.asList("query"), mDelivered);
+
+        finish("purchase");
+        assertEquals(Arrays.asList("query", "purchase"), mDelivered);
+        assertFalse(mQueue.isBusy());
+    }
+
+    @Test
+    public void clearDropsWhatHasntStarted() {
+        submit("consume", Arrays.asList("sku.a"));
+        submit("purchase", Arrays.asList("sku.a"));
+        mQueue.clear();
+
+        finish("consume");
+        assertEquals(Arrays.asList("consume"), mStarted);
+        assertTrue(mDelivered.isEmpty());
+        assertFalse(mQueue.isBusy());
+    }
+}
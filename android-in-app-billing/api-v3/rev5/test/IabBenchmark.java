@@ -0,0 +1,174 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Times the CPU-bound parts of the billing flow on synthetic inventories of 10 to 10,000
+ * purchases, served by a {@link FakeInAppBillingService} without latency: response descriptions,
+ * Purchase and SkuDetails parsing, signature verification, SKU details batching and full
+ * inventory queries. Every case runs at every inventory size.
+ *
+ * It runs under Robolectric like the tests, but its name keeps it out of a normal test run;
+ * select it explicitly. The number of iterations can be set with the iab.benchmark.iterations
+ * system property. Results from a reference run are kept in IabBenchmark-baseline.txt.
+ *
+ * Each case is warmed up before being measured, and reported as the average time per run; both
+ * phases last for the set number of iterations, or half a second if that's longer.
+ * Remembered verification results are forgotten before every run, so each one pays for the RSA
+ * checks as a first query would. The figures are meant for comparing builds on the same machine,
+ * not as absolute numbers.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabBenchmark {
+    static final int[] INVENTORY_SIZES = { 10, 100, 1000, 10000 };
+    static final int DEFAULT_ITERATIONS = 10;
+    // Warm-up and measurement each take at least this long, so that short cases run often enough
+    static final long MIN_PHASE_NANOS = 500 * 1000000L;
+
+    // Keeps results alive so the JIT can't drop the work that produced them
+    static volatile Object sSink;
+
+    /**
+     * A single benchmarked operation.
+     */
+    interface Case {
+        void run() throws Exception;
+    }
+
+    final int mIterations = Integer.getInteger("iab.benchmark.iterations", DEFAULT_ITERATIONS).intValue();
+
+    @Test
+    public void benchmark() throws Exception {
+        measure("getResponseDesc x1000", new Case() {
+            @Override
+            public void run() {
+                String desc = null;
+                for (int i = 0; i < 1000; ++i) {
+                    desc = IabHelper.getResponseDesc((i % 2 == 0) ? i % 9 : IabHelper.IABHELPER_ERROR_BASE - i % 11);
+                }
+                sSink = desc;
+            }
+        });
+
+        for (int size : INVENTORY_SIZES) {
+            benchmarkInventory(size);
+        }
+    }
+
+    void benchmarkInventory(int size) throws Exception {
+        final FakeInAppBillingService service = new FakeInAppBillingService();
+        service.setPageSize(100);
+        service.addPurchases(IabHelper.ITEM_TYPE_INAPP, "product.", size);
+        final ArrayList<String> skus = new ArrayList<String>();
+        for (int i = 0; i < size; ++i) {
+            service.addProduct(IabHelper.ITEM_TYPE_INAPP, "product." + i, "$0.99", "Product " + i);
+            skus.add("product." + i);
+        }
+
+        // Every raw purchase and detail, to parse and verify
+        final List<String> data = new ArrayList<String>();
+        final List<String> signatures = new ArrayList<String>();
+        String continueToken = null;
+        do {
+            Bundle page = service.getPurchases(3, IabLoadDriver.PACKAGE_NAME, IabHelper.ITEM_TYPE_INAPP, continueToken);
+            data.addAll(page.getStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST));
+            signatures.addAll(page.getStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST));
+            continueToken = page.getString(IabHelper.INAPP_CONTINUATION_TOKEN);
+        } while (continueToken != null);
+
+        final List<String> details = new ArrayList<String>();
+        for (int from = 0; from < size; from += IabHelper.SKU_DETAILS_BATCH_SIZE) {
+            Bundle querySkus = new Bundle();
+            querySkus.putStringArrayList(IabHelper.GET_SKU_DETAILS_ITEM_LIST,
+                    new ArrayList<String>(skus.subList(from, Math.min(from + IabHelper.SKU_DETAILS_BATCH_SIZE, size))));
+            details.addAll(service.getSkuDetails(3, IabLoadDriver.PACKAGE_NAME, IabHelper.ITEM_TYPE_INAPP, querySkus)
+                    .getStringArrayList(IabHelper.RESPONSE_GET_SKU_DETAILS_LIST));
+        }
+
+        measure("parse Purchase x" + size, new Case() {
+            @Override
+            public void run() throws Exception {
+                for (int i = 0; i < data.size(); ++i) {
+                    sSink = new Purchase(IabHelper.ITEM_TYPE_INAPP, data.get(i), signatures.get(i));
+                }
+            }
+        });
+        measure("parse SkuDetails x" + size, new Case() {
+            @Override
+            public void run() throws Exception {
+                for (String json : details) {
+                    sSink = new SkuDetails(IabHelper.ITEM_TYPE_INAPP, json);
+                }
+            }
+        });
+
+        final PurchaseVerifier verifier = new PurchaseVerifier(service.getPublicKey());
+        measure("verify signature x" + size, new Case() {
+            @Override
+            public void run() {
+                forget(verifier);
+                boolean verified = true;
+                for (int i = 0; i < data.size(); ++i) {
+                    verified &= verifier.verify(data.get(i), signatures.get(i));
+                }
+                sSink = Boolean.valueOf(verified);
+            }
+        });
+
+        // The rest goes through the helper, with its usual background executor
+        final IabHelper helper = new IabHelper(IabLoadDriver.PACKAGE_NAME, service.getPublicKey(), null,
+                IabHelper.newDirectExecutor());
+        helper.startSetup(service, null);
+        measure("querySkuDetails x" + size, new Case() {
+            @Override
+            public void run() throws Exception {
+                Inventory inv = new Inventory();
+                helper.querySkuDetails(IabHelper.ITEM_TYPE_INAPP, inv, skus, null);
+                sSink = inv;
+            }
+        });
+        measure("queryInventory with details, " + size + " purchases", new Case() {
+            @Override
+            public void run() throws Exception {
+                forget(helper.mVerifier);
+                sSink = helper.queryInventory(true, null);
+            }
+        });
+        helper.dispose();
+    }
+
+    // Drops the verifier's remembered results
+    static void forget(PurchaseVerifier verifier) {
+        synchronized (verifier.mMemo) {
+            verifier.mMemo.clear();
+        }
+    }
+
+    // Warms the case up, then prints the average time of a run
+    void measure(String name, Case c) throws Exception {
+        repeat(c);
+        long[] timed = repeat(c);
+        System.out.println(name + ": " + (timed[1] / timed[0] / 1000) + " us");
+    }
+
+    // Runs the case for one phase, and returns the number of runs and the time they took
+    long[] repeat(Case c) throws Exception {
+        long start = System.nanoTime();
+        long runs = 0;
+        long elapsed;
+        do {
+            c.run();
+            ++runs;
+            elapsed = System.nanoTime() - start;
+        } while (runs < mIterations || elapsed < MIN_PHASE_NANOS);
+        return new long[] { runs, elapsed };
+    }
+}
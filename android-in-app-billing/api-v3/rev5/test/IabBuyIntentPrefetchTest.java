@@ -0,0 +1,140 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * Buy intents fetched ahead of {@link IabHelper#launchPurchaseFlow} with
+ * {@link IabHelper#prefetchBuyIntent}, against a {@link FakeInAppBillingService}. Every executor
+ * is direct, so a fetch is over by the time the call that started it returns. Intent ages are
+ * kept on SystemClock, which is moved with Robolectric's main looper.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabBuyIntentPrefetchTest {
+    static final int REQUEST_CODE = 10001;
+
+    FakeInAppBillingService mService;
+    IabHelper mHelper;
+    IabPurchaseFlowTest.RecordingActivity mActivity;
+
+    @Before
+    public void setUp() {
+        mService = new FakeInAppBillingService();
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas", "$0.99", "Gas");
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "premium", "$4.99", "Premium");
+        mService.setBuyIntent(PendingIntent.getActivity(RuntimeEnvironment.application, 0, new Intent(), 0));
+        mHelper = newHelper();
+        mActivity = Robolectric.buildActivity(IabPurchaseFlowTest.RecordingActivity.class).create().get();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.dispose();
+        InstalledBillingService.reset();
+    }
+
+    IabHelper newHelper() {
+        Executor direct = IabHelper.newDirectExecutor();
+        return new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+    }
+
+    int buyIntentCalls() {
+        return mService.getCallCount(IabMetrics.CALL_GET_BUY_INTENT);
+    }
+
+    @Test
+    public void intentIsFetchedOnceSetupIsDone() {
+        mHelper.prefetchBuyIntent("gas", IabHelper.ITEM_TYPE_INAPP, null);
+        assertEquals(0, buyIntentCalls());
+
+        mHelper.startSetup(mService, null);
+        assertEquals(1, buyIntentCalls());
+        assertNotNull(mHelper.mBuyIntents.get(IabHelper.buyIntentKey("gas", IabHelper.ITEM_TYPE_INAPP, null)).mIntent);
+    }
+
+    @Test
+    public void launchUsesThePrefetchedIntentAndFetchesTheNext() {
+        mHelper.startSetup(mService, null);
+        mHelper.prefetchBuyIntent("gas", IabHelper.ITEM_TYPE_INAPP, "payload");
+        assertEquals(1, buyIntentCalls());
+
+        mHelper.launchPurchaseFlow(mActivity, "gas", REQUEST_CODE, new IabPurchaseFlowTest.RecordingListener(), "payload");
+        assertEquals(1, mActivity.mLaunches);
+
+        // The launch didn't ask the service; the intent for the next one was fetched afterwards
+        assertEquals(2, buyIntentCalls());
+        assertNotNull(mHelper.mBuyIntents.get(IabHelper.buyIntentKey("gas", IabHelper.ITEM_TYPE_INAPP, "payload")).mIntent);
+    }
+
+    @Test
+    public void intentForAnotherPayloadIsntUsed() {
+        mHelper.startSetup(mService, null);
+        mHelper.prefetchBuyIntent("gas", IabHelper.ITEM_TYPE_INAPP, "payload");
+
+        mHelper.launchPurchaseFlow(mActivity, "gas", REQUEST_CODE, new IabPurchaseFlowTest.RecordingListener(), "other");
+        assertEquals(1, mActivity.mLaunches);
+        assertEquals(2, buyIntentCalls());
+        assertNotNull(mHelper.mBuyIntents.get(IabHelper.buyIntentKey("gas", IabHelper.ITEM_TYPE_INAPP, "payload")).mIntent);
+    }
+
+    @Test
+    public void onlyStaleIntentsAreFetchedAgain() {
+        mHelper.startSetup(mService, null);
+        mHelper.prefetchBuyIntent("gas", IabHelper.ITEM_TYPE_INAPP, null);
+        mHelper.prefetchBuyIntents(null);
+        assertEquals(1, buyIntentCalls());
+
+        ShadowLooper.idleMainLooper(IabHelper.BUY_INTENT_TTL_MILLIS);
+        assertNull(mHelper.takePrefetchedBuyIntent("gas", IabHelper.ITEM_TYPE_INAPP, null));
+        mHelper.prefetchBuyIntents(null);
+        assertEquals(2, buyIntentCalls());
+        assertNotNull(mHelper.takePrefetchedBuyIntent("gas", IabHelper.ITEM_TYPE_INAPP, null));
+    }
+
+    @Test
+    public void ownedSkuIsFetchedOnlyOnceConsumed() throws IabException {
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+        mHelper.startSetup(mService, null);
+        Inventory inv = mHelper.queryInventory(false, null);
+        mHelper.prefetchBuyIntent("gas", IabHelper.ITEM_TYPE_INAPP, null);
+        mHelper.prefetchBuyIntent("premium", IabHelper.ITEM_TYPE_INAPP, null);
+        assertEquals(1, buyIntentCalls());
+
+        mHelper.consume(inv.getPurchase("gas"));
+        assertEquals(2, buyIntentCalls());
+        assertNotNull(mHelper.takePrefetchedBuyIntent("gas", IabHelper.ITEM_TYPE_INAPP, null));
+    }
+
+    @Test
+    public void nothingIsFetchedUntilTheServiceIsBack() {
+        mHelper.dispose();
+        InstalledBillingService.install(mService);
+        Executor direct = IabHelper.newDirectExecutor();
+        mHelper = new IabHelper(RuntimeEnvironment.application, mService.getPublicKey(), direct, direct);
+        mHelper.startSetup(null);
+        IabConnection connection = mHelper.mConnection;
+        connection.mServiceConn.onServiceDisconnected(InstalledBillingService.COMPONENT);
+
+        mHelper.prefetchBuyIntent("gas", IabHelper.ITEM_TYPE_INAPP, null);
+        assertEquals(0, buyIntentCalls());
+
+        connection.mServiceConn.onServiceConnected(InstalledBillingService.COMPONENT, mService.asBinder());
+        assertEquals(1, buyIntentCalls());
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Helpers sharing the process-wide {@link IabConnection}, bound to a
+ * {@link FakeInAppBillingService} through {@link InstalledBillingService}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabConnectionTest {
+    /**
+     * Keeps the setup results it gets.
+     */
+    static class RecordingListener implements IabHelper.OnIabSetupFinishedListener {
+        final List<IabResult> mResults = new ArrayList<IabResult>();
+
+        @Override
+        public void onIabSetupFinished(IabResult result) {
+            mResults.add(result);
+        }
+    }
+
+    FakeInAppBillingService mService;
+    final List<IabHelper> mHelpers = new ArrayList<IabHelper>();
+
+    @Before
+    public void setUp() {
+        mService = new FakeInAppBillingService();
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+    }
+
+    @After
+    public void tearDown() {
+        for (IabHelper helper : mHelpers) {
+            if (!helper.mDisposed) helper.dispose();
+        }
+        InstalledBillingService.reset();
+    }
+
+    // Returns a helper set up through the shared connection, with the results reported to the listener
+    IabHelper setUpHelper(RecordingListener listener) {
+        Executor direct = IabHelper.newDirectExecutor();
+        IabHelper helper = new IabHelper(RuntimeEnvironment.application, mService.getPublicKey(), direct, direct);
+        mHelpers.add(helper);
+        helper.startSetup(listener);
+        return helper;
+    }
+
+    @Test
+    public void setupBindsAndProbesTheService() throws IabException {
+        InstalledBillingService.install(mService);
+        RecordingListener listener = new RecordingListener();
+        IabHelper helper = setUpHelper(listener);
+
+        assertTrue(listener.mResults.get(0).isSuccess());
+        assertTrue(InstalledBillingService.isBound());
+        assertEquals(2, mService.getCallCount(IabMetrics.CALL_IS_BILLING_SUPPORTED));
+        assertTrue(helper.queryInventory(false, null).hasPurchase("gas"));
+    }
+
+    @Test
+    public void helpersShareTheConnectionAndTheProbes() throws IabException {
+        InstalledBillingService.install(mService);
+        IabHelper first = setUpHelper(new RecordingListener());
+        RecordingListener listener = new RecordingListener();
+        IabHelper second = setUpHelper(listener);
+
+        // Set up by the time startSetup() returned, without binding or probing again
+        assertTrue(listener.mResults.get(0).isSuccess());
+        assertEquals(1, InstalledBillingService.takeBindCount());
+        assertEquals(2, mService.getCallCount(IabMetrics.CALL_IS_BILLING_SUPPORTED));
+        assertSame(first.mConnection, second.mConnection);
+        assertTrue(second.queryInventory(false, null).hasPurchase("gas"));
+    }
+
+    @Test
+    public void lastHelperToGoUnbinds() {
+        InstalledBillingService.install(mService);
+        IabHelper first = setUpHelper(new RecordingListener());
+        IabHelper second = setUpHelper(new RecordingListener());
+
+        first.dispose();
+        assertTrue(InstalledBillingService.isBound());
+        second.dispose();
+        assertFalse(InstalledBillingService.isBound());
+    }
+
+    @Test
+    public void failedSetupLetsGoOfTheConnection() {
+        InstalledBillingService.install(mService);
+        mService.failCalls(IabMetrics.CALL_IS_BILLING_SUPPORTED, IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, 1);
+        RecordingListener failed = new RecordingListener();
+        setUpHelper(failed);
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, failed.mResults.get(0).getResponse());
+        assertFalse(InstalledBillingService.isBound());
+        assertEquals(1, InstalledBillingService.takeBindCount());
+
+        // The next helper binds and probes again
+        RecordingListener listener = new RecordingListener();
+        setUpHelper(listener);
+        assertTrue(listener.mResults.get(0).isSuccess());
+        assertEquals(1, InstalledBillingService.takeBindCount());
+        assertEquals(3, mService.getCallCount(IabMetrics.CALL_IS_BILLING_SUPPORTED));
+    }
+
+    @Test
+    public void failedSharedProbeIsTriedAgainByTheNextHelper() {
+        InstalledBillingService.install(mService);
+        IabHelper first = setUpHelper(new RecordingListener());
+
+        // The service comes back after a restart, but its probe fails; the first helper keeps
+        // the connection as it's already set up
+        IabConnection connection = first.mConnection;
+        mService.failCalls(IabMetrics.CALL_IS_BILLING_SUPPORTED, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 1);
+        connection.mServiceConn.onServiceDisconnected(InstalledBillingService.COMPONENT);
+        connection.mServiceConn.onServiceConnected(InstalledBillingService.COMPONENT, mService.asBinder());
+        assertFalse(connection.mSetupResult.isSuccess());
+
+        RecordingListener listener = new RecordingListener();
+        setUpHelper(listener);
+        assertTrue(listener.mResults.get(0).isSuccess());
+        assertTrue(connection.mSetupResult.isSuccess());
+        assertEquals(1, InstalledBillingService.takeBindCount());
+    }
+
+    @Test
+    public void missingServiceIsReportedAsUnavailable() {
+        RecordingListener listener = new RecordingListener();
+        setUpHelper(listener);
+
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, listener.mResults.get(0).getResponse());
+        assertEquals(0, InstalledBillingService.takeBindCount());
+    }
+
+    @Test
+    public void setupFutureCarriesTheResult() throws Exception {
+        InstalledBillingService.install(mService);
+        Executor direct = IabHelper.newDirectExecutor();
+        IabHelper helper = new IabHelper(RuntimeEnvironment.application, mService.getPublicKey(), direct, direct);
+        mHelpers.add(helper);
+
+        assertTrue(helper.setupAsync().get().isSuccess());
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Consuming batches of purchases with {@link IabHelper#consumeAsync(List,
+ * IabHelper.OnConsumeMultiFinishedListener)}, against a {@link FakeInAppBillingService}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabConsumeTest {
+    /**
+     * Keeps the results it gets, item by item and for the whole batch.
+     */
+    static class RecordingListener implements IabHelper.OnConsumeMultiProgressListener {
+        final List<Purchase> mItems = new ArrayList<Purchase>();
+        List<Purchase> mPurchases;
+        List<IabResult> mResults;
+
+        @Override
+        public void onConsumeItemFinished(Purchase purchase, IabResult result) {
+            mItems.add(purchase);
+        }
+
+        @Override
+        public void onConsumeMultiFinished(List<Purchase> purchases, List<IabResult> results) {
+            mPurchases = purchases;
+            mResults = results;
+        }
+    }
+
+    FakeInAppBillingService mService;
+    IabHelper mHelper;
+    List<Purchase> mOwned;
+
+    @Before
+    public void setUp() throws IabException {
+        mService = new FakeInAppBillingService();
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 10);
+        Executor direct = IabHelper.newDirectExecutor();
+        mHelper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+        mHelper.startSetup(mService, null);
+
+        Inventory inv = mHelper.queryInventory(false, null);
+        mOwned = new ArrayList<Purchase>();
+        for (int i = 0; i < 10; ++i) {
+            mOwned.add(inv.getPurchase("gas." + i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.dispose();
+    }
+
+    @Test
+    public void batchIsSpreadOverParallelWorkers() {
+        ManualExecutor background = new ManualExecutor();
+        mHelper.setBackgroundExecutor(background);
+        mHelper.setConsumeParallelism(3);
+        RecordingListener listener = new RecordingListener();
+        mHelper.consumeAsync(mOwned, listener);
+        assertEquals(3, background.pending());
+
+        background.runAll();
+        assertEquals(10, listener.mResults.size());
+        assertEquals(0, mService.getPurchaseCount(IabHelper.ITEM_TYPE_INAPP));
+    }
+
+    @Test
+    public void smallBatchDoesntStartIdleWorkers() {
+        ManualExecutor background = new ManualExecutor();
+        mHelper.setBackgroundExecutor(background);
+        mHelper.consumeAsync(mOwned.subList(0, 2), new RecordingListener());
+        assertEquals(2, background.pending());
+    }
+
+    @Test
+    public void sharedTokensAreConsumedOnce() {
+        List<Purchase> batch = new ArrayList<Purchase>(mOwned.subList(0, 3));
+        batch.add(mOwned.get(1));
+        batch.add(mOwned.get(0));
+        RecordingListener listener = new RecordingListener();
+        mHelper.consumeAsync(batch, listener);
+
+        assertEquals(3, mService.getCallCount(IabMetrics.CALL_CONSUME_PURCHASE));
+        assertEquals(3, listener.mItems.size());
+        assertEquals(5, listener.mResults.size());
+        for (IabResult result : listener.mResults) {
+            assertTrue(result.isSuccess());
+        }
+    }
+
+    @Test
+    public void resultsLineUpWithThePurchases() {
+        mHelper.setConsumeParallelism(1);
+        mService.failCalls(IabMetrics.CALL_CONSUME_PURCHASE, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 1);
+        RecordingListener listener = new RecordingListener();
+        mHelper.consumeAsync(mOwned.subList(0, 4), listener);
+
+        assertEquals(mOwned.subList(0, 4), listener.mPurchases);
+        assertFalse(listener.mResults.get(0).isSuccess());
+        for (int i = 1; i < 4; ++i) {
+            assertTrue(listener.mResults.get(i).isSuccess());
+        }
+        assertEquals(7, mService.getPurchaseCount(IabHelper.ITEM_TYPE_INAPP));
+    }
+
+    @Test
+    public void emptyBatchFinishesStraightAway() {
+        RecordingListener listener = new RecordingListener();
+        mHelper.consumeAsync(new ArrayList<Purchase>(), listener);
+        assertTrue(listener.mResults.isEmpty());
+        assertTrue(listener.mPurchases.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parallelismMustBePositive() {
+        mHelper.setConsumeParallelism(0);
+    }
+}
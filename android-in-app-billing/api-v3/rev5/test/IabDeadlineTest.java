@@ -0,0 +1,180 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.Scheduler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Operations given a deadline against a slow {@link FakeInAppBillingService}. The fake's latency
+ * is real time, and so is the wait for a call under a deadline, so these take a few hundred
+ * milliseconds each. Deadlines are kept on SystemClock, which under Robolectric stands still
+ * unless moved, so a thread keeps it in step with real time.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabDeadlineTest {
+    /**
+     * Keeps the results it gets.
+     */
+    static class RecordingListener implements IabHelper.QueryInventoryFinishedListener,
+            IabHelper.OnConsumeFinishedListener {
+        final List<IabResult> mResults = new ArrayList<IabResult>();
+
+        @Override
+        public void onQueryInventoryFinished(IabResult result, Inventory inv) {
+            mResults.add(result);
+        }
+
+        @Override
+        public void onConsumeFinished(Purchase purchase, IabResult result) {
+            mResults.add(result);
+        }
+    }
+
+    // How long the slow calls take, well past the deadlines below
+    static final long SLOW_MILLIS = 400;
+    static final long DEADLINE_MILLIS = 50;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    FakeInAppBillingService mService;
+    IabHelper mHelper;
+    Thread mClock;
+
+    @Before
+    public void setUp() {
+        final Scheduler scheduler = Robolectric.getForegroundThreadScheduler();
+        mClock = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                long base = scheduler.getCurrentTime();
+                while (!Thread.currentThread().isInterrupted()) {
+                    scheduler.advanceTo(base + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    try {
+                        Thread.sleep(1);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        mClock.setDaemon(true);
+        mClock.start();
+
+        mService = new FakeInAppBillingService();
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+        Executor direct = IabHelper.newDirectExecutor();
+        mHelper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+        mHelper.startSetup(mService, null);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mHelper.dispose();
+        mClock.interrupt();
+        mClock.join();
+    }
+
+    @Test
+    public void queryGivesUpAtItsDeadline() {
+        mService.setLatency(IabMetrics.CALL_GET_PURCHASES, SLOW_MILLIS);
+        long start = System.nanoTime();
+        try {
+            mHelper.queryInventory(false, null, DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+            fail("Expected the query to time out");
+        }
+        catch (IabException e) {
+            assertEquals(IabHelper.IABHELPER_TIMEOUT, e.getResult().getResponse());
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < SLOW_MILLIS);
+    }
+
+    @Test
+    public void queryWithinItsDeadlineSucceeds() throws IabException {
+        mService.setLatency(IabMetrics.CALL_GET_PURCHASES, DEADLINE_MILLIS);
+        Inventory inv = mHelper.queryInventory(false, null, SLOW_MILLIS * 10, TimeUnit.MILLISECONDS);
+        assertTrue(inv.hasPurchase("gas"));
+
+        // Without one, the helper waits however long it takes
+        mService.setLatency(IabMetrics.CALL_GET_PURCHASES, SLOW_MILLIS);
+        assertTrue(mHelper.queryInventory(false, null).hasPurchase("gas"));
+    }
+
+    @Test
+    public void asyncOperationsGiveUpAtTheAsyncTimeout() {
+        mHelper.setAsyncTimeout(DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+        mService.setLatency(IabMetrics.CALL_GET_PURCHASES, SLOW_MILLIS);
+        RecordingListener listener = new RecordingListener();
+        mHelper.queryInventoryAsync(false, null, listener);
+        assertEquals(IabHelper.IABHELPER_TIMEOUT, listener.mResults.get(0).getResponse());
+
+        // The next one gets its own time
+        mService.setLatency(IabMetrics.CALL_GET_PURCHASES, 0);
+        mHelper.queryInventoryAsync(false, null, listener);
+        assertTrue(listener.mResults.get(1).isSuccess());
+    }
+
+    @Test
+    public void consumptionThatWentThroughAfterTimingOutIsRecorded() throws Exception {
+        ConsumptionJournal journal = new ConsumptionJournal(new File(mFolder.getRoot(), "journal"));
+        mHelper.mConsumptionJournal = journal;
+        Purchase gas = mHelper.queryInventory(false, null).getPurchase("gas");
+        journal.addPending(gas);
+        // Told about the late answer on the calling thread
+        final List<InventoryDelta> deltas = Collections.synchronizedList(new ArrayList<InventoryDelta>());
+        mHelper.setOnEntitlementsChangedListener(new IabHelper.OnEntitlementsChangedListener() {
+            @Override
+            public void onEntitlementsChanged(InventoryDelta delta, Inventory inventory) {
+                deltas.add(delta);
+            }
+        });
+
+        mService.setLatency(IabMetrics.CALL_CONSUME_PURCHASE, SLOW_MILLIS);
+        try {
+            mHelper.consume(gas, DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+            fail("Expected the consumption to time out");
+        }
+        catch (IabException e) {
+            assertEquals(IabHelper.IABHELPER_TIMEOUT, e.getResult().getResponse());
+        }
+        assertTrue(journal.hasTimedOut(gas.getToken()));
+
+        // The service answers later, on the thread left making the call
+        long deadline = System.currentTimeMillis() + SLOW_MILLIS * 10;
+        while (mService.getPurchaseCount(IabHelper.ITEM_TYPE_INAPP) > 0 || deltas.isEmpty()) {
+            assertTrue("Late answer never arrived", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals("gas", deltas.get(0).getRemoved().get(0).getSku());
+
+        // It stays journaled, and consuming it again is taken as done
+        assertEquals(1, journal.getPending().size());
+        mService.setLatency(IabMetrics.CALL_CONSUME_PURCHASE, 0);
+        RecordingListener listener = new RecordingListener();
+        mHelper.consumeAsync(gas, listener);
+        assertTrue(listener.mResults.get(0).isSuccess());
+        assertTrue(journal.getPending().isEmpty());
+        assertFalse(journal.hasTimedOut(gas.getToken()));
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Where {@link IabHelper} runs its background work and delivers results, against a
+ * {@link FakeInAppBillingService}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabExecutorsTest {
+    /**
+     * Keeps every inventory result it gets.
+     */
+    static class RecordingListener implements IabHelper.QueryInventoryFinishedListener {
+        final List<IabResult> mResults = new ArrayList<IabResult>();
+
+        @Override
+        public void onQueryInventoryFinished(IabResult result, Inventory inv) {
+            mResults.add(result);
+        }
+    }
+
+    FakeInAppBillingService mService;
+    ManualExecutor mBackground;
+    ManualExecutor mCallback;
+    IabHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mService = new FakeInAppBillingService();
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "product.", 3);
+        mBackground = new ManualExecutor();
+        mCallback = new ManualExecutor();
+        mHelper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), mBackground, mCallback);
+        mHelper.startSetup(mService, null);
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.dispose();
+    }
+
+    @Test
+    public void queriesRunOnTheBackgroundExecutor() {
+        RecordingListener listener = new RecordingListener();
+        mHelper.queryInventoryAsync(false, listener);
+        assertEquals(0, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+        assertEquals(1, mBackground.pending());
+
+        mBackground.runAll();
+        assertTrue(mService.getCallCount(IabMetrics.CALL_GET_PURCHASES) > 0);
+        assertTrue(listener.mResults.isEmpty());
+
+        mCallback.runAll();
+        assertEquals(1, listener.mResults.size());
+        assertTrue(listener.mResults.get(0).isSuccess());
+    }
+
+    @Test
+    public void helpersWithoutAnExecutorShareThePool() {
+        IabHelper first = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), null, mCallback);
+        IabHelper second = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), null, mCallback);
+        assertSame(first.mBackgroundExecutor, second.mBackgroundExecutor);
+        assertSame(IabHelper.getDefaultExecutor(), first.mBackgroundExecutor);
+
+        first.setBackgroundExecutor(mBackground);
+        assertSame(mBackground, first.mBackgroundExecutor);
+        first.setBackgroundExecutor(null);
+        assertSame(IabHelper.getDefaultExecutor(), first.mBackgroundExecutor);
+    }
+
+    @Test
+    public void resultsArePostedToTheStartingLooper() {
+        mHelper.setCallbackExecutor(null);
+        ShadowLooper.pauseMainLooper();
+        RecordingListener listener = new RecordingListener();
+        mHelper.queryInventoryAsync(false, listener);
+        mBackground.runAll();
+        assertTrue(listener.mResults.isEmpty());
+
+        ShadowLooper.unPauseMainLooper();
+        assertEquals(1, listener.mResults.size());
+    }
+
+    @Test
+    public void threadWithoutALooperNeedsACallbackExecutor() throws Exception {
+        mHelper.setCallbackExecutor(null);
+        final Exception[] thrown = new Exception[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mHelper.queryInventoryAsync(false, new RecordingListener());
+                }
+                catch (IllegalStateException e) {
+                    thrown[0] = e;
+                }
+            }
+        };
+        t.start();
+        t.join();
+        assertTrue(thrown[0] instanceof IllegalStateException);
+        assertEquals(0, mBackground.pending());
+    }
+}
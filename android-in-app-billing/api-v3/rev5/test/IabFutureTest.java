@@ -0,0 +1,272 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * {@link IabFuture} on its own, and the future-returning methods of {@link IabHelper} chained
+ * against a {@link FakeInAppBillingService}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabFutureTest {
+    /**
+     * Keeps the outcome it is told about.
+     */
+    static class RecordingCallback<T> implements IabFuture.Callback<T> {
+        int mCalls = 0;
+        T mValue;
+        IabException mFailure;
+
+        @Override
+        public void onSuccess(T value) {
+            ++mCalls;
+            mValue = value;
+        }
+
+        @Override
+        public void onFailure(IabException e) {
+            ++mCalls;
+            mFailure = e;
+        }
+    }
+
+    FakeInAppBillingService mService;
+    IabHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mService = new FakeInAppBillingService();
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 3);
+        Executor direct = IabHelper.newDirectExecutor();
+        mHelper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+        mHelper.startSetup(mService, null);
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.dispose();
+    }
+
+    // Returns the failure a future completed with
+    static IabResult failureOf(IabFuture<?> future) throws InterruptedException {
+        try {
+            future.get();
+        }
+        catch (ExecutionException e) {
+            return ((IabException) e.getCause()).getResult();
+        }
+        fail("Expected the future to fail");
+        return null;
+    }
+
+    @Test
+    public void getReturnsTheValueOrTheFailure() throws Exception {
+        assertEquals("done", IabFuture.completed("done").get());
+        IabResult result = failureOf(IabFuture.failed(new IabResult(IabHelper.BILLING_RESPONSE_RESULT_ERROR, "Nope")));
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, result.getResponse());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void getGivesUpAfterTheTimeout() throws Exception {
+        new IabFuture<String>().get(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void callbacksRunOnTheirExecutor() {
+        IabFuture<String> future = new IabFuture<String>();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingCallback<String> callback = new RecordingCallback<String>();
+        future.addCallback(callback, executor);
+        future.complete("done");
+        assertEquals(0, callback.mCalls);
+
+        executor.runAll();
+        assertEquals(1, callback.mCalls);
+        assertEquals("done", callback.mValue);
+
+        // Added late, it's notified straight away
+        RecordingCallback<String> late = new RecordingCallback<String>();
+        future.addCallback(late, IabFuture.DIRECT);
+        assertEquals("done", late.mValue);
+    }
+
+    @Test
+    public void onlyTheFirstCompletionCounts() throws Exception {
+        IabFuture<String> future = new IabFuture<String>();
+        RecordingCallback<String> callback = new RecordingCallback<String>();
+        future.addCallback(callback, IabFuture.DIRECT);
+        future.complete("first");
+        future.complete("second");
+        future.fail(new IabException(IabHelper.BILLING_RESPONSE_RESULT_ERROR, "Too late"));
+
+        assertEquals(1, callback.mCalls);
+        assertEquals("first", future.get());
+    }
+
+    @Test
+    public void throwingCallbackDoesntStopTheOthers() {
+        IabFuture<String> future = new IabFuture<String>();
+        future.addCallback(new IabFuture.Callback<String>() {
+            @Override
+            public void onSuccess(String value) {
+                throw new IllegalStateException("Broken callback");
+            }
+
+            @Override
+            public void onFailure(IabException e) {
+            }
+        }, IabFuture.DIRECT);
+        RecordingCallback<String> callback = new RecordingCallback<String>();
+        future.addCallback(callback, IabFuture.DIRECT);
+        future.complete("done");
+        assertEquals("done", callback.mValue);
+    }
+
+    @Test
+    public void thenStartsTheNextStepWithTheResult() throws Exception {
+        IabFuture<Integer> first = new IabFuture<Integer>();
+        IabFuture<String> chain = first.then(new IabFuture.Continuation<Integer, String>() {
+            @Override
+            public IabFuture<String> then(Integer value) {
+                return IabFuture.completed("gas x" + value);
+            }
+        });
+        assertFalse(chain.isDone());
+
+        first.complete(3);
+        assertEquals("gas x3", chain.get());
+    }
+
+    @Test
+    public void failureSkipsTheRestOfTheChain() throws Exception {
+        final List<Integer> started = new ArrayList<Integer>();
+        IabFuture<Integer> chain = IabFuture.<Integer>failed(new IabResult(IabHelper.BILLING_RESPONSE_RESULT_ERROR, "Nope"))
+                .then(new IabFuture.Continuation<Integer, Integer>() {
+                    @Override
+                    public IabFuture<Integer> then(Integer value) {
+                        started.add(value);
+                        return IabFuture.completed(value + 1);
+                    }
+                });
+
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, failureOf(chain).getResponse());
+        assertTrue(started.isEmpty());
+    }
+
+    @Test
+    public void brokenContinuationFailsTheChain() throws Exception {
+        IabFuture<String> throwing = IabFuture.completed(1).then(new IabFuture.Continuation<Integer, String>() {
+            @Override
+            public IabFuture<String> then(Integer value) {
+                throw new IllegalStateException("Broken continuation");
+            }
+        });
+        IabFuture<String> returningNull = IabFuture.completed(1).then(new IabFuture.Continuation<Integer, String>() {
+            @Override
+            public IabFuture<String> then(Integer value) {
+                return null;
+            }
+        });
+        IabFuture<String> failing = IabFuture.completed(1).then(new IabFuture.Continuation<Integer, String>() {
+            @Override
+            public IabFuture<String> then(Integer value) throws IabException {
+                throw new IabException(IabHelper.IABHELPER_BAD_RESPONSE, "Bad");
+            }
+        });
+
+        assertEquals(IabHelper.IABHELPER_UNKNOWN_ERROR, failureOf(throwing).getResponse());
+        assertEquals(IabHelper.IABHELPER_UNKNOWN_ERROR, failureOf(returningNull).getResponse());
+        assertEquals(IabHelper.IABHELPER_BAD_RESPONSE, failureOf(failing).getResponse());
+    }
+
+    @Test
+    public void allOfKeepsTheOrder() throws Exception {
+        IabFuture<String> a = new IabFuture<String>();
+        IabFuture<String> b = new IabFuture<String>();
+        IabFuture<List<String>> all = IabFuture.allOf(Arrays.asList(a, b));
+        b.complete("b");
+        assertFalse(all.isDone());
+        a.complete("a");
+
+        assertEquals(Arrays.asList("a", "b"), all.get());
+        assertTrue(IabFuture.allOf(new ArrayList<IabFuture<String>>()).get().isEmpty());
+    }
+
+    @Test
+    public void allOfFailsOnTheFirstFailure() throws Exception {
+        IabFuture<String> a = new IabFuture<String>();
+        IabFuture<String> b = new IabFuture<String>();
+        IabFuture<List<String>> all = IabFuture.allOf(Arrays.asList(a, b));
+        b.fail(new IabException(IabHelper.BILLING_RESPONSE_RESULT_ERROR, "Nope"));
+
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, failureOf(all).getResponse());
+    }
+
+    @Test
+    public void cancelledFutureDropsTheResult() throws Exception {
+        IabFuture<String> future = new IabFuture<String>();
+        RecordingCallback<String> callback = new RecordingCallback<String>();
+        future.addCallback(callback, IabFuture.DIRECT);
+        assertTrue(future.cancel(false));
+        future.complete("too late");
+
+        assertTrue(future.isCancelled());
+        assertEquals(IabHelper.IABHELPER_USER_CANCELLED, callback.mFailure.getResult().getResponse());
+        assertNull(callback.mValue);
+        try {
+            future.get();
+            fail("Expected the future to be cancelled");
+        }
+        catch (CancellationException e) {
+            // expected
+        }
+        assertFalse(IabFuture.completed("done").cancel(false));
+    }
+
+    @Test
+    public void queryAndConsumeChain() throws Exception {
+        IabFuture<Purchase> chain = mHelper.queryInventoryFuture(false, null)
+                .then(new IabFuture.Continuation<Inventory, Purchase>() {
+                    @Override
+                    public IabFuture<Purchase> then(Inventory inv) {
+                        return mHelper.consumeFuture(inv.getPurchase("gas.1"));
+                    }
+                });
+
+        assertEquals("gas.1", chain.get().getSku());
+        assertEquals(2, mService.getPurchaseCount(IabHelper.ITEM_TYPE_INAPP));
+    }
+
+    @Test
+    public void failedStepCarriesItsResult() throws Exception {
+        mService.failCalls(IabMetrics.CALL_GET_PURCHASES, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 1);
+        IabFuture<Inventory> query = mHelper.queryInventoryFuture(false, null);
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, failureOf(query).getResponse());
+
+        Purchase gas = mHelper.queryInventoryFuture(false, null).get().getPurchase("gas.0");
+        mService.failCalls(IabMetrics.CALL_CONSUME_PURCHASE, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 1);
+        IabFuture<Purchase> consume = mHelper.consumeFuture(gas);
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, failureOf(consume).getResponse());
+        assertSame(gas, mHelper.consumeFuture(gas).get());
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Concurrent calls to {@link IabHelper#queryInventoryAsync} sharing one query to the service.
+ *
+ * The background executor is a {@link ManualExecutor}, so every call is made (and attached to
+ * the query in progress) before any of them runs.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabInventoryFlightTest {
+    /**
+     * Keeps the result it gets.
+     */
+    static class RecordingListener implements IabHelper.QueryInventoryFinishedListener {
+        IabResult mResult;
+        Inventory mInventory;
+
+        @Override
+        public void onQueryInventoryFinished(IabResult result, Inventory inv) {
+            mResult = result;
+            mInventory = inv;
+        }
+    }
+
+    FakeInAppBillingService mService;
+    IabHelper mHelper;
+    ManualExecutor mBackground;
+
+    @Before
+    public void setUp() {
+        mService = new FakeInAppBillingService();
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 5);
+        for (int i = 0; i < 5; ++i) {
+            mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas." + i, "$0.99", "Gas " + i);
+        }
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "premium", "$2.99", "Premium");
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "infinite_gas", "$4.99", "Infinite gas");
+        Executor direct = IabHelper.newDirectExecutor();
+        mHelper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+        mHelper.startSetup(mService, null);
+        mBackground = new ManualExecutor();
+        mHelper.setBackgroundExecutor(mBackground);
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.dispose();
+    }
+
+    @Test
+    public void concurrentQueriesShareOneServiceQuery() {
+        RecordingListener[] listeners = new RecordingListener[3];
+        for (int i = 0; i < listeners.length; ++i) {
+            listeners[i] = new RecordingListener();
+            mHelper.queryInventoryAsync(false, null, listeners[i]);
+        }
+        mBackground.runAll();
+
+        // One call per item type for all three
+        assertEquals(2, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+        for (RecordingListener listener : listeners) {
+            assertTrue(listener.mResult.isSuccess());
+            assertEquals(5, listener.mInventory.getAllOwnedSkus(IabHelper.ITEM_TYPE_INAPP).size());
+        }
+
+        // Each gets a copy of its own
+        assertNotSame(listeners[0].mInventory, listeners[1].mInventory);
+        listeners[0].mInventory.erasePurchase("gas.0");
+        assertTrue(listeners[1].mInventory.hasPurchase("gas.0"));
+    }
+
+    @Test
+    public void queryAfterTheSharedOneFinishedQueriesAgain() {
+        mHelper.queryInventoryAsync(false, null, new RecordingListener());
+        mBackground.runAll();
+        mHelper.queryInventoryAsync(false, null, new RecordingListener());
+        mBackground.runAll();
+
+        assertEquals(4, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+    }
+
+    @Test
+    public void detailsOfOwnedSkusAreFetchedOnceForAll() {
+        RecordingListener withoutDetails = new RecordingListener();
+        RecordingListener[] withDetails = { new RecordingListener(), new RecordingListener() };
+        mHelper.queryInventoryAsync(false, null, withoutDetails);
+        for (RecordingListener listener : withDetails) {
+            mHelper.queryInventoryAsync(true, null, listener);
+        }
+        mBackground.runAll();
+
+        assertEquals(2, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+        // Nothing owned among the subscriptions, so only products have details to fetch
+        assertEquals(1, mService.getCallCount(IabMetrics.CALL_GET_SKU_DETAILS));
+        assertFalse(withoutDetails.mInventory.hasDetails("gas.0"));
+        for (RecordingListener listener : withDetails) {
+            assertEquals("$0.99", listener.mInventory.getSkuDetails("gas.0").getPrice());
+        }
+    }
+
+    @Test
+    public void furtherSkusAreFetchedPerCaller() {
+        RecordingListener premium = new RecordingListener();
+        RecordingListener infiniteGas = new RecordingListener();
+        mHelper.queryInventoryAsync(true, Arrays.asList("premium"), premium);
+        mHelper.queryInventoryAsync(true, Arrays.asList("infinite_gas"), infiniteGas);
+        mBackground.runAll();
+
+        assertEquals(2, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+        assertTrue(premium.mInventory.hasDetails("gas.0"));
+        assertTrue(premium.mInventory.hasDetails("premium"));
+        assertFalse(premium.mInventory.hasDetails("infinite_gas"));
+        assertTrue(infiniteGas.mInventory.hasDetails("gas.0"));
+        assertTrue(infiniteGas.mInventory.hasDetails("infinite_gas"));
+        assertFalse(infiniteGas.mInventory.hasDetails("premium"));
+    }
+
+    @Test
+    public void consumptionStopsLaterCallsFromAttaching() throws IabException {
+        mHelper.setBackgroundExecutor(IabHelper.newDirectExecutor());
+        Purchase gas = mHelper.queryInventory(false, null).getPurchase("gas.0");
+        mHelper.setBackgroundExecutor(mBackground);
+        int callsBefore = mService.getCallCount(IabMetrics.CALL_GET_PURCHASES);
+
+        RecordingListener before = new RecordingListener();
+        mHelper.queryInventoryAsync(false, null, before);
+        mHelper.consume(gas);
+        RecordingListener after = new RecordingListener();
+        mHelper.queryInventoryAsync(false, null, after);
+        mBackground.runAll();
+
+        // Both queries ran: the later one couldn't attach to the one made before the consumption
+        assertEquals(callsBefore + 4, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+        assertFalse(after.mInventory.hasPurchase("gas.0"));
+        assertEquals(4, after.mInventory.getAllOwnedSkus(IabHelper.ITEM_TYPE_INAPP).size());
+    }
+
+    @Test
+    public void failureIsSharedByEveryCaller() {
+        mService.failCalls(IabMetrics.CALL_GET_PURCHASES, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 1);
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        mHelper.queryInventoryAsync(false, null, first);
+        mHelper.queryInventoryAsync(false, null, second);
+        mBackground.runAll();
+
+        assertEquals(1, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, first.mResult.getResponse());
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, second.mResult.getResponse());
+    }
+}
@@ -0,0 +1,354 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Querying the inventory with {@link IabHelper#queryInventory}, against a {@link FakeInAppBillingService}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabInventoryQueryTest {
+    /**
+     * Keeps the batches reported while querying, and can run something as each one comes in.
+     */
+    static class RecordingProgress implements IabHelper.InventoryProgress {
+        final List<Purchase> mPurchases = new ArrayList<Purchase>();
+        final List<SkuDetails> mSkuDetails = new ArrayList<SkuDetails>();
+        final List<Integer> mBatchSizes = new ArrayList<Integer>();
+        Runnable mOnBatch;
+
+        @Override
+        public synchronized void onPurchasesLoaded(String itemType, List<Purchase> purchases) {
+            mPurchases.addAll(purchases);
+            mBatchSizes.add(purchases.size());
+            if (mOnBatch != null) mOnBatch.run();
+        }
+
+        @Override
+        public synchronized void onSkuDetailsLoaded(String itemType, List<SkuDetails> skuDetails) {
+            mSkuDetails.addAll(skuDetails);
+            mBatchSizes.add(skuDetails.size());
+            if (mOnBatch != null) mOnBatch.run();
+        }
+    }
+
+    FakeInAppBillingService mService;
+    IabHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mService = new FakeInAppBillingService();
+        mService.setPageSize(1000);
+        Executor direct = IabHelper.newDirectExecutor();
+        mHelper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+        mHelper.startSetup(mService, null);
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.dispose();
+    }
+
+    // Adds products named with the prefix followed by a number, and returns their skus
+    List<String> addProducts(String prefix, int count) {
+        List<String> skus = new ArrayList<String>();
+        for (int i = 0; i < count; ++i) {
+            mService.addProduct(IabHelper.ITEM_TYPE_INAPP, prefix + i, "$0.99", "Item " + i);
+            skus.add(prefix + i);
+        }
+        return skus;
+    }
+
+    // Returns the first page of owned products, as the service hands it out
+    Bundle firstPage() throws Exception {
+        return mService.getPurchases(3, IabLoadDriver.PACKAGE_NAME, IabHelper.ITEM_TYPE_INAPP, null);
+    }
+
+    @Test
+    public void pageIsVerifiedInPageOrder() throws Exception {
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 40);
+        mService.addTamperedPurchase(IabHelper.ITEM_TYPE_INAPP, "forged.0");
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "coin.", 40);
+        mService.addTamperedPurchase(IabHelper.ITEM_TYPE_INAPP, "forged.1");
+        Bundle page = firstPage();
+        ArrayList<String> skus = page.getStringArrayList(IabHelper.RESPONSE_INAPP_ITEM_LIST);
+
+        Purchase[] purchases = mHelper.verifyPurchases(IabHelper.ITEM_TYPE_INAPP,
+                page.getStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST),
+                page.getStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST));
+
+        assertEquals(82, purchases.length);
+        for (int i = 0; i < purchases.length; ++i) {
+            if (skus.get(i).startsWith("forged.")) {
+                assertNull(purchases[i]);
+            }
+            else {
+                assertNotNull(purchases[i]);
+                assertEquals(skus.get(i), purchases[i].getSku());
+                assertEquals(IabHelper.ITEM_TYPE_INAPP, purchases[i].getItemType());
+            }
+        }
+    }
+
+    @Test
+    public void bigPageIsSplitAcrossTheBackgroundExecutor() throws Exception {
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 64);
+        ManualExecutor background = new ManualExecutor();
+        mHelper.setBackgroundExecutor(background);
+        Bundle page = firstPage();
+
+        // Nothing runs the forked chunks, so they are run by the thread that joins them
+        Purchase[] purchases = mHelper.verifyPurchases(IabHelper.ITEM_TYPE_INAPP,
+                page.getStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST),
+                page.getStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST));
+
+        int chunks = Math.min(Runtime.getRuntime().availableProcessors(), 64 / IabHelper.MIN_VERIFY_BATCH);
+        assertEquals(Math.max(chunks - 1, 0), background.mExecuted);
+        for (int i = 0; i < purchases.length; ++i) {
+            assertEquals("gas." + i, purchases[i].getSku());
+        }
+    }
+
+    @Test
+    public void smallPageIsVerifiedOnTheCallingThread() throws Exception {
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", IabHelper.MIN_VERIFY_BATCH);
+        ManualExecutor background = new ManualExecutor();
+        mHelper.setBackgroundExecutor(background);
+        Bundle page = firstPage();
+
+        Purchase[] purchases = mHelper.verifyPurchases(IabHelper.ITEM_TYPE_INAPP,
+                page.getStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST),
+                page.getStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST));
+
+        assertEquals(0, background.mExecuted);
+        assertEquals(IabHelper.MIN_VERIFY_BATCH, purchases.length);
+    }
+
+    @Test
+    public void forgedPurchaseFailsTheQuery() {
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 40);
+        mService.addTamperedPurchase(IabHelper.ITEM_TYPE_INAPP, "forged.0");
+        try {
+            mHelper.queryInventory(false, null);
+            fail("Expected the forged purchase to fail the query");
+        }
+        catch (IabException e) {
+            assertEquals(IabHelper.IABHELPER_VERIFICATION_FAILED, e.getResult().getResponse());
+        }
+    }
+
+    @Test
+    public void verifiedPurchasesAreAllInTheInventory() throws IabException {
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 70);
+        Inventory inv = mHelper.queryInventory(false, null);
+        List<String> owned = inv.getAllOwnedSkus(IabHelper.ITEM_TYPE_INAPP);
+        assertEquals(70, owned.size());
+        for (int i = 0; i < 70; ++i) {
+            assertTrue(inv.hasPurchase("gas." + i));
+        }
+    }
+
+    @Test
+    public void everyPageIsQueried() throws IabException {
+        mService.setPageSize(10);
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 25);
+        Inventory inv = mHelper.queryInventory(false, null);
+
+        assertEquals(25, inv.getAllOwnedSkus(IabHelper.ITEM_TYPE_INAPP).size());
+        // Three pages of products, one (empty) of subscriptions
+        assertEquals(4, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+    }
+
+    @Test
+    public void nextPageIsFetchedOnTheBackgroundExecutor() throws IabException {
+        mService.setPageSize(10);
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 25);
+        ManualExecutor background = new ManualExecutor();
+        mHelper.setBackgroundExecutor(background);
+        Inventory inv = mHelper.queryInventory(false, null);
+
+        assertEquals(2, background.mExecuted);
+        assertEquals(25, inv.getAllOwnedSkus(IabHelper.ITEM_TYPE_INAPP).size());
+    }
+
+    @Test
+    public void nextPageIsRequestedBeforeThisOneIsVerified() throws IabException {
+        mService.setPageSize(10);
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 25);
+        final List<Integer> callsAtBatch = new ArrayList<Integer>();
+        RecordingProgress progress = new RecordingProgress();
+        progress.mOnBatch = new Runnable() {
+            @Override
+            public void run() {
+                callsAtBatch.add(mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+            }
+        };
+        mHelper.queryInventory(false, null, null, progress);
+
+        // With a direct background executor the next page has already come back
+        assertEquals(3, callsAtBatch.size());
+        assertEquals(2, callsAtBatch.get(0).intValue());
+        assertEquals(3, callsAtBatch.get(1).intValue());
+        assertEquals(3, callsAtBatch.get(2).intValue());
+    }
+
+    @Test
+    public void failedLaterPageFailsTheQuery() {
+        mService.setPageSize(10);
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 25);
+        mHelper.setBackgroundExecutor(new ManualExecutor());
+        RecordingProgress progress = new RecordingProgress();
+        progress.mOnBatch = new Runnable() {
+            @Override
+            public void run() {
+                // The second page hasn't been requested yet, the join below runs it
+                mService.failCalls(IabMetrics.CALL_GET_PURCHASES, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 1);
+            }
+        };
+        try {
+            mHelper.queryInventory(false, null, null, progress);
+            fail("Expected the second page to fail the query");
+        }
+        catch (IabException e) {
+            assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, e.getResult().getResponse());
+        }
+        assertEquals(10, progress.mPurchases.size());
+    }
+
+    @Test
+    public void skuDetailsAreQueriedInBatchesTheServiceAccepts() throws Exception {
+        List<String> skus = addProducts("gas.", 45);
+        Inventory inv = new Inventory();
+        RecordingProgress progress = new RecordingProgress();
+        int response = mHelper.querySkuDetails(IabHelper.ITEM_TYPE_INAPP, inv, skus, progress);
+
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_OK, response);
+        assertEquals(3, mService.getCallCount(IabMetrics.CALL_GET_SKU_DETAILS));
+        assertEquals(3, progress.mBatchSizes.size());
+        for (int size : progress.mBatchSizes) {
+            assertTrue(size <= IabHelper.SKU_DETAILS_BATCH_SIZE);
+        }
+        for (String sku : skus) {
+            assertEquals("$0.99", inv.getSkuDetails(sku).getPrice());
+        }
+    }
+
+    @Test
+    public void duplicateSkusAreQueriedOnce() throws Exception {
+        List<String> skus = addProducts("gas.", 20);
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 5);
+        List<String> moreSkus = new ArrayList<String>(skus);
+        moreSkus.addAll(skus.subList(0, 10));
+        Inventory inv = mHelper.queryInventory(false, null);
+        RecordingProgress progress = new RecordingProgress();
+        mHelper.querySkuDetails(IabHelper.ITEM_TYPE_INAPP, inv, moreSkus, progress);
+
+        // Owned and asked for twice over, still 20 skus and so one batch
+        assertEquals(1, mService.getCallCount(IabMetrics.CALL_GET_SKU_DETAILS));
+        assertEquals(20, progress.mSkuDetails.size());
+    }
+
+    @Test
+    public void skusWithDetailsAreNotQueriedAgain() throws Exception {
+        List<String> skus = addProducts("gas.", 25);
+        Inventory inv = new Inventory();
+        mHelper.querySkuDetails(IabHelper.ITEM_TYPE_INAPP, inv, skus.subList(0, 20), null);
+        mHelper.querySkuDetails(IabHelper.ITEM_TYPE_INAPP, inv, skus, null);
+
+        assertEquals(2, mService.getCallCount(IabMetrics.CALL_GET_SKU_DETAILS));
+        assertEquals(25, inv.mSkuMap.size());
+    }
+
+    @Test
+    public void failedBatchFailsTheQuery() throws Exception {
+        List<String> skus = addProducts("gas.", 45);
+        mService.failCalls(IabMetrics.CALL_GET_SKU_DETAILS, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 1);
+        int response = mHelper.querySkuDetails(IabHelper.ITEM_TYPE_INAPP, new Inventory(), skus, null);
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, response);
+    }
+
+    @Test
+    public void parallelQueryFindsTheSameInventory() throws IabException {
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 5);
+        mService.addPurchases(IabHelper.ITEM_TYPE_SUBS, "monthly.", 3);
+        addProducts("gas.", 5);
+        Inventory sequential = mHelper.queryInventory(true, null);
+        mHelper.setParallelInventoryQueries(true);
+        Inventory parallel = mHelper.queryInventory(true, null);
+
+        assertEquals(sequential.mPurchaseMap.keySet(), parallel.mPurchaseMap.keySet());
+        assertEquals(sequential.mSkuMap.keySet(), parallel.mSkuMap.keySet());
+        assertEquals(3, parallel.getAllOwnedSkus(IabHelper.ITEM_TYPE_SUBS).size());
+    }
+
+    @Test
+    public void subscriptionsAreQueriedOnTheBackgroundExecutor() throws IabException {
+        mService.addPurchases(IabHelper.ITEM_TYPE_SUBS, "monthly.", 3);
+        ManualExecutor background = new ManualExecutor();
+        mHelper.setBackgroundExecutor(background);
+        mHelper.setParallelInventoryQueries(true);
+        Inventory inv = mHelper.queryInventory(false, null);
+
+        assertEquals(1, background.mExecuted);
+        assertEquals(3, inv.getAllOwnedSkus(IabHelper.ITEM_TYPE_SUBS).size());
+    }
+
+    @Test
+    public void productErrorCancelsSubscriptions() {
+        mHelper.setBackgroundExecutor(new ManualExecutor());
+        mHelper.setParallelInventoryQueries(true);
+        mService.failCalls(IabMetrics.CALL_GET_PURCHASES, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 1);
+        try {
+            mHelper.queryInventory(false, null);
+            fail("Expected the products query to fail");
+        }
+        catch (IabException e) {
+            assertTrue(e.getMessage().contains("owned items"));
+        }
+        assertEquals(1, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+    }
+
+    @Test
+    public void productErrorWinsOverSubscriptionError() {
+        // The direct background executor queries subscriptions first, so both calls fail
+        mHelper.setParallelInventoryQueries(true);
+        mService.failCalls(IabMetrics.CALL_GET_PURCHASES, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 2);
+        try {
+            mHelper.queryInventory(false, null);
+            fail("Expected both queries to fail");
+        }
+        catch (IabException e) {
+            assertTrue(e.getMessage().contains("owned items"));
+        }
+    }
+
+    @Test
+    public void subscriptionErrorIsReported() {
+        mHelper.setParallelInventoryQueries(true);
+        mService.failCalls(IabMetrics.CALL_GET_PURCHASES, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 1);
+        try {
+            mHelper.queryInventory(false, null);
+            fail("Expected the subscriptions query to fail");
+        }
+        catch (IabException e) {
+            assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, e.getResult().getResponse());
+            assertTrue(e.getMessage().contains("owned subscriptions"));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Drives {@link IabHelper} against a {@link FakeInAppBillingService} at scale and prints the
+ * throughput along with the helper's {@link IabMetrics}.
+ *
+ * The helper needs working android.os.Bundle, Looper and SystemClock, android.text.TextUtils,
+ * android.util.Log and org.json, which the SDK's android.jar only has stubs of, so the driver
+ * runs under Robolectric like the tests. Its name keeps it out of a normal test run; select it
+ * explicitly, with the load set by these system properties:
+ *
+ * iab.load.purchases (1000), iab.load.pageSize (100), iab.load.latencyMillis (20),
+ * iab.load.clients (4), iab.load.rounds (5)
+ *
+ * Each round, every client queries the inventory (with details) on its own thread, then the
+ * helper consumes a tenth of the products owned in one batch. IabLoadDriverTest runs a small
+ * load to keep the driver working.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabLoadDriver {
+    static final String PACKAGE_NAME = "com.example.fake";
+
+    final int mPurchases;
+    final int mPageSize;
+    final long mLatency;
+    final int mClients;
+    final int mRounds;
+
+    /**
+     * What a run did, for checking that the load went through.
+     */
+    static class Result {
+        int mQueries;
+        int mConsumed;
+        int mGetPurchasesCalls;
+        int mGetSkuDetailsCalls;
+        int mConsumePurchaseCalls;
+    }
+
+    public IabLoadDriver() {
+        this(Integer.getInteger("iab.load.purchases", 1000).intValue(),
+                Integer.getInteger("iab.load.pageSize", 100).intValue(),
+                Long.getLong("iab.load.latencyMillis", 20).longValue(),
+                Integer.getInteger("iab.load.clients", 4).intValue(),
+                Integer.getInteger("iab.load.rounds", 5).intValue());
+    }
+
+    IabLoadDriver(int purchases, int pageSize, long latency, int clients, int rounds) {
+        mPurchases = purchases;
+        mPageSize = pageSize;
+        mLatency = latency;
+        mClients = clients;
+        mRounds = rounds;
+    }
+
+    @Test
+    public void drive() throws Exception {
+        run();
+    }
+
+    Result run() throws Exception {
+        FakeInAppBillingService service = new FakeInAppBillingService();
+        service.setPageSize(mPageSize);
+        service.setLatency(mLatency);
+        int subscriptions = mPurchases / 10;
+        service.addPurchases(IabHelper.ITEM_TYPE_INAPP, "product.", mPurchases - subscriptions);
+        service.addPurchases(IabHelper.ITEM_TYPE_SUBS, "subscription.", subscriptions);
+        for (int i = 0; i < mPurchases - subscriptions; ++i) {
+            service.addProduct(IabHelper.ITEM_TYPE_INAPP, "product." + i, "$0.99", "Product " + i);
+        }
+        for (int i = 0; i < subscriptions; ++i) {
+            service.addProduct(IabHelper.ITEM_TYPE_SUBS, "subscription." + i, "$4.99", "Subscription " + i);
+        }
+
+        // Results are delivered on whichever thread finishes, as there's no Looper to post to
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                r.run();
+            }
+        };
+        final IabHelper helper = new IabHelper(PACKAGE_NAME, service.getPublicKey(), null, direct);
+        IabMetrics metrics = new IabMetrics();
+        helper.setMetrics(metrics);
+        helper.startSetup(service, new IabHelper.OnIabSetupFinishedListener() {
+            @Override
+            public void onIabSetupFinished(IabResult result) {
+                if (!result.isSuccess()) throw new IllegalStateException("Setup failed: " + result);
+            }
+        });
+
+        Result result = new Result();
+        long start = System.nanoTime();
+        for (int round = 0; round < mRounds; ++round) {
+            Inventory inventory = queryConcurrently(helper);
+            result.mQueries += mClients;
+
+            List<Purchase> batch = new ArrayList<Purchase>();
+            for (Purchase p : inventory.getAllPurchases()) {
+                if (IabHelper.ITEM_TYPE_INAPP.equals(p.getItemType()) && batch.size() < mPurchases / 10) {
+                    batch.add(p);
+                }
+            }
+            result.mConsumed += consume(helper, batch);
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        result.mGetPurchasesCalls = service.getCallCount(IabMetrics.CALL_GET_PURCHASES);
+        result.mGetSkuDetailsCalls = service.getCallCount(IabMetrics.CALL_GET_SKU_DETAILS);
+        result.mConsumePurchaseCalls = service.getCallCount(IabMetrics.CALL_CONSUME_PURCHASE);
+
+        System.out.println("Rounds: " + mRounds + ", clients: " + mClients + ", purchases: " + mPurchases
+                + ", page size: " + mPageSize + ", latency: " + mLatency + " ms");
+        System.out.println("Elapsed: " + elapsed + " ms, " + result.mQueries + " inventory queries, "
+                + result.mConsumed + " purchases consumed");
+        System.out.println("Service calls: getPurchases=" + result.mGetPurchasesCalls
+                + " getSkuDetails=" + result.mGetSkuDetailsCalls
+                + " consumePurchase=" + result.mConsumePurchaseCalls);
+        System.out.println(metrics);
+        helper.dispose();
+        return result;
+    }
+
+    // Has every client query the inventory at the same time, and returns one of the results
+    Inventory queryConcurrently(final IabHelper helper) throws Exception {
+        final CountDownLatch go = new CountDownLatch(1);
+        final Inventory[] results = new Inventory[mClients];
+        final Exception[] failure = new Exception[1];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < mClients; ++i) {
+            final int client = i;
+            Thread t = new Thread("IabLoadDriver client #" + i) {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        results[client] = helper.queryInventory(true, null);
+                    }
+                    catch (Exception e) {
+                        synchronized (failure) {
+                            if (failure[0] == null) failure[0] = e;
+                        }
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        go.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure[0] != null) throw failure[0];
+        return results[0];
+    }
+
+    // Consumes the purchases in one batch and returns how many succeeded
+    int consume(IabHelper helper, List<Purchase> purchases) throws InterruptedException {
+        if (purchases.isEmpty()) return 0;
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger succeeded = new AtomicInteger();
+        helper.consumeAsync(purchases, new IabHelper.OnConsumeMultiFinishedListener() {
+            @Override
+            public void onConsumeMultiFinished(List<Purchase> purchases, List<IabResult> results) {
+                for (IabResult r : results) {
+                    if (r.isSuccess()) succeeded.incrementAndGet();
+                }
+                done.countDown();
+            }
+        });
+        done.await();
+        return succeeded.get();
+    }
+}
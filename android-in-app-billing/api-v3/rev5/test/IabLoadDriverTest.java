@@ -0,0 +1,28 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Runs {@link IabLoadDriver} with a small load, so that it keeps working between the times
+ * someone runs it for real.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabLoadDriverTest {
+    @Test
+    public void smallLoadGoesThrough() throws Exception {
+        // 180 products and 20 subscriptions, 4 clients, 3 rounds consuming 20 products each
+        IabLoadDriver.Result result = new IabLoadDriver(200, 50, 0, 4, 3).run();
+
+        assertEquals(12, result.mQueries);
+        assertEquals(60, result.mConsumed);
+        assertEquals(60, result.mConsumePurchaseCalls);
+        assertTrue(result.mGetPurchasesCalls > 0);
+        assertTrue(result.mGetSkuDetailsCalls > 0);
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * What {@link IabMetrics} records of the helper's service calls, against a
+ * {@link FakeInAppBillingService}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabMetricsTest {
+    FakeInAppBillingService mService;
+    IabHelper mHelper;
+    IabMetrics mMetrics;
+
+    @Before
+    public void setUp() {
+        mService = new FakeInAppBillingService();
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "product.", 5);
+
+        Executor direct = IabHelper.newDirectExecutor();
+        mHelper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+        mMetrics = new IabMetrics();
+        mHelper.setMetrics(mMetrics);
+        mHelper.startSetup(mService, null);
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.dispose();
+    }
+
+    @Test
+    public void setupCallsAreRecorded() {
+        assertEquals(2, mMetrics.getSnapshot(IabMetrics.CALL_IS_BILLING_SUPPORTED).getCount());
+    }
+
+    @Test
+    public void successfulCallsAreRecorded() throws IabException {
+        // One page of products and one of subscriptions
+        mHelper.queryInventory(false, null);
+        assertEquals(2, mMetrics.getSnapshot(IabMetrics.CALL_GET_PURCHASES).getCount());
+        assertEquals(5, mMetrics.getSnapshot(IabMetrics.VERIFY_PURCHASE).getCount());
+    }
+
+    @Test
+    public void failedCallsAreRecorded() {
+        // Both the call and its retry after reconnecting throw
+        mService.throwOnCalls(IabMetrics.CALL_GET_PURCHASES, 2);
+        try {
+            mHelper.queryInventory(false, null);
+            fail("Query should have failed");
+        }
+        catch (IabException e) {
+            // expected
+        }
+        int calls = mService.getCallCount(IabMetrics.CALL_GET_PURCHASES);
+        assertTrue(calls > 0);
+        assertEquals(calls, mMetrics.getSnapshot(IabMetrics.CALL_GET_PURCHASES).getCount());
+    }
+}
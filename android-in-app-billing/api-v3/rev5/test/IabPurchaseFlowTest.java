@@ -0,0 +1,269 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ActivityController;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Purchase flows launched while another one waits for {@link IabHelper#handleActivityResult}, and
+ * purchases verified in the background once it's called. Runs under Robolectric, against a {@link FakeInAppBillingService}, with every executor direct so
+ * that each operation is over by the time the call that started it returns.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabPurchaseFlowTest {
+    static final int REQUEST_CODE = 10001;
+
+    /**
+     * Counts the purchase flows launched, without showing anything.
+     */
+    public static class RecordingActivity extends Activity {
+        int mLaunches = 0;
+
+        @Override
+        public void startIntentSenderForResult(IntentSender intent, int requestCode, Intent fillInIntent,
+                                               int flagsMask, int flagsValues, int extraFlags) {
+            ++mLaunches;
+        }
+    }
+
+    /**
+     * Keeps every purchase result it gets.
+     */
+    static class RecordingListener implements IabHelper.OnIabPurchaseFinishedListener {
+        final List<IabResult> mResults = new ArrayList<IabResult>();
+        final List<Purchase> mPurchases = new ArrayList<Purchase>();
+
+        @Override
+        public void onIabPurchaseFinished(IabResult result, Purchase info) {
+            mResults.add(result);
+            mPurchases.add(info);
+        }
+    }
+
+    FakeInAppBillingService mService;
+    IabHelper mHelper;
+    RecordingActivity mActivity;
+
+    @Before
+    public void setUp() {
+        mService = new FakeInAppBillingService();
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "sku.a", "$0.99", "A");
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "sku.b", "$0.99", "B");
+        mService.setBuyIntent(PendingIntent.getActivity(RuntimeEnvironment.application, 0, new Intent(), 0));
+
+        Executor direct = IabHelper.newDirectExecutor();
+        mHelper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+        mHelper.startSetup(mService, null);
+        mActivity = Robolectric.buildActivity(RecordingActivity.class).create().get();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.dispose();
+    }
+
+    // Returns the result Google Play sends back for a completed purchase of the given sku
+    Intent purchased(String sku, boolean tampered) throws Exception {
+        if (tampered) {
+            mService.addTamperedPurchase(IabHelper.ITEM_TYPE_INAPP, sku);
+        }
+        else {
+            mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, sku);
+        }
+        Bundle owned = mService.getPurchases(3, IabLoadDriver.PACKAGE_NAME, IabHelper.ITEM_TYPE_INAPP, null);
+        int last = owned.getStringArrayList(IabHelper.RESPONSE_INAPP_ITEM_LIST).size() - 1;
+        return new Intent()
+                .putExtra(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_OK)
+                .putExtra(IabHelper.RESPONSE_INAPP_PURCHASE_DATA,
+                        owned.getStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST).get(last))
+                .putExtra(IabHelper.RESPONSE_INAPP_SIGNATURE,
+                        owned.getStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST).get(last));
+    }
+
+    @Test
+    public void laterResultsAreDeliveredWhileFlowWaits() {
+        RecordingListener purchase = new RecordingListener();
+        mHelper.launchPurchaseFlow(mActivity, "sku.a", REQUEST_CODE, purchase);
+        assertEquals(1, mActivity.mLaunches);
+
+        // The activity result never comes
+        final List<IabResult> queried = new ArrayList<IabResult>();
+        mHelper.queryInventoryAsync(false, new IabHelper.QueryInventoryFinishedListener() {
+            @Override
+            public void onQueryInventoryFinished(IabResult result, Inventory inv) {
+                queried.add(result);
+            }
+        });
+        assertEquals(1, queried.size());
+        assertTrue(queried.get(0).isSuccess());
+        assertTrue(purchase.mResults.isEmpty());
+    }
+
+    @Test
+    public void secondLaunchIsRejectedWhileFlowIsLive() {
+        RecordingListener first = new RecordingListener();
+        mHelper.launchPurchaseFlow(mActivity, "sku.a", REQUEST_CODE, first);
+
+        // The user taps again while Google Play is coming up
+        RecordingListener second = new RecordingListener();
+        mHelper.launchPurchaseFlow(mActivity, "sku.b", REQUEST_CODE, second);
+        assertEquals(1, mActivity.mLaunches);
+        assertEquals(1, second.mResults.size());
+        assertEquals(IabHelper.IABHELPER_PURCHASE_IN_PROGRESS, second.mResults.get(0).getResponse());
+        assertTrue(first.mResults.isEmpty());
+
+        // The first flow still gets its result
+        Intent cancelled = new Intent().putExtra(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_USER_CANCELED);
+        assertTrue(mHelper.handleActivityResult(REQUEST_CODE, Activity.RESULT_CANCELED, cancelled));
+        assertEquals(IabHelper.IABHELPER_USER_CANCELLED, first.mResults.get(0).getResponse());
+        assertEquals(1, second.mResults.size());
+        assertNull(mHelper.mPurchaseTicket);
+    }
+
+    @Test
+    public void newFlowAbandonsFlowWhoseActivityIsGone() {
+        ActivityController<RecordingActivity> controller = Robolectric.buildActivity(RecordingActivity.class).create();
+        RecordingListener first = new RecordingListener();
+        mHelper.launchPurchaseFlow(controller.get(), "sku.a", REQUEST_CODE, first);
+
+        // The activity goes away without the result, and the user tries again from another one
+        controller.destroy();
+        RecordingListener second = new RecordingListener();
+        mHelper.launchPurchaseFlow(mActivity, "sku.b", REQUEST_CODE, second);
+        assertEquals(1, mActivity.mLaunches);
+        assertEquals(1, first.mResults.size());
+        assertEquals(IabHelper.IABHELPER_UNKNOWN_PURCHASE_RESPONSE, first.mResults.get(0).getResponse());
+        assertTrue(second.mResults.isEmpty());
+
+        // The result that does come belongs to the second flow
+        Intent cancelled = new Intent().putExtra(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_USER_CANCELED);
+        assertTrue(mHelper.handleActivityResult(REQUEST_CODE, Activity.RESULT_CANCELED, cancelled));
+        assertEquals(1, first.mResults.size());
+        assertEquals(IabHelper.IABHELPER_USER_CANCELLED, second.mResults.get(0).getResponse());
+        assertNull(mHelper.mPurchaseTicket);
+    }
+
+    @Test
+    public void sameSkuCanBeBoughtAgainAfterAbandoning() {
+        RecordingListener first = new RecordingListener();
+        mHelper.launchPurchaseFlow(mActivity, "sku.a", REQUEST_CODE, first);
+
+        // The activity is finishing, so its result won't be forwarded anymore
+        mActivity.finish();
+        RecordingActivity next = Robolectric.buildActivity(RecordingActivity.class).create().get();
+        RecordingListener second = new RecordingListener();
+        mHelper.launchPurchaseFlow(next, "sku.a", REQUEST_CODE, second);
+        assertEquals(1, next.mLaunches);
+        assertEquals(1, first.mResults.size());
+        assertTrue(second.mResults.isEmpty());
+    }
+
+    @Test
+    public void purchaseIsVerifiedOnTheUiThreadByDefault() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        mHelper.launchPurchaseFlow(mActivity, "sku.a", REQUEST_CODE, listener);
+        assertTrue(mHelper.handleActivityResult(REQUEST_CODE, Activity.RESULT_OK, purchased("sku.a", false)));
+
+        assertTrue(listener.mResults.get(0).isSuccess());
+        assertEquals("sku.a", listener.mPurchases.get(0).getSku());
+    }
+
+    @Test
+    public void backgroundVerificationReportsOnceVerified() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        mHelper.launchPurchaseFlow(mActivity, "sku.a", REQUEST_CODE, listener);
+        ManualExecutor background = new ManualExecutor();
+        mHelper.setBackgroundExecutor(background);
+        mHelper.setVerifyPurchasesInBackground(true);
+
+        assertTrue(mHelper.handleActivityResult(REQUEST_CODE, Activity.RESULT_OK, purchased("sku.a", false)));
+        assertTrue(listener.mResults.isEmpty());
+        assertEquals(1, background.pending());
+
+        background.runAll();
+        assertTrue(listener.mResults.get(0).isSuccess());
+        assertEquals("sku.a", listener.mPurchases.get(0).getSku());
+        assertNull(mHelper.mPurchaseTicket);
+    }
+
+    @Test
+    public void backgroundVerificationReportsForgedPurchase() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        mHelper.launchPurchaseFlow(mActivity, "sku.a", REQUEST_CODE, listener);
+        ManualExecutor background = new ManualExecutor();
+        mHelper.setBackgroundExecutor(background);
+        mHelper.setVerifyPurchasesInBackground(true);
+
+        mHelper.handleActivityResult(REQUEST_CODE, Activity.RESULT_OK, purchased("sku.a", true));
+        background.runAll();
+        assertEquals(IabHelper.IABHELPER_VERIFICATION_FAILED, listener.mResults.get(0).getResponse());
+    }
+
+    @Test
+    public void cancellationIsReportedStraightAwayInBackgroundMode() {
+        RecordingListener listener = new RecordingListener();
+        mHelper.launchPurchaseFlow(mActivity, "sku.a", REQUEST_CODE, listener);
+        ManualExecutor background = new ManualExecutor();
+        mHelper.setBackgroundExecutor(background);
+        mHelper.setVerifyPurchasesInBackground(true);
+
+        Intent cancelled = new Intent().putExtra(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_USER_CANCELED);
+        mHelper.handleActivityResult(REQUEST_CODE, Activity.RESULT_CANCELED, cancelled);
+        assertEquals(IabHelper.IABHELPER_USER_CANCELLED, listener.mResults.get(0).getResponse());
+        assertEquals(0, background.pending());
+    }
+
+    @Test
+    public void consumptionWaitsForTheVerification() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        mHelper.launchPurchaseFlow(mActivity, "sku.a", REQUEST_CODE, listener);
+        ManualExecutor background = new ManualExecutor();
+        mHelper.setBackgroundExecutor(background);
+        mHelper.setVerifyPurchasesInBackground(true);
+        mHelper.handleActivityResult(REQUEST_CODE, Activity.RESULT_OK, purchased("sku.a", false));
+
+        // Consuming the sku has to wait until the purchase flow lets go of it
+        Purchase bought = new Purchase(IabHelper.ITEM_TYPE_INAPP,
+                mService.getPurchases(3, IabLoadDriver.PACKAGE_NAME, IabHelper.ITEM_TYPE_INAPP, null)
+                        .getStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST).get(0), "");
+        final List<IabResult> consumed = new ArrayList<IabResult>();
+        mHelper.consumeAsync(bought, new IabHelper.OnConsumeFinishedListener() {
+            @Override
+            public void onConsumeFinished(Purchase purchase, IabResult result) {
+                // The purchase was reported first
+                assertEquals(1, listener.mResults.size());
+                consumed.add(result);
+            }
+        });
+        assertEquals(1, background.pending());
+
+        background.runNext();
+        assertEquals(1, listener.mResults.size());
+        assertTrue(consumed.isEmpty());
+        assertEquals(1, background.pending());
+
+        background.runAll();
+        assertTrue(consumed.get(0).isSuccess());
+        assertEquals(0, mService.getPurchaseCount(IabHelper.ITEM_TYPE_INAPP));
+    }
+}
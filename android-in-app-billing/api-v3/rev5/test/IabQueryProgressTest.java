@@ -0,0 +1,168 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Inventory batches streamed to a {@link IabHelper.QueryInventoryProgressListener} while
+ * {@link IabHelper#queryInventoryAsync} runs.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabQueryProgressTest {
+    /**
+     * Writes down what it's told, in order, as "purchases:<type>:<count>", "details:<type>:<count>"
+     * and "finished:<response>".
+     */
+    static class RecordingListener implements IabHelper.QueryInventoryProgressListener {
+        final List<String> mEvents = new ArrayList<String>();
+        int mPurchases = 0;
+        Inventory mInventory;
+
+        @Override
+        public void onPurchasesLoaded(String itemType, List<Purchase> purchases) {
+            mEvents.add("purchases:" + itemType + ":" + purchases.size());
+            mPurchases += purchases.size();
+        }
+
+        @Override
+        public void onSkuDetailsLoaded(String itemType, List<SkuDetails> skuDetails) {
+            mEvents.add("details:" + itemType + ":" + skuDetails.size());
+        }
+
+        @Override
+        public void onQueryInventoryFinished(IabResult result, Inventory inv) {
+            mEvents.add("finished:" + result.getResponse());
+            mInventory = inv;
+        }
+    }
+
+    FakeInAppBillingService mService;
+    IabHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mService = new FakeInAppBillingService();
+        mService.setPageSize(10);
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 25);
+        mService.addPurchase(IabHelper.ITEM_TYPE_SUBS, "monthly");
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas.0", "$0.99", "Gas");
+        mService.addProduct(IabHelper.ITEM_TYPE_SUBS, "monthly", "$1.99", "Monthly");
+        Executor direct = IabHelper.newDirectExecutor();
+        mHelper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+        mHelper.startSetup(mService, null);
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.dispose();
+        InventoryCache.sShared.clear();
+    }
+
+    @Test
+    public void batchesArriveAheadOfTheResult() {
+        RecordingListener listener = new RecordingListener();
+        mHelper.queryInventoryAsync(true, null, listener);
+
+        assertEquals(Arrays.asList(
+                "purchases:inapp:10", "purchases:inapp:10", "purchases:inapp:5", "details:inapp:1",
+                "purchases:subs:1", "details:subs:1",
+                "finished:0"), listener.mEvents);
+    }
+
+    @Test
+    public void batchesGoThroughTheCallbackExecutor() {
+        ManualExecutor callback = new ManualExecutor();
+        mHelper.setCallbackExecutor(callback);
+        RecordingListener listener = new RecordingListener();
+        mHelper.queryInventoryAsync(false, null, listener);
+        assertTrue(listener.mEvents.isEmpty());
+
+        callback.runAll();
+        assertEquals(5, listener.mEvents.size());
+        assertEquals("finished:0", listener.mEvents.get(4));
+    }
+
+    @Test
+    public void batchesAfterDisposeAreDropped() {
+        ManualExecutor callback = new ManualExecutor();
+        mHelper.setCallbackExecutor(callback);
+        RecordingListener listener = new RecordingListener();
+        mHelper.queryInventoryAsync(false, null, listener);
+        mHelper.dispose();
+
+        callback.runAll();
+        assertTrue(listener.mEvents.isEmpty());
+    }
+
+    @Test
+    public void failedQueryKeepsTheBatchesSoFar() {
+        mHelper.setBackgroundExecutor(new ManualExecutor() {
+            @Override
+            public synchronized void execute(Runnable r) {
+                super.execute(r);
+                // Run the query itself, but leave the next page for the query to join
+                if (mExecuted == 1) runNext();
+            }
+        });
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onPurchasesLoaded(String itemType, List<Purchase> purchases) {
+                super.onPurchasesLoaded(itemType, purchases);
+                // The second page hasn't been requested yet
+                mService.failCalls(IabMetrics.CALL_GET_PURCHASES, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 1);
+            }
+        };
+        mHelper.queryInventoryAsync(false, null, listener);
+
+        assertEquals(Arrays.asList("purchases:inapp:10", "finished:" + IabHelper.BILLING_RESPONSE_RESULT_ERROR),
+                listener.mEvents);
+    }
+
+    @Test
+    public void everyCallerOfASharedQueryGetsEveryBatch() {
+        ManualExecutor background = new ManualExecutor();
+        mHelper.setBackgroundExecutor(background);
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        mHelper.queryInventoryAsync(false, null, first);
+        mHelper.queryInventoryAsync(false, null, second);
+        background.runAll();
+
+        assertEquals(4, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+        assertEquals(first.mEvents, second.mEvents);
+        assertEquals(26, second.mPurchases);
+    }
+
+    @Test
+    public void cachedInventoryIsReportedAsOneBatchPerType() {
+        Executor direct = IabHelper.newDirectExecutor();
+        IabHelper helper = new IabHelper(RuntimeEnvironment.application, mService.getPublicKey(), direct, direct);
+        try {
+            helper.startSetup(mService, null);
+            helper.enableInventoryCache(IabHelper.DEFAULT_INVENTORY_CACHE_TTL);
+            helper.queryInventoryAsync(true, null, new RecordingListener());
+            RecordingListener listener = new RecordingListener();
+            helper.queryInventoryAsync(true, null, listener);
+
+            assertEquals(Arrays.asList(
+                    "purchases:inapp:25", "details:inapp:1", "purchases:subs:1", "details:subs:1",
+                    "finished:0"), listener.mEvents);
+        }
+        finally {
+            helper.dispose();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * The shared {@link IabConnection} losing the billing service and getting it back, with a
+ * {@link FakeInAppBillingService} bound through {@link InstalledBillingService}. The test runs
+ * on the main thread, and the rebind delays are run down on Robolectric's main looper clock.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabReconnectTest {
+    FakeInAppBillingService mService;
+    IabHelper mFirst;
+    IabHelper mSecond;
+    IabConnection mConnection;
+
+    @Before
+    public void setUp() {
+        mService = new FakeInAppBillingService();
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+        InstalledBillingService.install(mService);
+        Executor direct = IabHelper.newDirectExecutor();
+        mFirst = new IabHelper(RuntimeEnvironment.application, mService.getPublicKey(), direct, direct);
+        mFirst.startSetup(null);
+        mSecond = new IabHelper(RuntimeEnvironment.application, mService.getPublicKey(), direct, direct);
+        mSecond.startSetup(null);
+        mConnection = mFirst.mConnection;
+        InstalledBillingService.takeBindCount();
+    }
+
+    @After
+    public void tearDown() {
+        mFirst.dispose();
+        mSecond.dispose();
+        InstalledBillingService.reset();
+    }
+
+    // Has the system report the service gone, as it does when Google Play is updated
+    void serviceDisconnected() {
+        mConnection.mServiceConn.onServiceDisconnected(InstalledBillingService.COMPONENT);
+    }
+
+    @Test
+    public void helpersAreToldTheServiceIsGone() {
+        serviceDisconnected();
+
+        assertEquals(IabConnection.STATE_CONNECTING, mConnection.mState);
+        assertNull(mFirst.mService);
+        assertNull(mSecond.mService);
+        assertTrue(mFirst.mSetupDone);
+    }
+
+    @Test
+    public void serviceComingBackByItselfIsProbedOnceForAll() {
+        int probes = mService.getCallCount(IabMetrics.CALL_IS_BILLING_SUPPORTED);
+        serviceDisconnected();
+        mConnection.mServiceConn.onServiceConnected(InstalledBillingService.COMPONENT, mService.asBinder());
+
+        assertEquals(IabConnection.STATE_CONNECTED, mConnection.mState);
+        assertSame(mService, mFirst.mService);
+        assertSame(mService, mSecond.mService);
+        assertEquals(probes + 2, mService.getCallCount(IabMetrics.CALL_IS_BILLING_SUPPORTED));
+
+        // So nothing is rebound later
+        ShadowLooper.idleMainLooper(IabConnection.REBIND_MAX_DELAY_MILLIS);
+        assertEquals(0, InstalledBillingService.takeBindCount());
+    }
+
+    @Test
+    public void serviceThatDoesntComeBackIsBoundAgain() {
+        serviceDisconnected();
+        ShadowLooper.idleMainLooper(IabConnection.REBIND_INITIAL_DELAY_MILLIS - 1);
+        assertEquals(0, InstalledBillingService.takeBindCount());
+        assertNull(mFirst.mService);
+
+        ShadowLooper.idleMainLooper(1);
+        assertEquals(1, InstalledBillingService.takeBindCount());
+        assertEquals(IabConnection.STATE_CONNECTED, mConnection.mState);
+        assertSame(mService, mFirst.mService);
+        assertEquals(IabConnection.REBIND_INITIAL_DELAY_MILLIS, mConnection.mRebindDelay);
+    }
+
+    @Test
+    public void rebindingBacksOffUpToTheMaximum() {
+        InstalledBillingService.refuseBinding();
+        serviceDisconnected();
+
+        List<Long> delays = new ArrayList<Long>();
+        long waited = IabConnection.REBIND_INITIAL_DELAY_MILLIS;
+        for (int i = 0; i < 8; ++i) {
+            ShadowLooper.idleMainLooper(waited);
+            waited = mConnection.mRebindDelay;
+            delays.add(waited);
+        }
+
+        List<Long> expected = new ArrayList<Long>();
+        for (long delay = 2000; delay < IabConnection.REBIND_MAX_DELAY_MILLIS; delay *= 2) {
+            expected.add(delay);
+        }
+        while (expected.size() < 8) {
+            expected.add(IabConnection.REBIND_MAX_DELAY_MILLIS);
+        }
+        assertEquals(expected, delays);
+        assertEquals(IabConnection.STATE_CONNECTING, mConnection.mState);
+    }
+
+    @Test
+    public void lastHelperGoingStopsTheRebinding() {
+        serviceDisconnected();
+        mFirst.dispose();
+        mSecond.dispose();
+
+        ShadowLooper.idleMainLooper(IabConnection.REBIND_MAX_DELAY_MILLIS);
+        assertEquals(0, InstalledBillingService.takeBindCount());
+        assertEquals(IabConnection.STATE_UNBOUND, mConnection.mState);
+    }
+
+    @Test
+    public void mainThreadWorkIsHeldUntilTheServiceIsBack() {
+        // Writes down whether the helper had the service when the task ran
+        final List<Boolean> ran = new ArrayList<Boolean>();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                ran.add(mFirst.mService != null);
+            }
+        };
+        assertFalse(mConnection.runWhenConnected(task));
+
+        serviceDisconnected();
+        assertTrue(mConnection.runWhenConnected(task));
+        assertTrue(ran.isEmpty());
+
+        // It runs after the helpers have been given the service
+        mConnection.mServiceConn.onServiceConnected(InstalledBillingService.COMPONENT, mService.asBinder());
+        assertEquals(1, ran.size());
+        assertTrue(ran.get(0));
+    }
+
+    @Test
+    public void callThatFindsTheServiceDeadWaitsForItOnTheBackgroundThread() throws Exception {
+        mService.throwOnCalls(IabMetrics.CALL_GET_PURCHASES, 1);
+        final AtomicReference<Object> outcome = new AtomicReference<Object>();
+        Thread query = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    outcome.set(mFirst.queryInventory(false, null));
+                }
+                catch (IabException e) {
+                    outcome.set(e);
+                }
+            }
+        });
+        query.start();
+
+        // The background thread holds further calls, but only tells the helpers on the main thread
+        while (mConnection.mState != IabConnection.STATE_CONNECTING) {
+            assertTrue(query.isAlive());
+            Thread.sleep(5);
+        }
+        assertNotNull(mFirst.mService);
+        ShadowLooper.idleMainLooper();
+        assertNull(mFirst.mService);
+
+        mConnection.mServiceConn.onServiceConnected(InstalledBillingService.COMPONENT, mService.asBinder());
+        query.join(10000);
+        assertTrue(((Inventory) outcome.get()).hasPurchase("gas"));
+    }
+}
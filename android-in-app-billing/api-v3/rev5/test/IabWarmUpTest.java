@@ -0,0 +1,163 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * {@link IabHelper#warmUp} against a {@link FakeInAppBillingService} bound through
+ * {@link InstalledBillingService}. The warm-up helper uses the shared default pool, which is
+ * swapped for a {@link ManualExecutor} so its inventory query runs when the test says so.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IabWarmUpTest {
+    /**
+     * Keeps the setup results it gets.
+     */
+    static class RecordingListener implements IabHelper.OnIabSetupFinishedListener {
+        final List<IabResult> mResults = new ArrayList<IabResult>();
+
+        @Override
+        public void onIabSetupFinished(IabResult result) {
+            mResults.add(result);
+        }
+    }
+
+    FakeInAppBillingService mService;
+    ManualExecutor mPool;
+    Executor mSavedPool;
+
+    @Before
+    public void setUp() {
+        mService = new FakeInAppBillingService();
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas", "$0.99", "Gas");
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "premium", "$4.99", "Premium");
+        InstalledBillingService.install(mService);
+        mPool = new ManualExecutor();
+        synchronized (IabHelper.class) {
+            mSavedPool = IabHelper.sDefaultExecutor;
+            IabHelper.sDefaultExecutor = mPool;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        synchronized (IabHelper.class) {
+            if (IabHelper.sWarmUpHelper != null) IabHelper.sWarmUpHelper.dispose();
+            IabHelper.sWarmUpHelper = null;
+            IabHelper.sWarmUp = null;
+            IabHelper.sDefaultExecutor = mSavedPool;
+        }
+        InstalledBillingService.reset();
+        InventoryCache.sShared.clear();
+    }
+
+    // Returns a helper with the inventory cache on, like the app's screens would make
+    IabHelper newHelper() {
+        Executor direct = IabHelper.newDirectExecutor();
+        IabHelper helper = new IabHelper(RuntimeEnvironment.application, mService.getPublicKey(), direct, direct);
+        helper.enableInventoryCache(IabHelper.DEFAULT_INVENTORY_CACHE_TTL);
+        return helper;
+    }
+
+    @Test
+    public void warmUpSetsUpBillingThenFillsTheCache() throws Exception {
+        IabFuture<IabResult> warmUp = IabHelper.warmUp(RuntimeEnvironment.application, mService.getPublicKey(),
+                Arrays.asList("premium"));
+        assertTrue(warmUp.get().isSuccess());
+
+        // The inventory is queried in the background once setup is done
+        IabHelper helper = newHelper();
+        try {
+            assertNull(helper.getCachedInventory());
+            assertEquals(0, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+            mPool.runAll();
+
+            Inventory inv = helper.getCachedInventory();
+            assertNotNull(inv);
+            assertTrue(inv.hasPurchase("gas"));
+            assertTrue(inv.hasDetails("gas"));
+            assertTrue(inv.hasDetails("premium"));
+
+            // Which answers a screen's query for the same skus without the service
+            int calls = mService.getCallCount(IabMetrics.CALL_GET_SKU_DETAILS);
+            assertTrue(helper.setupAsync().get().isSuccess());
+            helper.queryInventoryFuture(true, Arrays.asList("premium")).get();
+            assertEquals(2, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+            assertEquals(calls, mService.getCallCount(IabMetrics.CALL_GET_SKU_DETAILS));
+        }
+        finally {
+            helper.dispose();
+        }
+    }
+
+    @Test
+    public void laterCallsGetTheSameHandle() {
+        IabFuture<IabResult> warmUp = IabHelper.warmUp(RuntimeEnvironment.application, mService.getPublicKey());
+        IabHelper helper = IabHelper.sWarmUpHelper;
+
+        assertSame(warmUp, IabHelper.warmUp(RuntimeEnvironment.application, mService.getPublicKey()));
+        assertSame(helper, IabHelper.sWarmUpHelper);
+        assertEquals(1, InstalledBillingService.takeBindCount());
+    }
+
+    @Test
+    public void helpersAfterTheWarmUpAreSetUpStraightAway() {
+        IabHelper.warmUp(RuntimeEnvironment.application, mService.getPublicKey());
+        int probes = mService.getCallCount(IabMetrics.CALL_IS_BILLING_SUPPORTED);
+
+        IabHelper helper = newHelper();
+        try {
+            RecordingListener listener = new RecordingListener();
+            helper.startSetup(listener);
+
+            assertTrue(listener.mResults.get(0).isSuccess());
+            assertEquals(probes, mService.getCallCount(IabMetrics.CALL_IS_BILLING_SUPPORTED));
+            assertEquals(1, InstalledBillingService.takeBindCount());
+
+            // Disposing a screen's helper leaves the warm-up's connection up
+            helper.dispose();
+            assertTrue(InstalledBillingService.isBound());
+        }
+        finally {
+            if (!helper.mDisposed) helper.dispose();
+        }
+    }
+
+    @Test
+    public void failedWarmUpIsTriedAgain() throws Exception {
+        mService.failCalls(IabMetrics.CALL_IS_BILLING_SUPPORTED, IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, 1);
+        IabFuture<IabResult> failed = IabHelper.warmUp(RuntimeEnvironment.application, mService.getPublicKey());
+        assertTrue(failed.isDone());
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, failed.mFailure.getResult().getResponse());
+        IabHelper failedHelper = IabHelper.sWarmUpHelper;
+
+        IabFuture<IabResult> retried = IabHelper.warmUp(RuntimeEnvironment.application, mService.getPublicKey());
+        assertNotSame(failed, retried);
+        assertTrue(retried.get().isSuccess());
+        assertTrue(failedHelper.mDisposed);
+        assertFalse(IabHelper.sWarmUpHelper.mDisposed);
+
+        // Only the second attempt queries the inventory, once per item type
+        mPool.runAll();
+        assertEquals(2, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowApplication;
+
+import static org.robolectric.Shadows.shadowOf;
+
+
+/**
+ * Puts a {@link FakeInAppBillingService} where Robolectric's application looks for the billing
+ * service, so helpers can be set up the way the app sets them up: through {@link IabConnection},
+ * with {@link IabHelper#startSetup(IabHelper.OnIabSetupFinishedListener)}.
+ *
+ * Binding connects straight away (on the main thread), and so does every later rebind. The
+ * connection is shared by the whole process, so call {@link #reset} after each test.
+ */
+class InstalledBillingService {
+    static final ComponentName COMPONENT = new ComponentName("com.android.vending",
+            "com.google.android.finsky.billing.iab.InAppBillingService");
+
+    private InstalledBillingService() {
+    }
+
+    /** Makes the billing intent resolve and bind to the given service. */
+    static void install(FakeInAppBillingService service) {
+        ResolveInfo info = new ResolveInfo();
+        info.serviceInfo = new ServiceInfo();
+        info.serviceInfo.packageName = COMPONENT.getPackageName();
+        info.serviceInfo.name = COMPONENT.getClassName();
+        shadowOf(RuntimeEnvironment.application.getPackageManager())
+                .addResolveInfoForIntent(IabConnection.newBindIntent(), info);
+        ShadowApplication.getInstance().setComponentNameAndServiceForBindService(COMPONENT, service.asBinder());
+    }
+
+    /** Makes binding to the billing service fail from now on, as if it had been uninstalled. */
+    static void refuseBinding() {
+        ShadowApplication.getInstance().declareActionUnbindable(IabConnection.newBindIntent().getAction());
+    }
+
+    /** Returns how many times the billing service was bound to since the last call. */
+    static int takeBindCount() {
+        int count = 0;
+        while (ShadowApplication.getInstance().getNextStartedService() != null) {
+            ++count;
+        }
+        return count;
+    }
+
+    /** Returns whether the billing service is bound right now. */
+    static boolean isBound() {
+        return !ShadowApplication.getInstance().getBoundServiceConnections().isEmpty();
+    }
+
+    /** Forgets the process-wide connection, so the next test binds afresh. */
+    static void reset() {
+        IabConnection.sShared = null;
+    }
+}
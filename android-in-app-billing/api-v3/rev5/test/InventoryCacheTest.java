@@ -0,0 +1,215 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * The inventory snapshot on disk, and the sealed verification results stored with it, using
+ * purchases signed by a {@link FakeInAppBillingService}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class InventoryCacheTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    FakeInAppBillingService mService;
+    VerificationSeal mSeal;
+    File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mService = new FakeInAppBillingService();
+        // The keystore isn't there under Robolectric, so seal with a key of our own
+        mSeal = new VerificationSeal(new SecretKeySpec(new byte[32], VerificationSeal.MAC_ALGORITHM));
+        mFile = new File(mFolder.getRoot(), "inventory");
+    }
+
+    @After
+    public void tearDown() {
+        // Helpers register the cache of their files dir for the whole process
+        InventoryCache.sShared.clear();
+    }
+
+    // Returns an inventory of the purchases the service owns, as it hands them out
+    Inventory ownedInventory() throws Exception {
+        Bundle owned = mService.getPurchases(3, IabLoadDriver.PACKAGE_NAME, IabHelper.ITEM_TYPE_INAPP, null);
+        List<String> data = owned.getStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST);
+        List<String> signatures = owned.getStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST);
+        Inventory inv = new Inventory();
+        for (int i = 0; i < data.size(); ++i) {
+            inv.addPurchase(new Purchase(IabHelper.ITEM_TYPE_INAPP, data.get(i), signatures.get(i)));
+        }
+        return inv;
+    }
+
+    // Returns a cache of the file that stores verification results under our seal
+    InventoryCache newCache(PurchaseVerifier verifier) {
+        InventoryCache cache = new InventoryCache(mFile, verifier);
+        cache.mSeal = mSeal;
+        cache.setPersistVerifications(true);
+        return cache;
+    }
+
+    @Test
+    public void snapshotSurvivesARestart() throws Exception {
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "product.", 3);
+        new InventoryCache(mFile, new PurchaseVerifier(mService.getPublicKey())).put(ownedInventory(), false);
+
+        Inventory cached = new InventoryCache(mFile, new PurchaseVerifier(mService.getPublicKey())).get();
+        assertNotNull(cached);
+        assertEquals(3, cached.getAllPurchases().size());
+        assertTrue(cached.hasPurchase("product.1"));
+    }
+
+    @Test
+    public void snapshotIsFreshUntilItsTtlOrInvalidation() throws Exception {
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "product");
+        InventoryCache cache = new InventoryCache(mFile, new PurchaseVerifier(mService.getPublicKey()));
+        assertFalse(cache.isFresh(60000, false, null));
+
+        cache.put(ownedInventory(), false);
+        assertTrue(cache.isFresh(60000, false, null));
+        assertFalse(cache.isFresh(0, false, null));
+        // Queried without details, so it can't stand in for a query with them
+        assertFalse(cache.isFresh(60000, true, null));
+
+        cache.invalidate();
+        assertFalse(cache.isFresh(60000, false, null));
+        // Still there for startup
+        assertNotNull(new InventoryCache(mFile, new PurchaseVerifier(mService.getPublicKey())).get());
+    }
+
+    @Test
+    public void snapshotWithDetailsCoversOnlyThoseSkus() throws Exception {
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "product");
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "product", "$0.99", "Product");
+        Inventory inv = ownedInventory();
+        inv.addSkuDetails(new SkuDetails(IabHelper.ITEM_TYPE_INAPP,
+                "{\"productId\":\"product\",\"type\":\"inapp\",\"price\":\"$0.99\"}"));
+        InventoryCache cache = new InventoryCache(mFile, new PurchaseVerifier(mService.getPublicKey()));
+        cache.put(inv, true);
+
+        assertTrue(cache.isFresh(60000, true, null));
+        assertTrue(cache.isFresh(60000, true, Arrays.asList("product")));
+        assertFalse(cache.isFresh(60000, true, Arrays.asList("other")));
+    }
+
+    @Test
+    public void helperServesQueriesFromTheCacheWithinItsTtl() throws Exception {
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "product.", 2);
+        Executor direct = IabHelper.newDirectExecutor();
+        IabHelper helper = new IabHelper(RuntimeEnvironment.application, mService.getPublicKey(), direct, direct);
+        helper.startSetup(mService, null);
+        helper.enableInventoryCache(IabHelper.DEFAULT_INVENTORY_CACHE_TTL);
+        helper.getCachedInventory();
+        final List<Inventory> results = new ArrayList<Inventory>();
+        IabHelper.QueryInventoryFinishedListener listener = new IabHelper.QueryInventoryFinishedListener() {
+            @Override
+            public void onQueryInventoryFinished(IabResult result, Inventory inv) {
+                results.add(inv);
+            }
+        };
+
+        helper.queryInventoryAsync(false, listener);
+        int calls = mService.getCallCount(IabMetrics.CALL_GET_PURCHASES);
+        helper.queryInventoryAsync(false, listener);
+        assertEquals(calls, mService.getCallCount(IabMetrics.CALL_GET_PURCHASES));
+        assertEquals(2, results.get(1).getAllPurchases().size());
+        assertNotNull(helper.getCachedInventory());
+
+        // Consuming changes what's owned, so the next query asks the service again
+        helper.consume(results.get(1).getPurchase("product.0"));
+        helper.queryInventoryAsync(false, listener);
+        assertTrue(mService.getCallCount(IabMetrics.CALL_GET_PURCHASES) > calls);
+        assertEquals(1, results.get(2).getAllPurchases().size());
+        helper.dispose();
+    }
+
+    @Test
+    public void tamperedSnapshotIsDiscarded() throws Exception {
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "product");
+        mService.addTamperedPurchase(IabHelper.ITEM_TYPE_INAPP, "forged");
+        new InventoryCache(mFile, new PurchaseVerifier(mService.getPublicKey())).put(ownedInventory(), false);
+
+        assertNull(new InventoryCache(mFile, new PurchaseVerifier(mService.getPublicKey())).get());
+    }
+
+    @Test
+    public void sealedVerificationsSkipTheRsaCheck() throws Exception {
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "product.", 3);
+        PurchaseVerifier verifier = new PurchaseVerifier(mService.getPublicKey());
+        Inventory inv = ownedInventory();
+        for (Purchase p : inv.getAllPurchases()) {
+            assertTrue(verifier.verify(p.getOriginalJson(), p.getSignature()));
+        }
+        newCache(verifier).put(inv, false);
+
+        CountingVerifier restarted = new CountingVerifier(mService.getPublicKey());
+        assertEquals(3, newCache(restarted).get().getAllPurchases().size());
+        assertEquals(0, restarted.mChecks.get());
+    }
+
+    @Test
+    public void forgedVerificationsDontVouchForAPurchase() throws Exception {
+        mService.addTamperedPurchase(IabHelper.ITEM_TYPE_INAPP, "forged");
+        Purchase forged = ownedInventory().getPurchase("forged");
+        PurchaseVerifier verifier = new PurchaseVerifier(mService.getPublicKey());
+        List<String> keys = new ArrayList<String>();
+        keys.add(verifier.memoKey(forged.getOriginalJson(), forged.getSignature()));
+
+        // A file claiming the forged purchase was verified, under a seal made without our key
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        out.writeInt(InventoryCache.FILE_MAGIC);
+        out.writeInt(InventoryCache.FILE_VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeBoolean(false);
+        out.writeInt(keys.size());
+        out.writeUTF(keys.get(0));
+        byte[] seal = new VerificationSeal(new SecretKeySpec(new byte[] { 1 }, VerificationSeal.MAC_ALGORITHM))
+                .seal(verifier.mPublicKey.getEncoded(), keys);
+        out.writeInt(seal.length);
+        out.write(seal);
+        out.writeInt(1);
+        out.writeUTF(IabHelper.ITEM_TYPE_INAPP);
+        out.writeUTF(forged.getOriginalJson());
+        out.writeUTF(forged.getSignature());
+        out.writeInt(0);
+        out.close();
+
+        CountingVerifier restarted = new CountingVerifier(mService.getPublicKey());
+        assertNull(newCache(restarted).get());
+        assertEquals(1, restarted.mChecks.get());
+    }
+
+    @Test
+    public void verificationsArentStoredWithoutAKeystoreKey() {
+        InventoryCache cache = new InventoryCache(mFile, new PurchaseVerifier(mService.getPublicKey()));
+        cache.setPersistVerifications(true);
+        assertFalse(cache.mPersistVerifications);
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * {@link InventoryDelta} on its own, and the entitlement changes {@link IabHelper} reports with
+ * it against a {@link FakeInAppBillingService}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class InventoryDeltaTest {
+    /**
+     * Keeps every change it is told about.
+     */
+    static class RecordingListener implements IabHelper.OnEntitlementsChangedListener {
+        final List<InventoryDelta> mDeltas = new ArrayList<InventoryDelta>();
+        Inventory mInventory;
+
+        @Override
+        public void onEntitlementsChanged(InventoryDelta delta, Inventory inventory) {
+            mDeltas.add(delta);
+            mInventory = inventory;
+        }
+    }
+
+    FakeInAppBillingService mService;
+    IabHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mService = new FakeInAppBillingService();
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "gas.", 3);
+        mService.addPurchase(IabHelper.ITEM_TYPE_SUBS, "monthly");
+        Executor direct = IabHelper.newDirectExecutor();
+        mHelper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+        mHelper.startSetup(mService, null);
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.dispose();
+    }
+
+    // Returns an unsigned purchase, which is all InventoryDelta looks at
+    static Purchase purchase(String sku, String token, int purchaseState) throws JSONException {
+        return new Purchase(IabHelper.ITEM_TYPE_INAPP, "{\"orderId\":\"order." + token + "\","
+                + "\"productId\":\"" + sku + "\",\"purchaseState\":" + purchaseState + ","
+                + "\"purchaseToken\":\"" + token + "\"}", "");
+    }
+
+    static Inventory inventoryOf(Purchase... purchases) {
+        Inventory inv = new Inventory();
+        for (Purchase p : purchases) {
+            inv.addPurchase(p);
+        }
+        return inv;
+    }
+
+    @Test
+    public void everythingIsAddedToNothing() throws JSONException {
+        InventoryDelta delta = InventoryDelta.between(null,
+                inventoryOf(purchase("gas", "1", 0), purchase("premium", "2", 0)));
+
+        assertEquals(2, delta.getAdded().size());
+        assertTrue(delta.getRemoved().isEmpty());
+        assertTrue(delta.getChanged().isEmpty());
+    }
+
+    @Test
+    public void purchasesAreComparedBySku() throws JSONException {
+        Inventory before = inventoryOf(purchase("gas", "1", 0), purchase("premium", "2", 0),
+                purchase("monthly", "3", 0), purchase("yearly", "4", 0));
+        Inventory after = inventoryOf(purchase("premium", "2", 0), purchase("monthly", "5", 0),
+                purchase("yearly", "4", 1), purchase("infinite_gas", "6", 0));
+        InventoryDelta delta = InventoryDelta.between(before, after);
+
+        assertEquals("infinite_gas", delta.getAdded().get(0).getSku());
+        assertEquals("gas", delta.getRemoved().get(0).getSku());
+        assertEquals(2, delta.getChanged().size());
+        assertTrue(delta.affectsSku("monthly"));
+        assertTrue(delta.affectsSku("yearly"));
+        assertFalse(delta.affectsSku("premium"));
+        assertEquals(1, delta.getAdded().size());
+        assertEquals(1, delta.getRemoved().size());
+    }
+
+    @Test
+    public void samePurchasesMakeAnEmptyDelta() throws JSONException {
+        InventoryDelta delta = InventoryDelta.between(inventoryOf(purchase("gas", "1", 0)),
+                inventoryOf(purchase("gas", "1", 0)));
+        assertTrue(delta.isEmpty());
+        assertFalse(delta.affectsSku("gas"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void deltaCantBeChanged() throws JSONException {
+        InventoryDelta.between(null, inventoryOf(purchase("gas", "1", 0))).getAdded().clear();
+    }
+
+    @Test
+    public void firstInventoryReportsEverythingOwned() throws IabException {
+        RecordingListener listener = new RecordingListener();
+        mHelper.setOnEntitlementsChangedListener(listener);
+        mHelper.queryInventory(false, null);
+
+        assertEquals(1, listener.mDeltas.size());
+        assertEquals(4, listener.mDeltas.get(0).getAdded().size());
+        assertEquals(4, listener.mInventory.getAllPurchases().size());
+    }
+
+    @Test
+    public void unchangedInventoryIsntReported() throws IabException {
+        RecordingListener listener = new RecordingListener();
+        mHelper.setOnEntitlementsChangedListener(listener);
+        mHelper.queryInventory(false, null);
+        mHelper.queryInventory(false, null);
+        mHelper.queryInventory(true, null);
+
+        assertEquals(1, listener.mDeltas.size());
+    }
+
+    @Test
+    public void consumptionAndNewPurchasesAreReported() throws IabException {
+        RecordingListener listener = new RecordingListener();
+        mHelper.setOnEntitlementsChangedListener(listener);
+        Inventory inv = mHelper.queryInventory(false, null);
+
+        mHelper.consume(inv.getPurchase("gas.0"));
+        assertEquals(2, listener.mDeltas.size());
+        assertEquals("gas.0", listener.mDeltas.get(1).getRemoved().get(0).getSku());
+        assertFalse(listener.mInventory.hasPurchase("gas.0"));
+
+        // The consumption was already applied, so the next query only finds the new purchase
+        mService.addPurchase(IabHelper.ITEM_TYPE_INAPP, "premium");
+        mHelper.queryInventory(false, null);
+        assertEquals(3, listener.mDeltas.size());
+        InventoryDelta delta = listener.mDeltas.get(2);
+        assertEquals("premium", delta.getAdded().get(0).getSku());
+        assertTrue(delta.getRemoved().isEmpty());
+    }
+
+    @Test
+    public void changesGoThroughTheCallbackExecutor() throws IabException {
+        ManualExecutor callback = new ManualExecutor();
+        mHelper.setCallbackExecutor(callback);
+        RecordingListener listener = new RecordingListener();
+        mHelper.setOnEntitlementsChangedListener(listener);
+        mHelper.queryInventory(false, null);
+        assertTrue(listener.mDeltas.isEmpty());
+
+        callback.runAll();
+        assertEquals(1, listener.mDeltas.size());
+    }
+
+    @Test
+    public void removedListenerIsntNotified() throws IabException {
+        RecordingListener listener = new RecordingListener();
+        mHelper.setOnEntitlementsChangedListener(listener);
+        mHelper.setOnEntitlementsChangedListener(null);
+        mHelper.queryInventory(false, null);
+
+        assertTrue(listener.mDeltas.isEmpty());
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.android.trivialdrivesample.util;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+
+/**
+ * An executor that only runs its tasks when told to, on the thread that tells it, so a test
+ * can look at the state in between.
+ */
+class ManualExecutor implements Executor {
+    // Tasks not run yet, oldest first; guarded by this
+    final LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+
+    // How many tasks were handed to it
+    int mExecuted = 0;
+
+    @Override
+    public synchronized void execute(Runnable r) {
+        mTasks.add(r);
+        ++mExecuted;
+    }
+
+    /** Returns how many tasks are waiting to run. */
+    synchronized int pending() {
+        return mTasks.size();
+    }
+
+    /** Runs the oldest task, and returns whether there was one. */
+    boolean runNext() {
+        Runnable r;
+        synchronized (this) {
+            r = mTasks.poll();
+        }
+        if (r == null) return false;
+        r.run();
+        return true;
+    }
+
+    /** Runs tasks until there are none left, including the ones they hand it. */
+    void runAll() {
+        while (runNext()) {
+            // keep going
+        }
+    }
+}
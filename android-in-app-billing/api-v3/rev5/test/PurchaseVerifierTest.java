@@ -0,0 +1,139 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.Bundle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Signature checks by {@link PurchaseVerifier}, on purchases signed by a
+ * {@link FakeInAppBillingService}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PurchaseVerifierTest {
+    FakeInAppBillingService mService;
+    PurchaseVerifier mVerifier;
+    List<String> mData;
+    List<String> mSignatures;
+
+    @Before
+    public void setUp() throws Exception {
+        mService = new FakeInAppBillingService();
+        mService.addPurchases(IabHelper.ITEM_TYPE_INAPP, "product.", 40);
+        mService.addTamperedPurchase(IabHelper.ITEM_TYPE_INAPP, "forged");
+        Bundle owned = mService.getPurchases(3, IabLoadDriver.PACKAGE_NAME, IabHelper.ITEM_TYPE_INAPP, null);
+        mData = owned.getStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST);
+        mSignatures = owned.getStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST);
+        mVerifier = new PurchaseVerifier(mService.getPublicKey());
+    }
+
+    @Test
+    public void onlyGenuineSignaturesPass() {
+        for (int i = 0; i < 40; ++i) {
+            assertTrue(mVerifier.verify(mData.get(i), mSignatures.get(i)));
+        }
+        assertFalse(mVerifier.verify(mData.get(40), mSignatures.get(40)));
+        assertFalse(mVerifier.verify(mData.get(0), mSignatures.get(1)));
+    }
+
+    @Test
+    public void missingDataFails() {
+        assertFalse(mVerifier.verify("", mSignatures.get(0)));
+        assertFalse(mVerifier.verify(mData.get(0), ""));
+    }
+
+    @Test
+    public void brokenSignatureDoesntSpoilLaterChecks() {
+        assertFalse(mVerifier.verify(mData.get(0), "not base64!"));
+        // Valid base64 but the wrong length for the key, which the Signature throws on
+        assertFalse(mVerifier.verify(mData.get(1), "AAAA"));
+        assertTrue(mVerifier.verify(mData.get(2), mSignatures.get(2)));
+    }
+
+    @Test
+    public void invalidKeyFailsEveryPurchase() {
+        PurchaseVerifier verifier = new PurchaseVerifier("not a key");
+        assertNull(verifier.mPublicKey);
+        assertFalse(verifier.verify(mData.get(0), mSignatures.get(0)));
+        assertFalse(new PurchaseVerifier(null).verify(mData.get(0), mSignatures.get(0)));
+    }
+
+    @Test
+    public void threadsShareOneVerifier() throws Exception {
+        final AtomicInteger passed = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 40; ++i) {
+                        if (mVerifier.verifySignature(mData.get(i), mSignatures.get(i))) passed.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(160, passed.get());
+    }
+
+    @Test
+    public void resultsAreRememberedByDigest() {
+        CountingVerifier verifier = new CountingVerifier(mService.getPublicKey());
+        assertTrue(verifier.verify(mData.get(0), mSignatures.get(0)));
+        assertFalse(verifier.verify(mData.get(40), mSignatures.get(40)));
+        assertTrue(verifier.verify(new String(mData.get(0)), new String(mSignatures.get(0))));
+        assertFalse(verifier.verify(mData.get(40), mSignatures.get(40)));
+        assertEquals(2, verifier.mChecks.get());
+
+        // Same data under another signature is another purchase
+        assertFalse(verifier.verify(mData.get(0), mSignatures.get(1)));
+        assertEquals(3, verifier.mChecks.get());
+    }
+
+    @Test
+    public void onlySuccessesAreHandedOut() {
+        mVerifier.verify(mData.get(0), mSignatures.get(0));
+        mVerifier.verify(mData.get(40), mSignatures.get(40));
+        List<String> keys = mVerifier.getVerifiedKeys();
+        assertEquals(1, keys.size());
+        assertEquals(mVerifier.memoKey(mData.get(0), mSignatures.get(0)), keys.get(0));
+
+        CountingVerifier restored = new CountingVerifier(mService.getPublicKey());
+        restored.addVerifiedKeys(keys);
+        assertTrue(restored.verify(mData.get(0), mSignatures.get(0)));
+        assertEquals(0, restored.mChecks.get());
+    }
+
+    @Test
+    public void leastRecentlyUsedResultsAreForgotten() {
+        CountingVerifier verifier = new CountingVerifier(mService.getPublicKey());
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i <= PurchaseVerifier.MEMO_SIZE; ++i) {
+            keys.add(verifier.memoKey("data " + i, "signature"));
+        }
+        verifier.addVerifiedKeys(keys.subList(0, PurchaseVerifier.MEMO_SIZE));
+        assertTrue(verifier.verify("data 0", "signature"));
+
+        // Making room drops the oldest one that wasn't used since, not the one just checked
+        verifier.addVerifiedKeys(keys.subList(PurchaseVerifier.MEMO_SIZE, PurchaseVerifier.MEMO_SIZE + 1));
+        assertEquals(PurchaseVerifier.MEMO_SIZE, verifier.mMemo.size());
+        assertTrue(verifier.mMemo.containsKey(keys.get(0)));
+        assertFalse(verifier.mMemo.containsKey(keys.get(1)));
+        assertEquals(0, verifier.mChecks.get());
+    }
+}
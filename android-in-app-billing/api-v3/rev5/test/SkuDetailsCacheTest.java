@@ -0,0 +1,161 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Stale-while-revalidate SkuDetails from {@link IabHelper#getSkuDetails(String, List,
+ * IabHelper.OnSkuDetailsRefreshedListener)}, kept in a {@link SkuDetailsCache}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SkuDetailsCacheTest {
+    /**
+     * Keeps the last refresh it was told about.
+     */
+    static class RecordingListener implements IabHelper.OnSkuDetailsRefreshedListener {
+        int mCalls = 0;
+        IabResult mResult;
+        Map<String, SkuDetails> mDetails;
+
+        @Override
+        public void onSkuDetailsRefreshed(IabResult result, Map<String, SkuDetails> details) {
+            ++mCalls;
+            mResult = result;
+            mDetails = details;
+        }
+    }
+
+    static final List<String> SKUS = Arrays.asList("gas", "premium");
+
+    FakeInAppBillingService mService;
+    IabHelper mHelper;
+    Locale mLocale;
+
+    @Before
+    public void setUp() {
+        mLocale = Locale.getDefault();
+        Locale.setDefault(Locale.US);
+        mService = new FakeInAppBillingService();
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas", "$0.99", "Gas");
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "premium", "$2.99", "Premium");
+        Executor direct = IabHelper.newDirectExecutor();
+        mHelper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+        mHelper.startSetup(mService, null);
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.dispose();
+        Locale.setDefault(mLocale);
+    }
+
+    @Test
+    public void unknownSkusAreFetchedAndReported() {
+        RecordingListener listener = new RecordingListener();
+        Map<String, SkuDetails> known = mHelper.getSkuDetails(IabHelper.ITEM_TYPE_INAPP, SKUS, listener);
+
+        assertTrue(known.isEmpty());
+        assertEquals(1, listener.mCalls);
+        assertTrue(listener.mResult.isSuccess());
+        assertEquals("$0.99", listener.mDetails.get("gas").getPrice());
+        assertEquals("$2.99", listener.mDetails.get("premium").getPrice());
+    }
+
+    @Test
+    public void freshDetailsAreHandedOutWithoutARefresh() {
+        mHelper.getSkuDetails(IabHelper.ITEM_TYPE_INAPP, SKUS, null);
+        RecordingListener listener = new RecordingListener();
+        Map<String, SkuDetails> known = mHelper.getSkuDetails(IabHelper.ITEM_TYPE_INAPP, SKUS, listener);
+
+        assertEquals(2, known.size());
+        assertEquals(0, listener.mCalls);
+        assertEquals(1, mService.getCallCount(IabMetrics.CALL_GET_SKU_DETAILS));
+    }
+
+    @Test
+    public void staleDetailsAreHandedOutWhileRefreshed() {
+        mHelper.getSkuDetails(IabHelper.ITEM_TYPE_INAPP, SKUS, null);
+        mHelper.setSkuDetailsMaxAge(0);
+        mService.addProduct(IabHelper.ITEM_TYPE_INAPP, "gas", "$1.29", "Gas");
+        RecordingListener listener = new RecordingListener();
+        Map<String, SkuDetails> known = mHelper.getSkuDetails(IabHelper.ITEM_TYPE_INAPP, SKUS, listener);
+
+        assertEquals("$0.99", known.get("gas").getPrice());
+        assertEquals(1, listener.mCalls);
+        assertEquals("$1.29", listener.mDetails.get("gas").getPrice());
+        assertEquals("$1.29", mHelper.getSkuDetails(IabHelper.ITEM_TYPE_INAPP, SKUS, null).get("gas").getPrice());
+    }
+
+    @Test
+    public void failedRefreshKeepsStaleDetails() {
+        mHelper.getSkuDetails(IabHelper.ITEM_TYPE_INAPP, SKUS, null);
+        mHelper.setSkuDetailsMaxAge(0);
+        mService.failCalls(IabMetrics.CALL_GET_SKU_DETAILS, IabHelper.BILLING_RESPONSE_RESULT_ERROR, 1);
+        RecordingListener listener = new RecordingListener();
+        mHelper.getSkuDetails(IabHelper.ITEM_TYPE_INAPP, SKUS, listener);
+
+        assertFalse(listener.mResult.isSuccess());
+        assertEquals("$0.99", listener.mDetails.get("gas").getPrice());
+        assertEquals(2, listener.mDetails.size());
+    }
+
+    @Test
+    public void nothingIsRefreshedBeforeSetup() {
+        Executor direct = IabHelper.newDirectExecutor();
+        IabHelper helper = new IabHelper(IabLoadDriver.PACKAGE_NAME, mService.getPublicKey(), direct, direct);
+        try {
+            RecordingListener listener = new RecordingListener();
+            assertTrue(helper.getSkuDetails(IabHelper.ITEM_TYPE_INAPP, SKUS, listener).isEmpty());
+            assertEquals(0, listener.mCalls);
+            assertEquals(0, mService.getCallCount(IabMetrics.CALL_GET_SKU_DETAILS));
+        }
+        finally {
+            helper.dispose();
+        }
+    }
+
+    @Test
+    public void localeChangeDropsEverything() throws JSONException {
+        SkuDetailsCache cache = new SkuDetailsCache();
+        cache.put(IabHelper.ITEM_TYPE_INAPP, details("gas", "$0.99"));
+        assertEquals("$0.99", cache.get(IabHelper.ITEM_TYPE_INAPP, "gas").getPrice());
+
+        Locale.setDefault(Locale.GERMANY);
+        assertNull(cache.get(IabHelper.ITEM_TYPE_INAPP, "gas"));
+        assertTrue(cache.isStale(IabHelper.ITEM_TYPE_INAPP, "gas", Long.MAX_VALUE));
+    }
+
+    @Test
+    public void staleDetailsDontReplaceFetchedOnes() throws JSONException {
+        SkuDetailsCache cache = new SkuDetailsCache();
+        cache.put(IabHelper.ITEM_TYPE_INAPP, details("gas", "$0.99"));
+        cache.putStale(IabHelper.ITEM_TYPE_INAPP, details("gas", "$0.49"));
+        cache.putStale(IabHelper.ITEM_TYPE_INAPP, details("premium", "$2.99"));
+
+        assertEquals("$0.99", cache.get(IabHelper.ITEM_TYPE_INAPP, "gas").getPrice());
+        assertFalse(cache.isStale(IabHelper.ITEM_TYPE_INAPP, "gas", 60000));
+        assertTrue(cache.isStale(IabHelper.ITEM_TYPE_INAPP, "premium", 60000));
+        assertNull(cache.get(IabHelper.ITEM_TYPE_SUBS, "gas"));
+    }
+
+    static SkuDetails details(String sku, String price) throws JSONException {
+        return new SkuDetails(IabHelper.ITEM_TYPE_INAPP, "{\"productId\":\"" + sku + "\",\"type\":\"inapp\","
+                + "\"price\":\"" + price + "\",\"title\":\"" + sku + "\",\"description\":\"" + sku + "\"}");
+    }
+}